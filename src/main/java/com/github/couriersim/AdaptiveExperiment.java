@@ -0,0 +1,335 @@
+package com.github.couriersim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.metrics.ResultStore;
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * Compares configurations by the profit of the fleet without a fixed number
+ * of seeds per configuration:
+ * <pre>
+ * AdaptiveExperiment CONFIGS [--threads N] [--budget RUNS] [--round N]
+ *                    [--min-seeds N] [--max-seeds N] [--confidence C]
+ *                    [--seed S] [--store DIR]
+ * </pre>
+ * Every line of the configs file is a configuration, written as the options
+ * of a {@link SimDaemon} job without the seed. Seeds are run in rounds on all
+ * cores, all configurations use the same seeds so their differences aren't
+ * drowned by the noise of the order streams. After every round the
+ * confidence interval of the difference to the best configuration is
+ * updated for every other one, from the differences of their profits on the
+ * same seeds. A configuration whose difference is certainly below zero has
+ * lost and is no longer sampled, the rest of the budget goes to the
+ * configurations that could still be the best. The run ends when only the
+ * best is left, every open configuration reached the maximum number of
+ * seeds or the budget is spent. The confidence of the intervals is
+ * Bonferroni corrected for the number of comparisons with the best.
+ */
+public final class AdaptiveExperiment {
+
+    static final int DEFAULT_ROUND = 4;
+    static final int DEFAULT_MIN_SEEDS = 8;
+    static final int DEFAULT_MAX_SEEDS = 200;
+    static final double DEFAULT_CONFIDENCE = .95;
+
+    private final List<Config> configs;
+    private final int round;
+    private final int minSeeds;
+    private final int maxSeeds;
+    private final double confidence;
+    private final long firstSeed;
+    private int runs;
+
+    AdaptiveExperiment(List<String> lines, int round, int minSeeds, int maxSeeds,
+                       double confidence, long firstSeed) {
+        if (lines.isEmpty()) {
+            throw new IllegalArgumentException("No configurations.");
+        }
+        if (round < 1 || minSeeds < 2 || maxSeeds < minSeeds) {
+            throw new IllegalArgumentException("Invalid seed counts.");
+        }
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("Confidence must be in (0, 1): " + confidence);
+        }
+        configs = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            // fails early on a typo instead of after the first round
+            SimDaemon.Job.parse(line, "");
+            configs.add(new Config(line.trim()));
+        }
+        this.round = round;
+        this.minSeeds = minSeeds;
+        this.maxSeeds = maxSeeds;
+        this.confidence = confidence;
+        this.firstSeed = firstSeed;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("usage: AdaptiveExperiment CONFIGS [--threads N] [--budget RUNS]"
+                    + " [--round N] [--min-seeds N] [--max-seeds N] [--confidence C]"
+                    + " [--seed S] [--store DIR]");
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int budget = Integer.MAX_VALUE;
+        int round = DEFAULT_ROUND;
+        int minSeeds = DEFAULT_MIN_SEEDS;
+        int maxSeeds = DEFAULT_MAX_SEEDS;
+        double confidence = DEFAULT_CONFIDENCE;
+        long seed = 0;
+        ResultStore store = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--budget":
+                    budget = Integer.parseInt(args[++i]);
+                    break;
+                case "--round":
+                    round = Integer.parseInt(args[++i]);
+                    break;
+                case "--min-seeds":
+                    minSeeds = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-seeds":
+                    maxSeeds = Integer.parseInt(args[++i]);
+                    break;
+                case "--confidence":
+                    confidence = Double.parseDouble(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--store":
+                    store = ResultStore.open(new File(args[++i]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        final List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(new File(args[0]).toPath(),
+                StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        final AdaptiveExperiment experiment = new AdaptiveExperiment(lines, round, minSeeds,
+                maxSeeds, confidence, seed);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            experiment.run(pool, budget, store);
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(experiment.report());
+    }
+
+    /**
+     * Runs rounds until a winner is found, nothing is open or the budget of
+     * runs is spent.
+     * @param store Receives the metrics of every run if not
+     *          <code>null</code>, every worker thread writes its own
+     *          segments.
+     */
+    void run(ExecutorService pool, int budget, @Nullable ResultStore store)
+            throws InterruptedException, IOException {
+        final List<ResultStore.Writer> writers = new ArrayList<>();
+        final ThreadLocal<ResultStore.Writer> writer = ThreadLocal.withInitial(() -> {
+            if (store == null) {
+                return null;
+            }
+            final ResultStore.Writer w = store.writer();
+            synchronized (writers) {
+                writers.add(w);
+            }
+            return w;
+        });
+        try {
+            rounds(pool, budget, writer);
+        } finally {
+            for (ResultStore.Writer w : writers) {
+                w.close();
+            }
+        }
+    }
+
+    private void rounds(ExecutorService pool, int budget,
+                        ThreadLocal<ResultStore.Writer> writer)
+            throws InterruptedException {
+        int r = 0;
+        while (runs < budget) {
+            final List<Config> open = open();
+            if (open.isEmpty()) {
+                break;
+            }
+            // the closest calls first in case the budget doesn't cover the round
+            final Config best = best();
+            open.sort(Comparator.comparingDouble(c -> Math.abs(c.stats.getMean()
+                    - best.stats.getMean())));
+            final List<Config> sampled = new ArrayList<>();
+            final List<Callable<Double>> tasks = new ArrayList<>();
+            for (Config c : open) {
+                final int n = Math.min(c.stats.getCount() < minSeeds
+                        ? minSeeds - (int) c.stats.getCount() : round,
+                        maxSeeds - (int) c.stats.getCount());
+                for (int i = 0; i < n && runs + tasks.size() < budget; i++) {
+                    final long seed = firstSeed + c.stats.getCount() + i;
+                    sampled.add(c);
+                    tasks.add(() -> profit(c.line, seed, writer.get()));
+                }
+            }
+            final List<Future<Double>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    final double profit = results.get(i).get();
+                    sampled.get(i).stats.add(profit);
+                    sampled.get(i).profits.add(profit);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Run of " + sampled.get(i).line
+                            + " failed", e.getCause());
+                }
+            }
+            runs += tasks.size();
+            update();
+            System.out.println(String.format(Locale.ROOT, "round %d: %d runs, %d open",
+                    ++r, runs, open().size()));
+        }
+    }
+
+    int getRuns() {
+        return runs;
+    }
+
+    /**
+     * The configurations from the best to the worst mean profit with the
+     * interval of their difference to the best, the best with the interval
+     * of its mean.
+     */
+    String report() {
+        final List<Config> sorted = new ArrayList<>(configs);
+        sorted.sort(Comparator.comparingDouble((Config c) -> c.stats.getMean()).reversed());
+        final Config best = sorted.get(0);
+        final StringBuilder sb = new StringBuilder();
+        for (Config c : sorted) {
+            final String status = c == best ? (open().isEmpty() ? "BEST" : "LEADING")
+                    : c.lost ? "LOST" : "OPEN";
+            sb.append(String.format(Locale.ROOT, "%-8s %10.2f %+10.2f +- %8.2f n=%-4d %s%n",
+                    status, c.stats.getMean(), c == best ? 0 : -c.difference,
+                    c.halfWidth, c.stats.getCount(), c.line));
+        }
+        return sb.append(String.format(Locale.ROOT, "%d runs, %d with fixed seeds",
+                runs, configs.size() * maxSeeds)).toString();
+    }
+
+    // updates the intervals and marks the configurations that lost
+    private void update() {
+        final int comparisons = Math.max(1, configs.size() - 1);
+        final double alpha = (1 - confidence) / comparisons;
+        final Config best = best();
+        best.difference = 0;
+        best.halfWidth = halfWidth(best.stats, alpha);
+        for (Config c : configs) {
+            if (c == best) {
+                continue;
+            }
+            // the i-th profit of every configuration is of the same seed
+            final ResultStore.Stats diff = new ResultStore.Stats();
+            final int n = Math.min(best.profits.size(), c.profits.size());
+            for (int i = 0; i < n; i++) {
+                diff.add(best.profits.get(i) - c.profits.get(i));
+            }
+            c.difference = diff.getMean();
+            c.halfWidth = halfWidth(diff, alpha);
+            if (c.difference - c.halfWidth > 0) {
+                c.lost = true;
+            }
+        }
+    }
+
+    private static double halfWidth(ResultStore.Stats s, double alpha) {
+        final long n = s.getCount();
+        return n < 2 ? Double.POSITIVE_INFINITY
+                : new TDistribution(null, n - 1).inverseCumulativeProbability(1 - alpha / 2)
+                        * s.getStdDev() / Math.sqrt(n);
+    }
+
+    private Config best() {
+        Config best = configs.get(0);
+        for (Config c : configs) {
+            if (c.stats.getMean() > best.stats.getMean()) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    // the configurations that still need seeds
+    private List<Config> open() {
+        final Config best = best();
+        final List<Config> open = new ArrayList<>();
+        boolean contested = false;
+        for (Config c : configs) {
+            if (c != best && !c.lost) {
+                contested = true;
+                if (c.stats.getCount() < maxSeeds) {
+                    open.add(c);
+                }
+            }
+        }
+        if ((contested || best.stats.getCount() < minSeeds)
+                && best.stats.getCount() < maxSeeds) {
+            open.add(best);
+        }
+        return open;
+    }
+
+    static double profit(String line, long seed, @Nullable ResultStore.Writer writer) {
+        final SimConfig.Builder config = SimDaemon.Job.parse(line, "").config.seed(seed);
+        if (writer != null) {
+            config.results(writer, line);
+        }
+        final Simulator sim = CourierSim.run(config.build(), null, null, null);
+        double profit = 0;
+        final RoadModel rm = sim.getModelProvider().getModel(RoadModel.class);
+        for (RoadUser ru : rm.getObjects(CourierSim.Pred.TAXIS)) {
+            profit += ((Taxi) ru).getProfit();
+        }
+        return profit;
+    }
+
+    private static final class Config {
+        final String line;
+        final ResultStore.Stats stats = new ResultStore.Stats();
+        // by seed, from the first one on
+        final List<Double> profits = new ArrayList<>();
+        // mean profit of the best minus this one on the same seeds
+        double difference;
+        double halfWidth = Double.POSITIVE_INFINITY;
+        boolean lost;
+
+        Config(String line) {
+            this.line = line;
+        }
+    }
+}
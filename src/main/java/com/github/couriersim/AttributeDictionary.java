@@ -0,0 +1,66 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared dictionaries of the street names and speed classes of a converted
+ * graph. Connections store the index of their name (attribute "n") and the
+ * interned speed (attribute "ts") instead of their own copies, so a street with
+ * hundreds of segments retains its name only once.
+ * <p>
+ * Not thread safe, the converters only intern on the thread that builds the
+ * graph.
+ */
+public final class AttributeDictionary {
+
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<Double, Double> speeds = new HashMap<>();
+
+    /**
+     * @param name A street name.
+     * @return The index of the name, equal names get the same (shared) index.
+     */
+    public Integer intern(String name) {
+        Integer index = nameIndex.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndex.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param index An index returned by {@link #intern(String)}.
+     * @return The name.
+     */
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * @param speed A speed.
+     * @return A shared instance of the speed.
+     */
+    public Double speed(double speed) {
+        final Double boxed = speed;
+        final Double shared = speeds.get(boxed);
+        if (shared != null) {
+            return shared;
+        }
+        speeds.put(boxed, boxed);
+        return boxed;
+    }
+
+    public int getNumberOfNames() {
+        return names.size();
+    }
+
+    public int getNumberOfSpeeds() {
+        return speeds.size();
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Carries the messages of the {@link OrderAuction}. A message is either sent
+ * to one receiver or broadcast to all taxis within a range of a point.
+ * Nothing is delivered right away: everything sent during a tick is delivered
+ * in one batch after the tick, so receivers read their messages in the next
+ * tick and the order in which taxis tick doesn't matter.
+ * <p>
+ * For a batch with broadcasts the taxis are bucketed once in a grid with
+ * cells of the size of the default range, a broadcast then only looks at the
+ * cells that overlap its range. The cost of a message is proportional to the
+ * number of taxis near it, not to the size of the fleet.
+ */
+final class AuctionChannel implements TickListener {
+
+    /**
+     * Something that receives messages, its messages of a tick arrive in the
+     * order they were sent.
+     */
+    interface Receiver {
+        void receive(OrderAuction.Message message);
+    }
+
+    private final RoadModel roadModel;
+    private final double cellSize;
+    private final List<Taxi> taxis = new ArrayList<>();
+    private final List<Envelope> outbox = new ArrayList<>();
+    private final Map<Long, List<Taxi>> cells = new HashMap<>();
+    private boolean broadcasts;
+    private long delivered;
+
+    /**
+     * @param cellSize The size of a grid cell in graph units, normally the
+     *          range of most broadcasts.
+     */
+    AuctionChannel(RoadModel roadModel, double cellSize) {
+        this.roadModel = roadModel;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Adds a taxi that receives broadcasts.
+     */
+    void register(Taxi taxi) {
+        taxis.add(taxi);
+    }
+
+    void send(Receiver to, OrderAuction.Message message) {
+        outbox.add(new Envelope(to, null, 0, message));
+    }
+
+    /**
+     * Sends a message to all taxis within the range of a point.
+     */
+    void broadcast(Point from, double range, OrderAuction.Message message) {
+        outbox.add(new Envelope(null, from, range, message));
+        broadcasts = true;
+    }
+
+    long getDelivered() {
+        return delivered;
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {}
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {
+        if (outbox.isEmpty()) {
+            return;
+        }
+        if (broadcasts) {
+            bucketTaxis();
+        }
+        // receivers may send while receiving, that goes into the next batch
+        final List<Envelope> batch = new ArrayList<>(outbox);
+        outbox.clear();
+        broadcasts = false;
+        for (Envelope e : batch) {
+            if (e.to != null) {
+                e.to.receive(e.message);
+                delivered++;
+            } else {
+                deliverNear(e);
+            }
+        }
+    }
+
+    private void bucketTaxis() {
+        for (List<Taxi> list : cells.values()) {
+            list.clear();
+        }
+        for (Taxi taxi : taxis) {
+            if (!roadModel.containsObject(taxi)) {
+                continue;
+            }
+            final Point p = roadModel.getPosition(taxi);
+            final Long key = key((long) Math.floor(p.x / cellSize),
+                    (long) Math.floor(p.y / cellSize));
+            List<Taxi> list = cells.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                cells.put(key, list);
+            }
+            list.add(taxi);
+        }
+    }
+
+    private void deliverNear(Envelope e) {
+        final long x0 = (long) Math.floor((e.from.x - e.range) / cellSize);
+        final long x1 = (long) Math.floor((e.from.x + e.range) / cellSize);
+        final long y0 = (long) Math.floor((e.from.y - e.range) / cellSize);
+        final long y1 = (long) Math.floor((e.from.y + e.range) / cellSize);
+        for (long x = x0; x <= x1; x++) {
+            for (long y = y0; y <= y1; y++) {
+                final List<Taxi> list = cells.get(key(x, y));
+                if (list == null) {
+                    continue;
+                }
+                for (Taxi taxi : list) {
+                    if (Point.distance(roadModel.getPosition(taxi), e.from) <= e.range) {
+                        taxi.receive(e.message);
+                        delivered++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static Long key(long x, long y) {
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+
+    private static final class Envelope {
+        @Nullable final Receiver to;
+        @Nullable final Point from;
+        final double range;
+        final OrderAuction.Message message;
+
+        Envelope(@Nullable Receiver to, @Nullable Point from, double range,
+                 OrderAuction.Message message) {
+            this.to = to;
+            this.from = from;
+            this.range = range;
+            this.message = message;
+        }
+    }
+}
@@ -16,18 +16,29 @@ package com.github.couriersim;
  * limitations under the License.
  */
 
-import static com.google.common.collect.Maps.newHashMap;
-
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 
+import com.github.couriersim.cost.DistanceCache;
+import com.github.couriersim.generator.GraphGenerator;
+import com.github.couriersim.index.HubDistanceTable;
+import com.github.couriersim.index.NetworkKnn;
+import com.github.couriersim.index.SpatialIndex;
 import com.github.couriersim.pruner.CenterPruner;
+import com.github.couriersim.pruner.ChainContractionPruner;
 import com.github.rinde.rinsim.core.model.road.RoadUser;
 import com.github.rinde.rinsim.geom.*;
 import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Monitor;
@@ -61,7 +72,7 @@ import com.github.rinde.rinsim.ui.renderers.RoadUserRenderer;
 public final class CourierSim {
 
     private static final int NUM_DEPOTS = 1;
-    private static final int NUM_TAXIS = 2;
+    static final int NUM_TAXIS = 2;
     private static final int NUM_CUSTOMERS = 3;
 
     // time in ms
@@ -71,11 +82,30 @@ public final class CourierSim {
 
     private static final int SPEED_UP = 9;
     private static final int MAX_CAPACITY = 5;
-    private static final double NEW_CUSTOMER_PROB = .003;
-
-    private static final String MAP_FILE = "/data/maps/leuven-simple.dot";
+    static final double NEW_CUSTOMER_PROB = .003;
+    // ticks the arrivals are drawn ahead at most, runs without an end time
+    // would draw forever otherwise
+    private static final long ARRIVAL_HORIZON = 24 * 60 * 60;
+
+    static final String MAP_FILE = "/data/maps/leuven-simple.dot";
+    // shared by concurrent runs, every entry is built once without blocking
+    // the other entries
     private static final Map<String, Graph<MultiAttributeData>> GRAPH_CACHE =
-            newHashMap();
+            new ConcurrentHashMap<>();
+    private static final Map<String, SpatialIndex> INDEX_CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, NetworkKnn> KNN_CACHE = new ConcurrentHashMap<>();
+    // geometry of the contracted connections of OSM graphs
+    private static final Map<String, ChainContractionPruner> CONTRACTION_CACHE =
+            new ConcurrentHashMap<>();
+    // street names of OSM graphs, the connections refer to them by index
+    private static final Map<String, AttributeDictionary> DICTIONARY_CACHE =
+            new ConcurrentHashMap<>();
+    private static final int HUB_TABLES = 16;
+    private static final LoadingCache<HubKey, HubDistanceTable> HUB_CACHE =
+            CacheBuilder.newBuilder()
+                    .maximumSize(HUB_TABLES)
+                    .build(CacheLoader.from((HubKey key) ->
+                            HubDistanceTable.create(loadGraph(key.graph), key.depots)));
 
     private static final long TEST_STOP_TIME = 1 * 60 * 60 * 1000;
     private static final int TEST_SPEED_UP = 60 * 60 * 1000;
@@ -101,7 +131,7 @@ public final class CourierSim {
      * @param testing If <code>true</code> enables the test mode.
      */
     public static void run(boolean testing) {
-        run(testing, Long.MAX_VALUE, MAP_FILE, null, null, null);
+        run(SimConfig.builder().testing(testing).build(), null, null, null);
     }
 
     enum Pred implements Predicate<RoadUser> {
@@ -131,39 +161,195 @@ public final class CourierSim {
     public static Simulator run(boolean testing, final long endTime,
                                 String graphFile,
                                 @Nullable Display display, @Nullable Monitor m, @Nullable Listener list) {
+        return run(SimConfig.builder()
+                .testing(testing)
+                .endTime(endTime)
+                .graphFile(graphFile)
+                .build(), display, m, list);
+    }
 
-        final View.Builder view = createGui(testing, display, m, list);
+    /**
+     * Starts the example.
+     * @param config The options of this run.
+     * @param display The display that should be used to show the ui on.
+     * @param m The monitor that should be used to show the ui on.
+     * @param list A listener that will receive callbacks from the ui.
+     * @return The simulator instance.
+     */
+    public static Simulator run(final SimConfig config,
+                                @Nullable Display display, @Nullable Monitor m, @Nullable Listener list) {
+        final boolean headless = config.headless || config.fastForwardTick >= 0;
+        final long endTime = config.endTime;
 
         // use map of leuven
-        final Simulator simulator = Simulator.builder()
-                .addModel(RoadModelBuilders.staticGraph(loadGraph(graphFile)))
-                .addModel(DefaultPDPModel.builder())
-                .addModel(view)
-                .build();
+        final Simulator.Builder simBuilder = Simulator.builder()
+                .setRandomSeed(config.seed)
+                .addModel(DefaultPDPModel.builder());
+        ListenableGraph<MultiAttributeData> trafficGraph = null;
+        if (config.traffic) {
+            // the speeds change, the cached graph has to stay as it is
+            final Graph<MultiAttributeData> copy = new TableGraph<>();
+            copy.merge(loadGraph(config.graphFile));
+            trafficGraph = new ListenableGraph<>(copy);
+            simBuilder.addModel(RoadModelBuilders.dynamicGraph(trafficGraph));
+        } else {
+            simBuilder.addModel(RoadModelBuilders.staticGraph(loadGraph(config.graphFile)));
+        }
+        if (!headless) {
+            simBuilder.addModel(createGui(config.testing, display, m, list));
+        }
+        final Simulator simulator = simBuilder.build();
         final RandomGenerator rng = simulator.getRandomGenerator();
+        final ReplayLog.Writer recorder = config.recorder;
+        final ReplayLog replay = config.replay;
+        if (recorder != null) {
+            recorder.start(config);
+        }
 
         final RoadModel roadModel = simulator.getModelProvider().getModel(
                 RoadModel.class);
+        final ResultRecorder results = config.results != null
+                ? ResultRecorder.install(simulator, roadModel,
+                        simulator.getModelProvider().getModel(PDPModel.class),
+                        config.results, config.resultLabel, config.seed)
+                : null;
+        if (config.soak) {
+            SoakMonitor.install(simulator, roadModel,
+                    simulator.getModelProvider().getModel(PDPModel.class));
+        }
         // add depots, taxis and parcels to simulator
+        final List<Point> depots = new ArrayList<>();
         for (int i = 0; i < NUM_DEPOTS; i++) {
-            simulator.register(new TaxiBase(roadModel.getRandomPosition(rng),
-                    DEPOT_CAPACITY));
+            depots.add(roadModel.getRandomPosition(rng));
+            simulator.register(new TaxiBase(depots.get(i), DEPOT_CAPACITY));
+        }
+        final HubDistanceTable hubTable = getHubTable(config.graphFile, depots);
+        // before the taxis, the speeds of a tick are set before they move
+        final TrafficModel traffic = trafficGraph != null
+                ? new TrafficModel(trafficGraph, config.trafficStartHour, config.seed,
+                        Taxi.SPEED)
+                : null;
+        if (traffic != null) {
+            simulator.addTickListener(traffic);
+        }
+        // before the taxis, these have to know whether a tick is quiet
+        final Quiescence quiescence = config.skipIdle
+                ? Quiescence.install(simulator,
+                        simulator.getModelProvider().getModel(PDPModel.class))
+                : null;
+        final OrderBook orderBook = OrderBook.install(
+                simulator.getModelProvider().getModel(PDPModel.class));
+        final List<Point> bounds = roadModel.getBounds();
+        final DepotInventory depotInventory = new DepotInventory(bounds.get(0),
+                bounds.get(1));
+        final WakeupHub wakeupHub = config.sleepIdle
+                ? WakeupHub.install(simulator.getModelProvider().getModel(PDPModel.class),
+                        config.wakeRadius)
+                : null;
+        final Rebalancer rebalancer = config.rebalanceInterval > 0
+                ? Rebalancer.install(simulator, roadModel,
+                        simulator.getModelProvider().getModel(PDPModel.class),
+                        getSpatialIndex(config.graphFile), config.rebalanceInterval)
+                : null;
+        if (rebalancer != null) {
+            rebalancer.setWakeupHub(wakeupHub);
+        }
+        final double diagonal = Point.distance(bounds.get(0), bounds.get(1));
+        final OrderAuction auction = config.auction
+                && config.strategy != Taxi.Strategy.ROUTE_PLAN
+                ? OrderAuction.install(simulator, roadModel,
+                        simulator.getModelProvider().getModel(PDPModel.class),
+                        config.auctionRange > 0 ? config.auctionRange : diagonal / 8)
+                : null;
+        // the lengths don't change with the traffic, the cached graph will do
+        final NetworkKnn knn = config.networkNearest
+                ? getNetworkKnn(config.graphFile) : null;
+        // roads are longer than the straight line, so twice the auction range,
+        // in the units of the connection lengths
+        final double knnRadius = knn == null ? 0
+                : (config.auctionRange > 0 ? 2 * config.auctionRange : diagonal / 4)
+                        * knn.getDetour();
+        final DistanceCache distanceCache = config.memoizeDistances
+                ? new DistanceCache() : null;
+        final Dispatcher dispatcher = config.strategy == Taxi.Strategy.ROUTE_PLAN
+                ? config.dispatcher.install(simulator, roadModel,
+                        simulator.getModelProvider().getModel(PDPModel.class))
+                : null;
+        for (int i = 0; i < config.numTaxis; i++) {
+            final Taxi taxi = new Taxi(i, roadModel.getRandomPosition(rng),
+                    TAXI_CAPACITY);
+            if (recorder != null) {
+                taxi.setDecisionListener(recorder);
+            }
+            taxi.setCostModel(config.costModel);
+            taxi.setDistanceCache(distanceCache);
+            taxi.setHubTable(hubTable);
+            taxi.setTraffic(traffic);
+            taxi.setNetworkKnn(knn, knnRadius);
+            taxi.setStrategy(config.strategy);
+            taxi.setQuiescence(quiescence);
+            taxi.setWakeupHub(wakeupHub);
+            taxi.setOrderBook(orderBook);
+            taxi.setDepotInventory(depotInventory);
+            if (auction != null) {
+                taxi.setAuction(auction);
+                auction.addTaxi(taxi);
+            }
+            if (rebalancer != null) {
+                rebalancer.addTaxi(taxi);
+            }
+            if (quiescence != null) {
+                quiescence.addTaxi(taxi);
+            }
+            if (dispatcher != null) {
+                dispatcher.addTaxi(taxi);
+            }
+            simulator.register(taxi);
         }
-        for (int i = 0; i < NUM_TAXIS; i++) {
-            simulator.register(new Taxi(roadModel.getRandomPosition(rng),
-                    TAXI_CAPACITY));
+        final PlanOptimizer optimizer = dispatcher != null && config.optimizerThreads > 0
+                ? new PlanOptimizer(roadModel,
+                        simulator.getModelProvider().getModel(PDPModel.class),
+                        config.optimizerThreads, config.seed)
+                : null;
+        if (optimizer != null) {
+            for (RoadUser ru : roadModel.getObjects(Pred.TAXIS)) {
+                optimizer.addTaxi((Taxi) ru);
+            }
+            simulator.addTickListener(optimizer);
         }
-        for (int i = 0; i < NUM_CUSTOMERS; i++) {
-            simulator.register(new Customer(
-                    Parcel.builder(roadModel.getRandomPosition(rng),
-                                    roadModel.getRandomPosition(rng))
-                            .serviceDuration(SERVICE_DURATION)
-                            .neededCapacity(1 + rng.nextInt(MAX_CAPACITY))
-                            .buildDTO()));
+        if (distanceCache != null) {
+            simulator.addTickListener(distanceCache);
         }
+        final OrderFeed feed;
+        try {
+            feed = config.orderFeed != null && replay == null
+                    ? OrderFeed.open(config.orderFeed, getSpatialIndex(config.graphFile),
+                            config.readAhead)
+                    : null;
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int nextOrder = 0;
+        if (replay != null) {
+            while (nextOrder < replay.getNumOrders()
+                    && replay.getOrderTick(nextOrder) == ReplayLog.INITIAL_TICK) {
+                registerCustomer(simulator, recorder, ReplayLog.INITIAL_TICK,
+                        createOrder(replay, nextOrder++));
+            }
+        } else if (feed == null) {
+            for (int i = 0; i < NUM_CUSTOMERS; i++) {
+                registerCustomer(simulator, recorder, ReplayLog.INITIAL_TICK,
+                        createCustomer(roadModel, rng));
+            }
+        }
+        final int firstReplayOrder = nextOrder;
 
         simulator.addTickListener(new TickListener() {
             private double printed;
+            private int replayOrder = firstReplayOrder;
+            private long nextArrival = -1;
+            // the last tick whose arrival is drawn
+            private long drawnUntil = -1;
             private void printlnonce(double s){
                 if (printed != s) {
                     printed = s;
@@ -172,16 +358,39 @@ public final class CourierSim {
             }
             @Override
             public void tick(TimeLapse time) {
+                final long tick = time.getStartTime() / time.getTickLength();
                 if (time.getStartTime() > endTime) {
                     simulator.stop();
-                } else if (rng.nextDouble() < NEW_CUSTOMER_PROB) {
-                    simulator.register(new Customer(
-                            Parcel
-                                    .builder(roadModel.getRandomPosition(rng),
-                                            roadModel.getRandomPosition(rng))
-                                    .serviceDuration(SERVICE_DURATION)
-                                    .neededCapacity(1 + rng.nextInt(MAX_CAPACITY))
-                                    .buildDTO()));
+                } else if (replay != null) {
+                    while (replayOrder < replay.getNumOrders()
+                            && replay.getOrderTick(replayOrder) <= tick) {
+                        registerCustomer(simulator, recorder, tick,
+                                createOrder(replay, replayOrder++));
+                    }
+                } else if (feed != null) {
+                    while (feed.peekTime() < time.getEndTime()) {
+                        registerCustomer(simulator, recorder, tick, createOrder(feed));
+                        feed.next();
+                    }
+                } else if (quiescence != null) {
+                    if (tick > drawnUntil) {
+                        final long last = Math.min(endTime / time.getTickLength(),
+                                tick + ARRIVAL_HORIZON - 1);
+                        nextArrival = nextArrivalTick(rng, config.orderProbability,
+                                tick, last);
+                        drawnUntil = nextArrival != Long.MAX_VALUE ? nextArrival
+                                : config.orderProbability > 0 ? last : Long.MAX_VALUE;
+                    }
+                    if (tick == nextArrival) {
+                        registerCustomer(simulator, recorder, tick,
+                                createCustomer(roadModel, rng));
+                    } else if (quiescence.isQuiet()) {
+                        // nobody earned anything
+                        return;
+                    }
+                } else if (rng.nextDouble() < config.orderProbability) {
+                    registerCustomer(simulator, recorder, tick,
+                            createCustomer(roadModel, rng));
                 }
                 double total = 0;
                 for (RoadUser ru: roadModel.getObjects(Pred.TAXIS)) {
@@ -192,14 +401,94 @@ public final class CourierSim {
 
             @Override
             public void afterTick(TimeLapse timeLapse) {
-
+                if (config.fastForwardTick >= 0 && timeLapse.getStartTime()
+                        / timeLapse.getTickLength() >= config.fastForwardTick) {
+                    simulator.stop();
+                }
             }
         });
         simulator.start();
 
+        if (optimizer != null && (headless || display == null)) {
+            optimizer.close();
+        }
+        if (dispatcher != null && (headless || display == null)) {
+            dispatcher.close();
+        }
+        if (results != null && (headless || display == null)) {
+            results.finish();
+        }
+        if (feed != null && (headless || display == null)) {
+            try {
+                feed.close();
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        // an asynchronous gui keeps running, its recorder is closed by the caller
+        if (recorder != null && (headless || display == null)) {
+            try {
+                recorder.close();
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
         return simulator;
     }
 
+    private static void registerCustomer(Simulator simulator,
+                                         @Nullable ReplayLog.Writer recorder, long tick, Customer c) {
+        if (recorder != null) {
+            recorder.order(tick, c);
+        }
+        simulator.register(c);
+    }
+
+    private static Customer createCustomer(RoadModel roadModel, RandomGenerator rng) {
+        return new Customer(
+                Parcel.builder(roadModel.getRandomPosition(rng),
+                                roadModel.getRandomPosition(rng))
+                        .serviceDuration(SERVICE_DURATION)
+                        .neededCapacity(1 + rng.nextInt(MAX_CAPACITY))
+                        .buildDTO());
+    }
+
+    // the first tick from the specified one up to last at which a customer
+    // arrives, consumes the same random draws as testing every tick separately.
+    // Long.MAX_VALUE if nobody arrives up to last or ever
+    private static long nextArrivalTick(RandomGenerator rng, double probability,
+                                        long from, long last) {
+        if (probability <= 0) {
+            return Long.MAX_VALUE;
+        }
+        for (long tick = from; tick <= last; tick++) {
+            if (rng.nextDouble() < probability) {
+                return tick;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static Customer createOrder(ReplayLog replay, int order) {
+        return new Customer(
+                Parcel.builder(replay.getPickupLocation(order),
+                                replay.getDeliveryLocation(order))
+                        .serviceDuration(SERVICE_DURATION)
+                        .neededCapacity(replay.getNeededCapacity(order))
+                        .buildDTO());
+    }
+
+    // capacities outside of what a taxi can load are clamped, such an order
+    // would never be picked up
+    private static Customer createOrder(OrderFeed feed) {
+        return new Customer(
+                Parcel.builder(feed.getPickupLocation(), feed.getDeliveryLocation())
+                        .serviceDuration(SERVICE_DURATION)
+                        .neededCapacity(Math.max(1,
+                                Math.min(TAXI_CAPACITY, feed.getNeededCapacity())))
+                        .buildDTO());
+    }
+
     static View.Builder createGui(
             boolean testing,
             @Nullable Display display,
@@ -240,25 +529,30 @@ public final class CourierSim {
 
     // load the graph file
     static Graph<MultiAttributeData> loadGraph(String name) {
+        return GRAPH_CACHE.computeIfAbsent(name, CourierSim::readGraph);
+    }
+
+    private static Graph<MultiAttributeData> readGraph(String name) {
         try {
-            if (GRAPH_CACHE.containsKey(name)) {
-                return GRAPH_CACHE.get(name);
-            }
             Graph<MultiAttributeData> g = new TableGraph<>();
-            if(name.endsWith(".dot")) {
+            if (name.startsWith(GraphGenerator.PREFIX)) {
+                g = GraphGenerator.fromSpec(name);
+            } else if(name.endsWith(".dot")) {
 
                 g = DotGraphIO
                         .getMultiAttributeGraphIO(
                                 Filters.selfCycleFilter())
                         .read(CourierSim.class.getResourceAsStream(name));
-            } else if (name.endsWith(".osm")) {
+            } else if (isProjected(name)) {
                 OsmConverter osmc = new OsmConverter();
                 CenterPruner cp = new CenterPruner();
+                ChainContractionPruner contraction = new ChainContractionPruner();
                 g = osmc
-                        .withPruner(cp)
+                        .withPruner(cp, contraction)
                         .convert(CourierSim.class.getResource(name).getPath());
+                CONTRACTION_CACHE.put(name, contraction);
+                DICTIONARY_CACHE.put(name, osmc.getDictionary());
             }
-            GRAPH_CACHE.put(name, g);
             return g;
         } catch (final FileNotFoundException e) {
             throw new IllegalStateException(e);
@@ -267,6 +561,82 @@ public final class CourierSim {
         }
     }
 
+    // whether the nodes of a graph are projected lat/lon coordinates
+    static boolean isProjected(String name) {
+        return name.endsWith(".osm") || name.endsWith(".pbf");
+    }
+
+    // drops a loaded graph and its indexes from the caches
+    static void evictGraph(String name) {
+        GRAPH_CACHE.remove(name);
+        INDEX_CACHE.remove(name);
+        KNN_CACHE.remove(name);
+        CONTRACTION_CACHE.remove(name);
+        DICTIONARY_CACHE.remove(name);
+        HUB_CACHE.asMap().keySet().removeIf(key -> key.graph.equals(name));
+    }
+
+    // the original geometry of the connections of a graph, null if its chains
+    // weren't contracted
+    @Nullable
+    static ChainContractionPruner getContraction(String name) {
+        loadGraph(name);
+        return CONTRACTION_CACHE.get(name);
+    }
+
+    // the street name of a connection of a graph, null if it has none
+    @Nullable
+    static String getStreetName(String name, Connection<MultiAttributeData> c) {
+        loadGraph(name);
+        if (!c.data().isPresent()) {
+            return null;
+        }
+        final Object n = c.data().get().getAttributes().get("n");
+        final AttributeDictionary dictionary = DICTIONARY_CACHE.get(name);
+        if (n instanceof Integer && dictionary != null) {
+            return dictionary.getName((Integer) n);
+        }
+        return n instanceof String ? (String) n : null;
+    }
+
+    // shortest path trees of the depots of a graph, the depots differ per
+    // seed so the most recent sets are kept
+    static HubDistanceTable getHubTable(String name, List<Point> depots) {
+        return HUB_CACHE.getUnchecked(new HubKey(name, depots));
+    }
+
+    // road distance nearest neighbour index, built once per graph
+    static NetworkKnn getNetworkKnn(String name) {
+        return KNN_CACHE.computeIfAbsent(name, n -> NetworkKnn.create(loadGraph(n)));
+    }
+
+    // spatial index of a loaded graph, built once per graph
+    static SpatialIndex getSpatialIndex(String name) {
+        return INDEX_CACHE.computeIfAbsent(name, n -> SpatialIndex.create(loadGraph(n)));
+    }
+
+    // a graph and a set of depots
+    private static final class HubKey {
+        final String graph;
+        final List<Point> depots;
+
+        HubKey(String graph, List<Point> depots) {
+            this.graph = graph;
+            this.depots = ImmutableList.copyOf(depots);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            return o instanceof HubKey && graph.equals(((HubKey) o).graph)
+                    && depots.equals(((HubKey) o).depots);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * graph.hashCode() + depots.hashCode();
+        }
+    }
+
     /**
      * A customer with very permissive time windows.
      */
@@ -0,0 +1,189 @@
+package com.github.couriersim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * The parcels that pickup taxis dropped at the depot, waiting for a delivery
+ * taxi. Parcels are bucketed by the zone (a cell of a grid over the map) of
+ * their delivery location and, within a zone, by needed capacity. A delivery
+ * taxi takes a batch at once: the zone with the most stock is the seed and
+ * the batch is filled from the rings of zones around it, largest parcels that
+ * still fit first. This keeps the routes of a batch close together and the
+ * cost of a batch depends on the number of zones and parcels taken, not on
+ * the stock. A batch stays reserved until its parcels are picked up, they
+ * are still on the road at the depot until then.
+ */
+final class DepotInventory {
+
+    private static final int GRID_SIZE = 16;
+
+    private final double minX;
+    private final double minY;
+    private final double zoneWidth;
+    private final double zoneHeight;
+    private final Zone[] zones = new Zone[GRID_SIZE * GRID_SIZE];
+    // zones with stock, most stock first
+    private final TreeSet<Zone> stocked = new TreeSet<>((a, b) -> a.count != b.count
+            ? Integer.compare(b.count, a.count) : Integer.compare(a.index, b.index));
+    private final Map<Parcel, Zone> located = new IdentityHashMap<>();
+    // taken in a batch, not yet picked up
+    private final Set<Parcel> reserved =
+            Collections.newSetFromMap(new IdentityHashMap<Parcel, Boolean>());
+
+    /**
+     * @param min The lower left corner of the map.
+     * @param max The upper right corner of the map.
+     */
+    DepotInventory(Point min, Point max) {
+        minX = min.x;
+        minY = min.y;
+        zoneWidth = Math.max(max.x - min.x, Double.MIN_NORMAL) / GRID_SIZE;
+        zoneHeight = Math.max(max.y - min.y, Double.MIN_NORMAL) / GRID_SIZE;
+        for (int i = 0; i < zones.length; i++) {
+            zones[i] = new Zone(i);
+        }
+    }
+
+    void add(Parcel p) {
+        if (located.containsKey(p)) {
+            return;
+        }
+        final Zone zone = zones[zone(p.getDeliveryLocation())];
+        stocked.remove(zone);
+        zone.add(p);
+        stocked.add(zone);
+        located.put(p, zone);
+    }
+
+    /**
+     * @return <code>true</code> if the parcel is in stock or reserved for a
+     *         delivery taxi.
+     */
+    boolean contains(Parcel p) {
+        return located.containsKey(p) || reserved.contains(p);
+    }
+
+    // no parcel in stock, there may be reserved ones
+    boolean isEmpty() {
+        return located.isEmpty();
+    }
+
+    // no parcel in stock or reserved
+    boolean isClear() {
+        return located.isEmpty() && reserved.isEmpty();
+    }
+
+    /**
+     * Ends the reservation of a parcel of a batch, called once it is picked
+     * up.
+     */
+    void pickedUp(Parcel p) {
+        reserved.remove(p);
+    }
+
+    int size() {
+        return located.size();
+    }
+
+    /**
+     * Removes a batch of parcels for one delivery taxi, they are reserved
+     * until {@link #pickedUp(Parcel)}.
+     * @param capacity The available capacity of the taxi.
+     * @return The parcels, their total needed capacity fits.
+     */
+    List<Parcel> takeBatch(double capacity) {
+        final List<Parcel> batch = new ArrayList<>();
+        if (stocked.isEmpty()) {
+            return batch;
+        }
+        final Zone seed = stocked.first();
+        final int col = seed.index % GRID_SIZE;
+        final int row = seed.index / GRID_SIZE;
+        double remaining = capacity;
+        for (int r = 0; r < GRID_SIZE && remaining > 0 && !stocked.isEmpty(); r++) {
+            for (int y = row - r; y <= row + r; y++) {
+                for (int x = col - r; x <= col + r; x++) {
+                    // only the ring at distance r
+                    if (Math.max(Math.abs(x - col), Math.abs(y - row)) != r
+                            || x < 0 || y < 0 || x >= GRID_SIZE || y >= GRID_SIZE) {
+                        continue;
+                    }
+                    final Zone zone = zones[y * GRID_SIZE + x];
+                    if (zone.count == 0) {
+                        continue;
+                    }
+                    stocked.remove(zone);
+                    remaining = zone.take(remaining, batch);
+                    if (zone.count > 0) {
+                        stocked.add(zone);
+                    }
+                }
+            }
+        }
+        for (Parcel p : batch) {
+            located.remove(p);
+            reserved.add(p);
+        }
+        return batch;
+    }
+
+    private int zone(Point p) {
+        final int col = clamp((int) ((p.x - minX) / zoneWidth));
+        final int row = clamp((int) ((p.y - minY) / zoneHeight));
+        return row * GRID_SIZE + col;
+    }
+
+    private static int clamp(int i) {
+        return i < 0 ? 0 : i >= GRID_SIZE ? GRID_SIZE - 1 : i;
+    }
+
+    private static final class Zone {
+        final int index;
+        int count;
+        // bySize.get(c): parcels that need at most c + 1 capacity
+        final List<ArrayDeque<Parcel>> bySize = new ArrayList<>();
+
+        Zone(int index) {
+            this.index = index;
+        }
+
+        void add(Parcel p) {
+            final int size = Math.max(0, (int) Math.ceil(p.getNeededCapacity()) - 1);
+            while (bySize.size() <= size) {
+                bySize.add(new ArrayDeque<Parcel>());
+            }
+            bySize.get(size).add(p);
+            count++;
+        }
+
+        // takes parcels, largest that fit first, returns the capacity left
+        double take(double remaining, List<Parcel> batch) {
+            final int sizes = Math.min(bySize.size(), (int) Math.ceil(remaining));
+            for (int size = sizes - 1; size >= 0; size--) {
+                // every parcel of the bucket needs more than size
+                final Iterator<Parcel> it = bySize.get(size).iterator();
+                while (it.hasNext() && remaining > size) {
+                    final Parcel p = it.next();
+                    if (p.getNeededCapacity() <= remaining) {
+                        it.remove();
+                        batch.add(p);
+                        remaining -= p.getNeededCapacity();
+                        count--;
+                    }
+                }
+            }
+            return remaining;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.couriersim;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+
+/**
+ * Assigns new orders to the {@link RoutePlan}s of the taxis when they use
+ * {@link Taxi.Strategy#ROUTE_PLAN}. The default is the
+ * {@link RoutePlanDispatcher}, other implementations are chosen with
+ * {@link SimConfig.Builder#dispatchBy(Factory)}.
+ */
+interface Dispatcher {
+
+    /**
+     * Called for every taxi before it is registered.
+     */
+    void addTaxi(Taxi taxi);
+
+    /**
+     * Releases the resources of the dispatcher once the simulation stopped.
+     */
+    default void close() {}
+
+    /**
+     * Creates a dispatcher and registers its listeners.
+     */
+    interface Factory {
+        Dispatcher install(Simulator simulator, RoadModel rm, PDPModel pm);
+    }
+}
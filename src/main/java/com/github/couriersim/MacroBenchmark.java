@@ -0,0 +1,294 @@
+package com.github.couriersim;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.metrics.ResultStore;
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+
+/**
+ * Runs whole headless simulations over a fixed matrix of maps, fleet sizes,
+ * order rates and strategies and compares them with a stored baseline:
+ * <pre>
+ * MacroBenchmark [baseline.json] [--write] [--hours H] [--store DIR]
+ * </pre>
+ * Per case it measures the simulated time per wall-clock second, the peak
+ * heap, the allocation rate (bytes per simulated hour) and the final profit
+ * of the fleet. Without <code>--write</code> the results are compared with
+ * the baseline and the process exits with 1 if any case regressed by more
+ * than its threshold. Cases that got faster but earn less (or the other way
+ * round) are reported as trade-offs. With <code>--store</code> the metrics of
+ * every case are also appended to a {@link ResultStore}, labelled with the
+ * name of the case.
+ */
+public final class MacroBenchmark {
+
+    static final String[] MAPS = {
+            CourierSim.MAP_FILE, "synthetic:grid:60x60:1", "synthetic:ring:20x40:1"};
+    static final int[] FLEETS = {2, 10, 40};
+    static final double[] ORDER_PROBABILITIES = {.003, .02};
+    static final Taxi.Strategy[] STRATEGIES = {
+            Taxi.Strategy.NEAREST_NEIGHBOUR, Taxi.Strategy.MULTI_REGION};
+
+    // allowed relative regressions
+    static final double SPEED_THRESHOLD = .10;
+    static final double HEAP_THRESHOLD = .20;
+    static final double ALLOCATION_THRESHOLD = .20;
+    static final double PROFIT_THRESHOLD = .02;
+
+    private static final String DEFAULT_BASELINE = "benchmarks/baseline.json";
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private MacroBenchmark() {}
+
+    /**
+     * The measurements of one case.
+     */
+    static final class Result {
+        final String name;
+        // simulated ms per wall clock ms
+        final double speed;
+        final long peakHeap;
+        // bytes per simulated hour, -1 if the JVM can't measure it
+        final double allocationRate;
+        final double profit;
+
+        Result(String name, double speed, long peakHeap, double allocationRate,
+               double profit) {
+            this.name = name;
+            this.speed = speed;
+            this.peakHeap = peakHeap;
+            this.allocationRate = allocationRate;
+            this.profit = profit;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-60s speed=%.0fx heap=%dMB alloc=%.1fMB/h profit=%.2f",
+                    name, speed, peakHeap >> 20, allocationRate / (1 << 20), profit);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String baseline = DEFAULT_BASELINE;
+        boolean write = false;
+        long hours = 2;
+        ResultStore store = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--write")) {
+                write = true;
+            } else if (args[i].equals("--hours")) {
+                hours = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--store")) {
+                store = ResultStore.open(new File(args[++i]));
+            } else {
+                baseline = args[i];
+            }
+        }
+
+        // warm up the JIT on the smallest case, not measured
+        run(MAPS[0], FLEETS[0], ORDER_PROBABILITIES[0], STRATEGIES[0], hours, null);
+
+        final List<Result> results = new ArrayList<>();
+        try (ResultStore.Writer writer = store != null ? store.writer() : null) {
+            for (String map : MAPS) {
+                for (int fleet : FLEETS) {
+                    for (double probability : ORDER_PROBABILITIES) {
+                        for (Taxi.Strategy strategy : STRATEGIES) {
+                            final Result r = run(map, fleet, probability, strategy,
+                                    hours, writer);
+                            System.out.println(r);
+                            results.add(r);
+                        }
+                    }
+                }
+                CourierSim.evictGraph(map);
+            }
+        }
+
+        final File file = new File(baseline);
+        if (write) {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            Files.write(file.toPath(), toJson(results).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Baseline written to " + file);
+            return;
+        }
+        if (!file.exists()) {
+            System.out.println("No baseline at " + file + ", run with --write to create one.");
+            return;
+        }
+        final Map<String, Result> expected = fromJson(
+                new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        if (!compare(expected, results)) {
+            System.exit(1);
+        }
+    }
+
+    static Result run(String map, int fleet, double probability,
+                      Taxi.Strategy strategy, long hours,
+                      @Nullable ResultStore.Writer writer) {
+        final String name = String.format(Locale.ROOT, "%s/taxis=%d/p=%s/%s",
+                map, fleet, probability, strategy);
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final SimConfig.Builder config = SimConfig.builder()
+                .headless(true)
+                .graphFile(map)
+                .endTime(hours * HOUR)
+                .numTaxis(fleet)
+                .orderProbability(probability)
+                .strategy(strategy);
+        if (writer != null) {
+            config.results(writer, name);
+        }
+        final Simulator sim = CourierSim.run(config.build(), null, null, null);
+        final double wallMs = (System.nanoTime() - start) / 1e6;
+        final long allocatedAfter = allocatedBytes();
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        double profit = 0;
+        final RoadModel rm = sim.getModelProvider().getModel(RoadModel.class);
+        for (RoadUser ru : rm.getObjects(CourierSim.Pred.TAXIS)) {
+            profit += ((Taxi) ru).getProfit();
+        }
+        final double allocationRate = allocatedBefore < 0 ? -1
+                : (double) (allocatedAfter - allocatedBefore) / hours;
+        return new Result(name, hours * HOUR / wallMs, peak, allocationRate, profit);
+    }
+
+    /**
+     * @return <code>true</code> if no case regressed beyond its thresholds.
+     */
+    static boolean compare(Map<String, Result> expected, List<Result> actual) {
+        boolean ok = true;
+        for (Result r : actual) {
+            final Result b = expected.get(r.name);
+            if (b == null) {
+                System.out.println("NEW        " + r.name);
+                continue;
+            }
+            final double speed = change(r.speed, b.speed);
+            final double profit = change(r.profit, b.profit);
+            final List<String> regressions = new ArrayList<>();
+            if (speed < -SPEED_THRESHOLD) {
+                regressions.add(percent("speed", speed));
+            }
+            if (change(r.peakHeap, b.peakHeap) > HEAP_THRESHOLD) {
+                regressions.add(percent("heap", change(r.peakHeap, b.peakHeap)));
+            }
+            if (r.allocationRate >= 0 && b.allocationRate >= 0
+                    && change(r.allocationRate, b.allocationRate) > ALLOCATION_THRESHOLD) {
+                regressions.add(percent("allocation",
+                        change(r.allocationRate, b.allocationRate)));
+            }
+            if (profit < -PROFIT_THRESHOLD) {
+                regressions.add(percent("profit", profit));
+            }
+            if (!regressions.isEmpty()) {
+                ok = false;
+                System.out.println("REGRESSION " + r.name + " " + regressions);
+            }
+            if (speed > SPEED_THRESHOLD && profit < -PROFIT_THRESHOLD
+                    || speed < -SPEED_THRESHOLD && profit > PROFIT_THRESHOLD) {
+                System.out.println("TRADE-OFF  " + r.name + " "
+                        + percent("speed", speed) + " " + percent("profit", profit));
+            }
+        }
+        return ok;
+    }
+
+    // relative change, profits can be negative so the magnitude is the base
+    private static double change(double actual, double expected) {
+        if (expected == 0) {
+            return actual == 0 ? 0 : Math.signum(actual);
+        }
+        return (actual - expected) / Math.abs(expected);
+    }
+
+    private static String percent(String what, double change) {
+        return String.format(Locale.ROOT, "%s %+.1f%%", what, change * 100);
+    }
+
+    // -1 if the JVM doesn't support allocation counting
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean hotspot =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()
+                    && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    static String toJson(List<Result> results) {
+        final StringBuilder sb = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            final Result r = results.get(i);
+            sb.append(String.format(Locale.ROOT,
+                    "  {\"name\": \"%s\", \"speed\": %s, \"peakHeap\": %d,"
+                            + " \"allocationRate\": %s, \"profit\": %s}",
+                    r.name, r.speed, r.peakHeap, r.allocationRate, r.profit));
+            sb.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        return sb.append("]\n").toString();
+    }
+
+    // reads what toJson writes, the names don't contain quotes
+    static Map<String, Result> fromJson(String json) {
+        final Pattern object = Pattern.compile("\\{([^}]*)\\}");
+        final Pattern field = Pattern.compile("\"(\\w+)\"\\s*:\\s*(\"[^\"]*\"|[-+0-9.eE]+)");
+        final Map<String, Result> results = new LinkedHashMap<>();
+        final Matcher o = object.matcher(json);
+        while (o.find()) {
+            final Map<String, String> fields = new LinkedHashMap<>();
+            final Matcher f = field.matcher(o.group(1));
+            while (f.find()) {
+                fields.put(f.group(1), f.group(2));
+            }
+            final String name = fields.get("name");
+            if (name == null) {
+                throw new IllegalArgumentException("Baseline entry without name: " + o.group());
+            }
+            final Result r = new Result(name.substring(1, name.length() - 1),
+                    Double.parseDouble(fields.get("speed")),
+                    Long.parseLong(fields.get("peakHeap")),
+                    Double.parseDouble(fields.get("allocationRate")),
+                    Double.parseDouble(fields.get("profit")));
+            results.put(r.name, r);
+        }
+        return results;
+    }
+}
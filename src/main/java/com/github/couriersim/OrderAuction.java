@@ -0,0 +1,202 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+/**
+ * Contract net for new orders: every new parcel is announced to the taxis
+ * within range of its pickup location, the free taxis among them bid the
+ * profit they expect from it and the best bid wins. All messages go through
+ * the {@link AuctionChannel}, so a round takes a few ticks:
+ * <ol>
+ * <li>the auction broadcasts a {@link CallForBids},</li>
+ * <li>taxis read it in the next tick and send at most one {@link Bid} each,
+ * for the call that pays them most,</li>
+ * <li>the auction awards every parcel to its highest bid (the lowest taxi id
+ * on a tie) and tells the other bidders they lost.</li>
+ * </ol>
+ * A parcel is awarded to exactly one taxi, so there are no claim conflicts.
+ * Parcels without bids are announced again every {@link #REANNOUNCE_TICKS}
+ * ticks, with a range that doubles up to {@link #MAX_WIDENINGS} times.
+ */
+final class OrderAuction implements TickListener, Listener, AuctionChannel.Receiver {
+
+    static final long REANNOUNCE_TICKS = 10;
+    static final int MAX_WIDENINGS = 4;
+
+    private final RoadModel roadModel;
+    private final AuctionChannel channel;
+    private final double range;
+    // parcels that are not awarded yet, in arrival order
+    private final Map<Parcel, Auction> open = new LinkedHashMap<>();
+    private final List<Bid> bids = new ArrayList<>();
+    private long awarded;
+
+    OrderAuction(RoadModel roadModel, AuctionChannel channel, double range) {
+        this.roadModel = roadModel;
+        this.channel = channel;
+        this.range = range;
+    }
+
+    /**
+     * @param range The range of the first announcement of a parcel, in graph
+     *          units.
+     */
+    static OrderAuction install(Simulator simulator, RoadModel rm, PDPModel pm,
+                                double range) {
+        final AuctionChannel channel = new AuctionChannel(rm, range);
+        final OrderAuction auction = new OrderAuction(rm, channel, range);
+        pm.getEventAPI().addListener(auction, PDPModelEventType.NEW_PARCEL);
+        simulator.addTickListener(auction);
+        simulator.addTickListener(channel);
+        return auction;
+    }
+
+    void addTaxi(Taxi taxi) {
+        channel.register(taxi);
+    }
+
+    /**
+     * Bids for a parcel, answered with an {@link Award} or a {@link Reject}.
+     */
+    void bid(Taxi taxi, Parcel parcel, double profit) {
+        channel.send(this, new Bid(parcel, taxi, profit));
+    }
+
+    long getAwarded() {
+        return awarded;
+    }
+
+    int getOpen() {
+        return open.size();
+    }
+
+    AuctionChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final Parcel p = ((PDPModelEvent) e).parcel;
+        if (p != null) {
+            open.put(p, new Auction(p));
+        }
+    }
+
+    @Override
+    public void receive(Message message) {
+        if (message instanceof Bid) {
+            bids.add((Bid) message);
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        final long tick = timeLapse.getStartTime() / timeLapse.getTickLength();
+        for (Bid bid : bids) {
+            final Auction a = open.get(bid.parcel);
+            if (a == null) {
+                channel.send(bid.taxi, new Reject(bid.parcel));
+            } else if (a.best == null || bid.profit > a.best.profit
+                    || bid.profit == a.best.profit && bid.taxi.getId() < a.best.taxi.getId()) {
+                if (a.best != null) {
+                    channel.send(a.best.taxi, new Reject(bid.parcel));
+                }
+                a.best = bid;
+            } else {
+                channel.send(bid.taxi, new Reject(bid.parcel));
+            }
+        }
+        bids.clear();
+        for (Iterator<Auction> it = open.values().iterator(); it.hasNext();) {
+            final Auction a = it.next();
+            if (!roadModel.containsObject(a.parcel)) {
+                it.remove();
+            } else if (a.best != null) {
+                channel.send(a.best.taxi, new Award(a.parcel));
+                awarded++;
+                it.remove();
+            } else if (a.announced < 0 || tick - a.announced >= REANNOUNCE_TICKS) {
+                channel.broadcast(a.parcel.getPickupLocation(),
+                        range * (1 << Math.min(a.widenings, MAX_WIDENINGS)),
+                        new CallForBids(a.parcel));
+                a.announced = tick;
+                a.widenings++;
+            }
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    /**
+     * A message of the auction protocol.
+     */
+    abstract static class Message {
+        final Parcel parcel;
+
+        Message(Parcel parcel) {
+            this.parcel = parcel;
+        }
+    }
+
+    /** Asks the taxis in range to bid for a parcel. */
+    static final class CallForBids extends Message {
+        CallForBids(Parcel parcel) {
+            super(parcel);
+        }
+    }
+
+    /** The profit a taxi expects from a parcel. */
+    static final class Bid extends Message {
+        final Taxi taxi;
+        final double profit;
+
+        Bid(Parcel parcel, Taxi taxi, double profit) {
+            super(parcel);
+            this.taxi = taxi;
+            this.profit = profit;
+        }
+    }
+
+    /** The parcel is now the taxi's, nobody else goes there. */
+    static final class Award extends Message {
+        Award(Parcel parcel) {
+            super(parcel);
+        }
+    }
+
+    /** Another taxi got the parcel. */
+    static final class Reject extends Message {
+        Reject(Parcel parcel) {
+            super(parcel);
+        }
+    }
+
+    private static final class Auction {
+        final Parcel parcel;
+        @Nullable Bid best;
+        long announced = -1;
+        int widenings;
+
+        Auction(Parcel parcel) {
+            this.parcel = parcel;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * The parcels that wait to be picked up, shared by all taxis. Parcels are
+ * ordered by pickup duration (the order of {@link PickupDurationComparator})
+ * and then by arrival, and are either unclaimed or claimed by a taxi that
+ * heads to them. The book is maintained incrementally: parcels are added when
+ * they are registered and removed when their pickup starts, claims move them
+ * between the unclaimed and claimed lists.
+ * <p>
+ * Every distinct pickup duration has a bucket with two intrusive linked lists
+ * in arrival order, the buckets are kept in a sorted array. Iterating the
+ * oldest unclaimed parcels with {@link #firstUnclaimed()} and
+ * {@link #nextUnclaimed(Parcel)} therefore neither allocates nor sorts.
+ * <p>
+ * The parcels are also kept by pickup location, so a search along the roads
+ * can look up the parcels on a node with {@link #at(Point)}.
+ */
+final class OrderBook implements Listener {
+
+    private final Map<Parcel, Entry> entries = new IdentityHashMap<>();
+    // sorted by key
+    private final List<Bucket> buckets = new ArrayList<>();
+    private final Map<Point, List<Parcel>> byLocation = new HashMap<>();
+    private long arrivals;
+    private int unclaimed;
+
+    static OrderBook install(PDPModel pm) {
+        final OrderBook book = new OrderBook();
+        pm.getEventAPI().addListener(book, PDPModelEventType.NEW_PARCEL,
+                PDPModelEventType.START_PICKUP);
+        return book;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final Parcel p = ((PDPModelEvent) e).parcel;
+        if (p == null) {
+            return;
+        }
+        if (e.getEventType() == PDPModelEventType.NEW_PARCEL) {
+            add(p);
+        } else {
+            remove(p);
+        }
+    }
+
+    /**
+     * Adds a parcel that waits for pickup, also used for parcels that are put
+     * back on the road.
+     */
+    void add(Parcel p) {
+        if (entries.containsKey(p)) {
+            return;
+        }
+        final Entry entry = new Entry(p, arrivals++, bucket(p.getPickupDuration()));
+        entries.put(p, entry);
+        entry.bucket.unclaimed.append(entry);
+        unclaimed++;
+        List<Parcel> here = byLocation.get(p.getPickupLocation());
+        if (here == null) {
+            here = new ArrayList<>(1);
+            byLocation.put(p.getPickupLocation(), here);
+        }
+        here.add(p);
+    }
+
+    /**
+     * Removes a parcel, e.g. because it is picked up.
+     */
+    void remove(Parcel p) {
+        final Entry entry = entries.remove(p);
+        if (entry == null) {
+            return;
+        }
+        if (entry.claimant == null) {
+            entry.bucket.unclaimed.unlink(entry);
+            unclaimed--;
+        } else {
+            entry.bucket.claimed.unlink(entry);
+        }
+        final List<Parcel> here = byLocation.get(p.getPickupLocation());
+        here.remove(p);
+        if (here.isEmpty()) {
+            byLocation.remove(p.getPickupLocation());
+        }
+    }
+
+    /**
+     * Claims a parcel for a taxi, a claim of another taxi is taken over.
+     */
+    void claim(Parcel p, Object claimant) {
+        final Entry entry = entries.get(p);
+        if (entry == null || entry.claimant == claimant) {
+            return;
+        }
+        if (entry.claimant == null) {
+            entry.bucket.unclaimed.unlink(entry);
+            entry.bucket.claimed.append(entry);
+            unclaimed--;
+        }
+        entry.claimant = claimant;
+    }
+
+    /**
+     * Releases the claim of the specified taxi on a parcel, if it has one.
+     */
+    void release(Parcel p, Object claimant) {
+        final Entry entry = entries.get(p);
+        if (entry == null || entry.claimant != claimant) {
+            return;
+        }
+        entry.claimant = null;
+        entry.bucket.claimed.unlink(entry);
+        entry.bucket.unclaimed.insertByArrival(entry);
+        unclaimed++;
+    }
+
+    /**
+     * @return The parcels that wait at a location, claimed or not,
+     *         <code>null</code> if there are none.
+     */
+    @Nullable
+    List<Parcel> at(Point location) {
+        return byLocation.get(location);
+    }
+
+    boolean contains(Parcel p) {
+        return entries.containsKey(p);
+    }
+
+    /**
+     * @return Whether a taxi other than the specified one claimed the parcel.
+     */
+    boolean isClaimedByOther(Parcel p, Object claimant) {
+        final Entry entry = entries.get(p);
+        return entry != null && entry.claimant != null && entry.claimant != claimant;
+    }
+
+    /**
+     * @return The unclaimed parcel with the shortest pickup duration that
+     *         arrived first, <code>null</code> if all parcels are claimed.
+     */
+    @Nullable
+    Parcel firstUnclaimed() {
+        return firstFrom(0);
+    }
+
+    /**
+     * @param p An unclaimed parcel.
+     * @return The unclaimed parcel that follows it, <code>null</code> if it is
+     *         the last.
+     */
+    @Nullable
+    Parcel nextUnclaimed(Parcel p) {
+        final Entry entry = entries.get(p);
+        if (entry.next != null) {
+            return entry.next.parcel;
+        }
+        return firstFrom(entry.bucket.index + 1);
+    }
+
+    int getUnclaimed() {
+        return unclaimed;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Nullable
+    private Parcel firstFrom(int bucket) {
+        for (int i = bucket; i < buckets.size(); i++) {
+            final Entry head = buckets.get(i).unclaimed.head;
+            if (head != null) {
+                return head.parcel;
+            }
+        }
+        return null;
+    }
+
+    private Bucket bucket(long key) {
+        int lo = 0;
+        int hi = buckets.size() - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long k = buckets.get(mid).key;
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return buckets.get(mid);
+            }
+        }
+        // new pickup durations are rare, the indices after it shift
+        final Bucket bucket = new Bucket(key);
+        buckets.add(lo, bucket);
+        for (int i = lo; i < buckets.size(); i++) {
+            buckets.get(i).index = i;
+        }
+        return bucket;
+    }
+
+    private static final class Entry {
+        final Parcel parcel;
+        final long arrival;
+        final Bucket bucket;
+        @Nullable Object claimant;
+        @Nullable Entry prev;
+        @Nullable Entry next;
+
+        Entry(Parcel parcel, long arrival, Bucket bucket) {
+            this.parcel = parcel;
+            this.arrival = arrival;
+            this.bucket = bucket;
+        }
+    }
+
+    private static final class Bucket {
+        final long key;
+        int index;
+        final EntryList unclaimed = new EntryList();
+        final EntryList claimed = new EntryList();
+
+        Bucket(long key) {
+            this.key = key;
+        }
+    }
+
+    // doubly linked list in arrival order
+    private static final class EntryList {
+        @Nullable Entry head;
+        @Nullable Entry tail;
+
+        void append(Entry e) {
+            e.prev = tail;
+            e.next = null;
+            if (tail == null) {
+                head = e;
+            } else {
+                tail.next = e;
+            }
+            tail = e;
+        }
+
+        // released claims are mostly recent, so this searches from the tail
+        void insertByArrival(Entry e) {
+            Entry after = tail;
+            while (after != null && after.arrival > e.arrival) {
+                after = after.prev;
+            }
+            e.prev = after;
+            e.next = after == null ? head : after.next;
+            if (e.next == null) {
+                tail = e;
+            } else {
+                e.next.prev = e;
+            }
+            if (after == null) {
+                head = e;
+            } else {
+                after.next = e;
+            }
+        }
+
+        void unlink(Entry e) {
+            if (e.prev == null) {
+                head = e.next;
+            } else {
+                e.prev.next = e.next;
+            }
+            if (e.next == null) {
+                tail = e.prev;
+            } else {
+                e.next.prev = e.prev;
+            }
+            e.prev = null;
+            e.next = null;
+        }
+    }
+}
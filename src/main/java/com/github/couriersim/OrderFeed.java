@@ -0,0 +1,724 @@
+package com.github.couriersim;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.index.SpatialIndex;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Real orders read from a file instead of random arrivals, see
+ * {@link SimConfig.Builder#orderFeed(File)}. Every order has a time in
+ * milliseconds, a pickup and a delivery coordinate (WGS84 latitude and
+ * longitude) and optionally a capacity. Three formats are supported, chosen by
+ * the file extension:
+ * <ul>
+ * <li><code>.csv</code>: <code>time,pickup_lat,pickup_lon,delivery_lat,delivery_lon[,capacity]</code>,
+ * lines that don't start with a number (headers, comments) are skipped,</li>
+ * <li><code>.ndjson</code> or <code>.jsonl</code>: one object per line with
+ * these names as keys, other keys are ignored,</li>
+ * <li><code>.bin</code>: fixed width big endian records as written by
+ * {@link #convert(File, File)}.</li>
+ * </ul>
+ * The file is memory mapped in windows and parsed straight from the mapped
+ * bytes, no strings are created per order. A reader thread parses and snaps
+ * the orders to the nearest nodes of the graph in batches of primitive
+ * arrays, at most a fixed number of batches are read ahead and consumed
+ * batches are reused. Order times are relative to the first order, times
+ * that go back are raised to the time of the order before.
+ */
+public final class OrderFeed implements Closeable {
+
+    static final int MAGIC = 0x43534f46;
+    static final byte VERSION = 1;
+    // time, four coordinates and the capacity
+    static final int RECORD_SIZE = 8 + 4 * 8 + 4;
+
+    /** Number of batches that are read ahead by default. */
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    static final int BATCH_SIZE = 4096;
+    private static final long WINDOW_SIZE = 64L << 20;
+    private static final int MAX_LINE = 4096;
+
+    private final MappedInput input;
+    private final Parser parser;
+    private final SpatialIndex index;
+    private final BlockingQueue<Batch> full;
+    private final BlockingQueue<Batch> free;
+    private final Thread reader;
+    @Nullable
+    private volatile Exception failure;
+
+    // the batch that is consumed and the position of the next order in it
+    @Nullable
+    private Batch current;
+    private int next;
+    private boolean ended;
+    private long consumed;
+
+    OrderFeed(MappedInput input, Parser parser, SpatialIndex index, int readAhead) {
+        this.input = input;
+        this.parser = parser;
+        this.index = index;
+        // room for the end marker, the reader never blocks on it
+        full = new ArrayBlockingQueue<>(readAhead + 1);
+        free = new ArrayBlockingQueue<>(readAhead);
+        for (int i = 0; i < readAhead; i++) {
+            free.add(new Batch(BATCH_SIZE));
+        }
+        reader = new Thread(this::readAll, "order-feed");
+        reader.setDaemon(true);
+    }
+
+    /**
+     * Opens a feed and starts reading ahead.
+     * @param file The order file.
+     * @param index Snaps the coordinates to the graph.
+     * @param readAhead The maximum number of batches of orders that are read
+     *          before they are consumed.
+     * @return The feed, positioned at the first order.
+     * @throws IOException If the file can not be opened or has an unknown
+     *          extension.
+     */
+    public static OrderFeed open(File file, SpatialIndex index, int readAhead)
+            throws IOException {
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("readAhead must be positive: " + readAhead);
+        }
+        final MappedInput in = new MappedInput(file);
+        try {
+            final OrderFeed feed = new OrderFeed(in, parser(file, in), index, readAhead);
+            feed.reader.start();
+            return feed;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The time of the next order in milliseconds after the first
+     *         one, {@link Long#MAX_VALUE} if all orders are consumed.
+     */
+    public long peekTime() {
+        return fill() ? current.time[next] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return The node closest to the pickup of the next order.
+     */
+    public Point getPickupLocation() {
+        checkNext();
+        return current.pickup[next];
+    }
+
+    /**
+     * @return The node closest to the delivery of the next order.
+     */
+    public Point getDeliveryLocation() {
+        checkNext();
+        return current.delivery[next];
+    }
+
+    public int getNeededCapacity() {
+        checkNext();
+        return current.capacity[next];
+    }
+
+    /**
+     * Consumes the next order.
+     */
+    public void next() {
+        checkNext();
+        next++;
+        consumed++;
+    }
+
+    /**
+     * @return The number of orders consumed so far.
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Stops reading ahead and releases the file.
+     */
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        input.close();
+    }
+
+    /**
+     * Converts a CSV or NDJSON order file to the binary format, which needs
+     * no parsing. Times and coordinates are
+     * copied as they are.
+     * @param in The CSV or NDJSON file.
+     * @param out The binary file.
+     * @return The number of orders.
+     * @throws IOException If a file can not be read or written.
+     */
+    public static long convert(File in, File out) throws IOException {
+        long n = 0;
+        try (MappedInput input = new MappedInput(in);
+             DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(out), 1 << 16))) {
+            final Parser parser = parser(in, input);
+            final Batch b = new Batch(1);
+            os.writeInt(MAGIC);
+            os.writeByte(VERSION);
+            while (parser.next(b, 0)) {
+                os.writeLong(b.time[0]);
+                for (int c = 0; c < 4; c++) {
+                    os.writeDouble(b.coords[c]);
+                }
+                os.writeInt(b.capacity[0]);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Usage: <code>OrderFeed convert orders.csv orders.bin</code>
+     * @param args The command line arguments.
+     * @throws IOException If a file can not be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("convert")) {
+            System.out.println(convert(new File(args[1]), new File(args[2])) + " orders");
+        } else {
+            System.err.println("usage: OrderFeed convert <in.csv|in.ndjson> <out.bin>");
+        }
+    }
+
+    private static Parser parser(File file, MappedInput in) throws IOException {
+        final String name = file.getName();
+        if (name.endsWith(".csv")) {
+            return new CsvParser(in);
+        } else if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+            return new JsonParser(in);
+        } else if (name.endsWith(".bin")) {
+            return new BinaryParser(in);
+        }
+        throw new IOException("Unknown order file format: " + file);
+    }
+
+    private void checkNext() {
+        if (!fill()) {
+            throw new IllegalStateException("No more orders");
+        }
+    }
+
+    // makes sure the next order is in the current batch, false at the end
+    private boolean fill() {
+        while (!ended && (current == null || next == current.size)) {
+            if (current != null) {
+                ended = current.last;
+                free.add(current);
+                current = null;
+            }
+            if (ended) {
+                break;
+            }
+            final Batch b;
+            try {
+                b = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (b == Batch.FAILED) {
+                ended = true;
+                throw new IllegalStateException("Reading orders failed", failure);
+            }
+            current = b;
+            next = 0;
+        }
+        return !ended && current != null && next < current.size;
+    }
+
+    private void readAll() {
+        long first = Long.MIN_VALUE;
+        long last = 0;
+        try {
+            boolean more = true;
+            while (more) {
+                final Batch b = free.take();
+                int n = 0;
+                while (n < BATCH_SIZE && (more = parser.next(b, n))) {
+                    if (first == Long.MIN_VALUE) {
+                        first = b.time[n];
+                    }
+                    last = Math.max(last, b.time[n] - first);
+                    b.time[n] = last;
+                    final int c = 4 * n;
+                    b.pickup[n] = index.nearestNode(b.coords[c], b.coords[c + 1]);
+                    b.delivery[n] = index.nearestNode(b.coords[c + 2], b.coords[c + 3]);
+                    n++;
+                }
+                b.size = n;
+                b.last = !more;
+                full.put(b);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            full.offer(Batch.FAILED);
+        }
+    }
+
+    // orders in primitive arrays, filled by the reader thread
+    private static final class Batch {
+        static final Batch FAILED = new Batch(0);
+
+        final long[] time;
+        // pickup lat, pickup lon, delivery lat, delivery lon per order
+        final double[] coords;
+        final int[] capacity;
+        final Point[] pickup;
+        final Point[] delivery;
+        int size;
+        boolean last;
+
+        Batch(int n) {
+            time = new long[n];
+            coords = new double[4 * n];
+            capacity = new int[n];
+            pickup = new Point[n];
+            delivery = new Point[n];
+        }
+    }
+
+    // a read-only file that is mapped in windows, so files larger than 2 GB
+    // work and only a window is mapped at a time
+    static final class MappedInput implements Closeable {
+        final FileChannel channel;
+        final long size;
+        MappedByteBuffer buffer;
+        // file position of the first byte of the buffer
+        long base;
+        // file position of the next byte to read
+        long pos;
+
+        MappedInput(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            size = channel.size();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(WINDOW_SIZE, size));
+        }
+
+        /**
+         * Maps the window again if less than n bytes from the position are
+         * mapped and the file has more.
+         * @return The index of the position in the buffer.
+         */
+        int require(int n) throws IOException {
+            final long end = base + buffer.limit();
+            if (pos + n > end && end < size) {
+                base = pos;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, base,
+                        Math.min(WINDOW_SIZE, size - base));
+            }
+            return (int) (pos - base);
+        }
+
+        // number of mapped bytes from the position on
+        int mapped() {
+            return (int) (base + buffer.limit() - pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    abstract static class Parser {
+        final MappedInput in;
+
+        Parser(MappedInput in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next order into the batch at the specified position.
+         * @return false at the end of the file.
+         */
+        abstract boolean next(Batch b, int i) throws IOException;
+    }
+
+    static final class BinaryParser extends Parser {
+        BinaryParser(MappedInput in) throws IOException {
+            super(in);
+            final int i = in.require(5);
+            if (in.mapped() < 5 || in.buffer.getInt(i) != MAGIC) {
+                throw new IOException("Not an order file");
+            }
+            if (in.buffer.get(i + 4) != VERSION) {
+                throw new IOException("Unsupported order file version " + in.buffer.get(i + 4));
+            }
+            in.pos += 5;
+        }
+
+        @Override
+        boolean next(Batch b, int n) throws IOException {
+            int i = in.require(RECORD_SIZE);
+            if (in.mapped() < RECORD_SIZE) {
+                if (in.mapped() > 0) {
+                    throw new IOException("Truncated order at byte " + in.pos);
+                }
+                return false;
+            }
+            final MappedByteBuffer buf = in.buffer;
+            b.time[n] = buf.getLong(i);
+            i += 8;
+            for (int c = 0; c < 4; c++, i += 8) {
+                b.coords[4 * n + c] = buf.getDouble(i);
+            }
+            b.capacity[n] = buf.getInt(i);
+            in.pos += RECORD_SIZE;
+            return true;
+        }
+    }
+
+    // parses numbers from the bytes of a line, p is the index in the buffer
+    abstract static class TextParser extends Parser {
+        private static final double[] POW10 = new double[23];
+
+        static {
+            POW10[0] = 1;
+            for (int i = 1; i < POW10.length; i++) {
+                POW10[i] = POW10[i - 1] * 10;
+            }
+        }
+
+        MappedByteBuffer buf;
+        int p;
+        int end;
+
+        TextParser(MappedInput in) {
+            super(in);
+        }
+
+        @Override
+        final boolean next(Batch b, int n) throws IOException {
+            while (true) {
+                final int start = in.require(MAX_LINE);
+                final int mapped = in.mapped();
+                if (mapped <= 0) {
+                    return false;
+                }
+                buf = in.buffer;
+                final int limit = start + Math.min(mapped, MAX_LINE);
+                int eol = start;
+                while (eol < limit && buf.get(eol) != '\n') {
+                    eol++;
+                }
+                // no newline although the file goes on
+                if (eol == limit && in.pos + (eol - start) < in.size) {
+                    throw new IOException("Line longer than " + MAX_LINE
+                            + " bytes at byte " + in.pos);
+                }
+                final long lineStart = in.pos;
+                in.pos += eol - start + 1;
+                p = start;
+                end = eol > start && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+                skipSpace();
+                if (p < end && parseLine(b, n)) {
+                    return true;
+                }
+                if (p < 0) {
+                    throw new IOException("Malformed order at byte " + lineStart);
+                }
+            }
+        }
+
+        /**
+         * Parses the line between p and end, sets p to -1 if it is malformed.
+         * @return Whether the line was an order.
+         */
+        abstract boolean parseLine(Batch b, int n);
+
+        final void skipSpace() {
+            while (p >= 0 && p < end && (buf.get(p) == ' ' || buf.get(p) == '\t')) {
+                p++;
+            }
+        }
+
+        final boolean isNumberStart() {
+            final byte c = buf.get(p);
+            return c >= '0' && c <= '9' || c == '-' || c == '+' || c == '.';
+        }
+
+        final boolean expect(char c) {
+            skipSpace();
+            if (p >= 0 && p < end && buf.get(p) == c) {
+                p++;
+                return true;
+            }
+            p = -1;
+            return false;
+        }
+
+        final long parseLong() {
+            skipSpace();
+            boolean negative = false;
+            if (p < end && (buf.get(p) == '-' || buf.get(p) == '+')) {
+                negative = buf.get(p++) == '-';
+            }
+            final int from = p;
+            long v = 0;
+            while (p < end && buf.get(p) >= '0' && buf.get(p) <= '9') {
+                v = 10 * v + buf.get(p++) - '0';
+            }
+            if (p == from) {
+                p = -1;
+                return 0;
+            }
+            return negative ? -v : v;
+        }
+
+        // decimal digits with an optional exponent, digits after the 18th
+        // only count for the magnitude
+        final double parseDouble() {
+            skipSpace();
+            boolean negative = false;
+            if (p < end && (buf.get(p) == '-' || buf.get(p) == '+')) {
+                negative = buf.get(p++) == '-';
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean any = false;
+            boolean fraction = false;
+            for (; p < end; p++) {
+                final byte c = buf.get(p);
+                if (c >= '0' && c <= '9') {
+                    any = true;
+                    if (digits < 18) {
+                        mantissa = 10 * mantissa + c - '0';
+                        if (mantissa > 0) {
+                            digits++;
+                        }
+                        if (fraction) {
+                            exponent--;
+                        }
+                    } else if (!fraction) {
+                        exponent++;
+                    }
+                } else if (c == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (!any) {
+                p = -1;
+                return 0;
+            }
+            if (p < end && (buf.get(p) == 'e' || buf.get(p) == 'E')) {
+                p++;
+                final long e = parseLong();
+                if (p < 0) {
+                    return 0;
+                }
+                exponent += (int) Math.max(-400, Math.min(400, e));
+            }
+            double v = mantissa;
+            if (exponent < 0) {
+                v = -exponent < POW10.length ? v / POW10[-exponent] : v * Math.pow(10, exponent);
+            } else if (exponent > 0) {
+                v = exponent < POW10.length ? v * POW10[exponent] : v * Math.pow(10, exponent);
+            }
+            return negative ? -v : v;
+        }
+    }
+
+    static final class CsvParser extends TextParser {
+        CsvParser(MappedInput in) {
+            super(in);
+        }
+
+        @Override
+        boolean parseLine(Batch b, int n) {
+            if (!isNumberStart()) {
+                // header or comment
+                return false;
+            }
+            b.time[n] = parseLong();
+            for (int c = 0; c < 4 && p >= 0; c++) {
+                if (expect(',')) {
+                    b.coords[4 * n + c] = parseDouble();
+                }
+            }
+            if (p < 0) {
+                return false;
+            }
+            skipSpace();
+            b.capacity[n] = 1;
+            if (p < end && expect(',')) {
+                b.capacity[n] = (int) parseLong();
+            }
+            skipSpace();
+            if (p >= 0 && p != end) {
+                p = -1;
+            }
+            return p >= 0;
+        }
+    }
+
+    static final class JsonParser extends TextParser {
+        // field ids are the indices, the coordinates are 1 to 4
+        private static final byte[][] KEYS = {
+            bytes("time"), bytes("pickup_lat"), bytes("pickup_lon"),
+            bytes("delivery_lat"), bytes("delivery_lon"), bytes("capacity"),
+        };
+        private static final int REQUIRED = 0x1f;
+
+        JsonParser(MappedInput in) {
+            super(in);
+        }
+
+        @Override
+        boolean parseLine(Batch b, int n) {
+            if (!expect('{')) {
+                return false;
+            }
+            b.capacity[n] = 1;
+            int seen = 0;
+            skipSpace();
+            if (p < end && buf.get(p) == '}') {
+                p = -1;
+                return false;
+            }
+            while (p >= 0) {
+                final int key = parseKey();
+                if (!expect(':')) {
+                    return false;
+                }
+                if (key == 0) {
+                    b.time[n] = (long) parseDouble();
+                } else if (key >= 1 && key <= 4) {
+                    b.coords[4 * n + key - 1] = parseDouble();
+                } else if (key == 5) {
+                    b.capacity[n] = (int) parseDouble();
+                } else {
+                    skipValue();
+                }
+                if (key >= 0) {
+                    seen |= 1 << key;
+                }
+                skipSpace();
+                if (p < 0 || p == end) {
+                    p = -1;
+                } else if (buf.get(p) == ',') {
+                    p++;
+                } else if (buf.get(p) == '}') {
+                    p++;
+                    break;
+                } else {
+                    p = -1;
+                }
+            }
+            if (p >= 0 && (seen & REQUIRED) != REQUIRED) {
+                p = -1;
+            }
+            return p >= 0;
+        }
+
+        // the id of the key at p, -1 for other keys
+        private int parseKey() {
+            if (!expect('"')) {
+                return -1;
+            }
+            final int from = p;
+            while (p < end && buf.get(p) != '"') {
+                if (buf.get(p) == '\\') {
+                    p++;
+                }
+                p++;
+            }
+            if (p >= end) {
+                p = -1;
+                return -1;
+            }
+            final int length = p - from;
+            p++;
+            for (int k = 0; k < KEYS.length; k++) {
+                if (KEYS[k].length == length && matches(from, KEYS[k])) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(int from, byte[] key) {
+            for (int i = 0; i < key.length; i++) {
+                if (buf.get(from + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // skips a string, number, literal, object or array
+        private void skipValue() {
+            skipSpace();
+            int depth = 0;
+            boolean string = false;
+            for (; p < end; p++) {
+                final byte c = buf.get(p);
+                if (string) {
+                    if (c == '\\') {
+                        p++;
+                    } else if (c == '"') {
+                        string = false;
+                        if (depth == 0) {
+                            p++;
+                            return;
+                        }
+                    }
+                } else if (c == '"') {
+                    string = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (depth == 0) {
+                        return;
+                    }
+                    if (--depth == 0) {
+                        p++;
+                        return;
+                    }
+                } else if (c == ',' && depth == 0) {
+                    return;
+                }
+            }
+        }
+
+        private static byte[] bytes(String s) {
+            return s.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -2,11 +2,11 @@ package com.github.couriersim;
 
 import java.io.FileInputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -36,6 +36,9 @@ public class OsmConverter {
 
     private List<Pruner> pruners = new ArrayList<>();
     private boolean inputIsDot = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private RoadProfile profile = RoadProfile.DEFAULT;
+    private final AttributeDictionary dictionary = new AttributeDictionary();
 
     /**
      * Sets the output folder of any newly converted osm file by this {@link OsmConverter}.
@@ -61,13 +64,43 @@ public class OsmConverter {
         return this;
     }
 
-    static HashSet<String> highwayNames = new HashSet<String>();
+    /**
+     * Sets the number of threads that decode PBF input, by default one per
+     * available processor.
+     * @param threads The number of threads.
+     */
+    public OsmConverter withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the rules that decide which ways are roads, by default
+     * {@link RoadProfile#DEFAULT}.
+     * @param profile The profile.
+     */
+    public OsmConverter withProfile(RoadProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * @return The street names and speed classes referred to by the "n" and
+     *         "ts" attributes of the converted connections.
+     */
+    public AttributeDictionary getDictionary() {
+        return dictionary;
+    }
 
     public Graph<MultiAttributeData> convert(String filename) {
         Graph<MultiAttributeData> graph;
         try {
             if(inputIsDot) {
                 graph = DotGraphIO.getMultiAttributeGraphIO().read(filename);
+            } else if (filename.endsWith(".pbf")) {
+                graph = new TableGraph<MultiAttributeData>();
+                new PbfReader(threads, profile, dictionary).read(filename, graph);
+                removeCircularConnections(graph);
             } else {
                 InputSource inputSource = new InputSource(new FileInputStream(
                         filename));
@@ -76,26 +109,12 @@ public class OsmConverter {
 
                 graph = new TableGraph<MultiAttributeData>();
 
-                OSMParser parser = new OSMParser(graph);
+                OSMParser parser = new OSMParser(graph, profile, dictionary);
                 xmlReader.setContentHandler(parser);
                 xmlReader.setErrorHandler(parser);
                 xmlReader.parse(inputSource);
-
-                // remove circular connections
-
-                List<Connection<MultiAttributeData>> removeList = new ArrayList<Connection<MultiAttributeData>>();
-                for (Connection<MultiAttributeData> connection : graph
-                        .getConnections()) {
-                    if (connection.from().equals(connection.to())) {
-                        removeList.add(connection);
-                    }
-                }
-                for (Connection<MultiAttributeData> connection : removeList) {
-                    graph.removeConnection(connection.from(), connection.to());
-                }
+                removeCircularConnections(graph);
             }
-            // System.out.println(highwayNames.toString());
-
             // Prune
             for(Pruner p : pruners) {
                 graph = p.prune(graph);
@@ -116,15 +135,33 @@ public class OsmConverter {
 
     }
 
+    static void removeCircularConnections(Graph<MultiAttributeData> graph) {
+        List<Connection<MultiAttributeData>> removeList = new ArrayList<Connection<MultiAttributeData>>();
+        for (Connection<MultiAttributeData> connection : graph
+                .getConnections()) {
+            if (connection.from().equals(connection.to())) {
+                removeList.add(connection);
+            }
+        }
+        for (Connection<MultiAttributeData> connection : removeList) {
+            graph.removeConnection(connection.from(), connection.to());
+        }
+    }
+
     static class OSMParser extends DefaultHandler {
 
         protected Graph<MultiAttributeData> rs;
         protected HashMap<String, Point> nodes;
         protected WayParser current;
+        protected final RoadProfile profile;
+        protected final AttributeDictionary dictionary;
 
-        public OSMParser(Graph<MultiAttributeData> rs) {
+        public OSMParser(Graph<MultiAttributeData> rs, RoadProfile profile,
+                         AttributeDictionary dictionary) {
             super();
             this.rs = rs;
+            this.profile = profile;
+            this.dictionary = dictionary;
             nodes = new HashMap<String, Point>();
         }
 
@@ -143,95 +180,9 @@ public class OsmConverter {
             } else if (localName.equals("node")) {
                 double lat = Double.parseDouble(attributes.getValue("lat"));
                 double lon = Double.parseDouble(attributes.getValue("lon"));
-                // LatLng latlong = new LatLng(lat, lon);
-                // latlong.toWGS84();
-                // UTMRef ref = latlong.toUTMRef();
-
-                // lat = gradeToRadian(lat);
-                // lon = gradeToRadian(lon);
-                // long y = Math.round(earthRadius * Math.cos(lat) *
-                // Math.cos(lon));
-
-                // cos(latitude * pi/180) * earth circumference
-
-                // ground resolution = cos(latitude * pi/180) * earth
-                // circumference / map width
-                // = (cos(latitude * pi/180) * 2 * pi * 6378137 meters) / (256 *
-                // 2^level pixels)
-
-                // MAGIC constant! Don't touch this without consulting either
-                // Rinde van Lon or Bartosz Michalik, preferably both :-)
-
-                double scale = 1000000 / (8 * 1.425139046);// Math.toDegrees(Math.cos(Math.toRadians(lat)
-                scale *= 2;
-                scale = 1;
-                // * Math.PI /
-                // Math.toRadians(180)))
-                // * 2 * Math.PI *
-                // earthRadius / 1000;
-                double METER_TO_KM = 1/1000d;
-                //
-
-                // sinLatitude = sin(latitude * pi/180)
-                //
-                // pixelX = ((longitude + 180) / 360) * 256 * 2 level
-                // pixelY = (0.5 - log((1 + sinLatitude) / (1 - sinLatitude)) /
-                // (4 * pi)) * 256 * 2 level
-
-                // double sinLattitude = Math.sin(Math.toRadians(lat * Math.PI /
-                // 180));
-                // double x = ((lon + 180) / 360.0);
-                // double y = (0.5 - Math.log((1 + sinLattitude) / (1 -
-                // sinLattitude)) / (4 * Math.PI));
-
-                // MERCATOR:
-                double x = scale * lon * METER_TO_KM; // Math.round(earthRadius *
-                // Math.cos(lat) * Math.sin(lon));
-                double y = scale * METER_TO_KM
-                        * Math.toDegrees(1.0 / Math.sinh(Math.tan(Math
-                        .toRadians(lat))));// Math.log(Math.tan(.25
-                // *
-                // Math.PI
-                // +
-                // .5
-                // *
-                // gradeToRadian(lat)));
-
-                // check: http://www.movable-type.co.uk/scripts/latlong.html for
-                // a great explanation
-
-                // converting to the Mercator projection:
-                // http://mathworld.wolfram.com/MercatorProjection.html
-                // Fun fact: Did you know that the Mercator projection was named
-                // after Gerardus Mercator (1512-1594), a Flemish cartographer?
-
-                // double dLat = (l)
-
-                // var R = 6371; // km
-                // var dLat = (lat2-lat1).toRad();
-                // var dLon = (lon2-lon1).toRad();
-                // var lat1 = lat1.toRad();
-                // var lat2 = lat2.toRad();
-                //
-                // var a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-                // Math.sin(dLon/2) * Math.sin(dLon/2) * Math.cos(lat1) *
-                // Math.cos(lat2);
-                // var c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-                // var d = R * c;
-
-                // ref.
-
-                // String[] converted = CoordinateConversion.latLon2MGRUTM(x,
-                // y).split(" ");
-                // nodes.put(attributes.getValue("id"), new
-                // Point(Double.parseDouble(converted[2]),
-                // -Double.parseDouble(converted[3])));
-
-                nodes.put(attributes.getValue("id"), new Point(x, y));
-
-
+                nodes.put(attributes.getValue("id"), Projection.OSM.project(lat, lon));
             } else if (localName.equals("way")) {
-                current = new WayParser(nodes);
+                current = new WayParser(profile, dictionary, nodes);
             }
         }
 
@@ -251,25 +202,26 @@ public class OsmConverter {
 
     static class WayParser extends DefaultHandler {
 
-        protected final HashSet<String> highwayTypes = new HashSet<String>(
-                Arrays.asList("motorway", "motorway_link", "trunk", "trunk_link", "primary", "primary_link", "motorway_junction", "secondary", "secondary_link", "tertiary", "road", "living_street", "residental", "residential", "residential;unclassified", "crossing", "ditch", "unclassified", "raceway", "path", "turning_circle", "track", "trunk_link", "trunk", "platform", "minor"));
-        // what about 'unclassified'?
-
-        protected final HashSet<String> junctionTypes = new HashSet<String>(
-                Arrays.asList("roundabout"));
-
+        protected final RoadProfile profile;
+        protected final AttributeDictionary dictionary;
         protected List<String> nodes;
         protected double maxSpeed;
-        protected Optional<String> name;
+        @Nullable protected String name;
         protected boolean oneWay;
         protected boolean isValidRoad;
         protected HashMap<String, Point> nodeMapping;
 
-        public WayParser(HashMap<String, Point> nodeMapping) {
+        // interned attributes, shared by all connections of the way
+        @Nullable private Double speedClass;
+        @Nullable private Integer nameIndex;
+
+        public WayParser(RoadProfile profile, AttributeDictionary dictionary,
+                         HashMap<String, Point> nodeMapping) {
+            this.profile = profile;
+            this.dictionary = dictionary;
             nodes = new ArrayList<String>();
             oneWay = false;
-            name = Optional.absent();
-            maxSpeed = 50;
+            maxSpeed = profile.defaultSpeed;
             isValidRoad = false;
             this.nodeMapping = nodeMapping;
         }
@@ -278,63 +230,82 @@ public class OsmConverter {
         public void startElement(String namespaceURI, String localName,
                                  String qualifiedName, Attributes attributes) {
             if (localName.equals("tag")) {
-
-                if (attributes.getValue("k").equals("highway")) {
-                    highwayNames.add(attributes.getValue("v"));
-                }
-
-                if (attributes.getValue("k").equals("oneway")
-                        && attributes.getValue("v").equals("yes")) {
-                    oneWay = true;
-                } else if (attributes.getValue("k").equals("highway")
-                        && highwayTypes.contains(attributes.getValue("v"))) {
-                    isValidRoad = true;
-                } else if (attributes.getValue("k").equals("junction")
-                        && junctionTypes.contains(attributes.getValue("v"))) {
-                    isValidRoad = true;
-                } else if (attributes.getValue("k").equals("maxspeed")) {
-                    try {
-//                        maxSpeed = 1000.0 * Integer.parseInt(attributes
-//                                .getValue("v").replaceAll("\\D", ""));
-                        maxSpeed = Integer.parseInt(attributes
-                                .getValue("v").replaceAll("\\D", ""));
-                    } catch (NumberFormatException nfe) {
-                        // ignore if this happens, it means that no max speed
-                        // was defined
-                    }
-                } else if (attributes.getValue("k").equals("name")) {
-                    name = Optional.of(attributes.getValue("v"));
-                }
+                tag(attributes.getValue("k"), attributes.getValue("v"));
             } else if (localName.equals("nd")) {
                 nodes.add(attributes.getValue("ref"));
             }
         }
 
+        /**
+         * Applies the rules of the {@link RoadProfile} to a single tag of the
+         * way.
+         */
+        void tag(String k, String v) {
+            final RoadProfile.Rule rule = profile.rule(k);
+            if (rule == null) {
+                return;
+            }
+            switch (rule.kind) {
+                case RoadProfile.ONEWAY:
+                    oneWay |= rule.accepts(v);
+                    break;
+                case RoadProfile.ROAD:
+                    isValidRoad |= rule.accepts(v);
+                    break;
+                case RoadProfile.MAXSPEED:
+                    final int speed = RoadProfile.parseSpeed(v);
+                    // ignore if there are no digits, it means that no max
+                    // speed was defined
+                    if (speed >= 0) {
+                        maxSpeed = speed;
+                    }
+                    break;
+                case RoadProfile.NAME:
+                    name = v;
+                    break;
+                default:
+                    break;
+            }
+        }
+
         public void addWaysTo(Graph<MultiAttributeData> graph) {
             if (isValidRoad) {
                 for (int i = 1; i < nodes.size(); i++) {
-                    Point from = nodeMapping.get(nodes.get(i - 1));
-                    Point to = nodeMapping.get(nodes.get(i));
-                    if (from != null && to != null && !from.equals(to)) {
-
-                        double length = Point.distance(from, to);
-                        MultiAttributeData.Builder data = MultiAttributeData.builder()
-                                .setLength(length)
-                                .addAttribute("ts", maxSpeed);
-                        if(name.isPresent()) {
-                            data.addAttribute("n", name.get());
-                        }
-                        if (!graph.hasConnection(from, to)) {
-                            if(!Double.isNaN(maxSpeed)) { data.setMaxSpeed(maxSpeed); }
-                            graph.addConnection(from, to, data.build());
-                        }
-                        if (!oneWay && !graph.hasConnection(to, from)) {
-                            if(!Double.isNaN(maxSpeed)) { data.setMaxSpeed(maxSpeed); }
-                            graph.addConnection(to, from, data.build());
-                        }
-                    }
+                    addConnection(graph, nodeMapping.get(nodes.get(i - 1)),
+                            nodeMapping.get(nodes.get(i)));
+                }
+            }
+        }
+
+        void addConnection(Graph<MultiAttributeData> graph, Point from, Point to) {
+            if (from != null && to != null && !from.equals(to)) {
+                final boolean forward = !graph.hasConnection(from, to);
+                final boolean backward = !oneWay && !graph.hasConnection(to, from);
+                if (!forward && !backward) {
+                    return;
+                }
+                if (speedClass == null) {
+                    speedClass = dictionary.speed(maxSpeed);
+                    nameIndex = name == null ? null : dictionary.intern(name);
+                }
+                MultiAttributeData.Builder data = MultiAttributeData.builder()
+                        .setLength(Point.distance(from, to))
+                        .addAttribute("ts", speedClass);
+                if (nameIndex != null) {
+                    data.addAttribute("n", nameIndex);
+                }
+                if (!Double.isNaN(maxSpeed)) {
+                    data.setMaxSpeed(maxSpeed);
+                }
+                // both directions share the same data
+                final MultiAttributeData built = data.build();
+                if (forward) {
+                    graph.addConnection(from, to, built);
+                }
+                if (backward) {
+                    graph.addConnection(to, from, built);
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,515 @@
+package com.github.couriersim;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.MultiAttributeData;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Reads OSM PBF files (the binary format OSM extracts are distributed in). The
+ * blobs of the file are read sequentially and decoded in parallel on a worker
+ * pool, every way is interpreted by a {@link OsmConverter.WayParser} on the
+ * worker that decoded it. The decoded nodes and roads are then merged into the
+ * graph on the calling thread, in file order.
+ * <p>
+ * Only zlib compressed and raw blobs are supported, which covers the extracts
+ * from the usual OSM mirrors.
+ */
+class PbfReader {
+
+    // upper bound on the size of a blob defined by the PBF specification
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final int threads;
+    private final RoadProfile profile;
+    private final AttributeDictionary dictionary;
+
+    PbfReader(int threads, RoadProfile profile, AttributeDictionary dictionary) {
+        this.threads = threads;
+        this.profile = profile;
+        this.dictionary = dictionary;
+    }
+
+    void read(String filename, Graph<MultiAttributeData> graph)
+            throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<Block>> blocks = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(filename), 1 << 16))) {
+            while (true) {
+                final int headerSize;
+                try {
+                    headerSize = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final byte[] header = new byte[headerSize];
+                in.readFully(header);
+                final ProtoReader h = new ProtoReader(header, 0, headerSize);
+                String type = null;
+                int dataSize = 0;
+                while (h.next()) {
+                    if (h.field == 1) {
+                        type = h.string();
+                    } else if (h.field == 3) {
+                        dataSize = (int) h.varint();
+                    } else {
+                        h.skip();
+                    }
+                }
+                if (dataSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Blob too large: " + dataSize);
+                }
+                final byte[] blob = new byte[dataSize];
+                in.readFully(blob);
+                if ("OSMData".equals(type)) {
+                    blocks.add(pool.submit(new Callable<Block>() {
+                        @Override
+                        public Block call() throws Exception {
+                            return decode(inflate(blob), profile, dictionary);
+                        }
+                    }));
+                } else if ("OSMHeader".equals(type)) {
+                    checkHeader(inflate(blob));
+                }
+            }
+            merge(blocks, graph);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to decode " + filename, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void merge(List<Future<Block>> futures,
+                              Graph<MultiAttributeData> graph)
+            throws InterruptedException, ExecutionException {
+        final List<Block> blocks = new ArrayList<>(futures.size());
+        int numNodes = 0;
+        for (Future<Block> f : futures) {
+            final Block b = f.get();
+            blocks.add(b);
+            numNodes += b.numNodes;
+        }
+
+        // all nodes in one table ordered by id, refs are resolved with a
+        // binary search. Extracts are usually sorted already.
+        long[] ids = new long[numNodes];
+        double[] xs = new double[numNodes];
+        double[] ys = new double[numNodes];
+        int n = 0;
+        boolean sorted = true;
+        for (Block b : blocks) {
+            for (int i = 0; i < b.numNodes; i++) {
+                ids[n] = b.ids[i];
+                xs[n] = b.xs[i];
+                ys[n] = b.ys[i];
+                sorted &= n == 0 || ids[n - 1] < ids[n];
+                n++;
+            }
+        }
+        if (!sorted) {
+            final Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            final long[] unsorted = ids;
+            Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+            final long[] sids = new long[n];
+            final double[] sxs = new double[n];
+            final double[] sys = new double[n];
+            for (int i = 0; i < n; i++) {
+                sids[i] = ids[order[i]];
+                sxs[i] = xs[order[i]];
+                sys[i] = ys[order[i]];
+            }
+            ids = sids;
+            xs = sxs;
+            ys = sys;
+        }
+
+        final Point[] points = new Point[n];
+        int roads = 0;
+        for (Block b : blocks) {
+            for (int r = 0; r < b.roads.size(); r++) {
+                final OsmConverter.WayParser way = b.roads.get(r);
+                final long[] refs = b.refs.get(r);
+                Point prev = null;
+                for (int i = 0; i < refs.length; i++) {
+                    final int idx = Arrays.binarySearch(ids, 0, n, refs[i]);
+                    Point cur = null;
+                    if (idx >= 0) {
+                        if (points[idx] == null) {
+                            points[idx] = new Point(xs[idx], ys[idx]);
+                        }
+                        cur = points[idx];
+                    }
+                    if (i > 0) {
+                        way.addConnection(graph, prev, cur);
+                    }
+                    prev = cur;
+                }
+                roads++;
+            }
+        }
+        Logger.getGlobal().info("PbfReader read " + n + " nodes and " + roads
+                + " roads from " + blocks.size() + " blocks");
+    }
+
+    private static byte[] inflate(byte[] blob) throws IOException {
+        final ProtoReader r = new ProtoReader(blob, 0, blob.length);
+        int rawSize = -1;
+        byte[] raw = null;
+        int zlibStart = -1;
+        int zlibLength = 0;
+        while (r.next()) {
+            if (r.field == 1) {
+                final int len = r.length();
+                raw = Arrays.copyOfRange(blob, r.pos, r.pos + len);
+                r.pos += len;
+            } else if (r.field == 2) {
+                rawSize = (int) r.varint();
+            } else if (r.field == 3) {
+                zlibLength = r.length();
+                zlibStart = r.pos;
+                r.pos += zlibLength;
+            } else if (r.field >= 4 && r.field <= 7) {
+                throw new IOException("Unsupported blob compression, field "
+                        + r.field);
+            } else {
+                r.skip();
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlibStart < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Corrupt blob");
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlibStart, zlibLength);
+            final byte[] out = new byte[rawSize];
+            int done = 0;
+            while (done < rawSize && !inflater.finished()) {
+                final int k = inflater.inflate(out, done, rawSize - done);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated blob");
+                }
+                done += k;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void checkHeader(byte[] data) throws IOException {
+        final ProtoReader r = new ProtoReader(data, 0, data.length);
+        while (r.next()) {
+            if (r.field == 4) {
+                final String feature = r.string();
+                if (!feature.equals("OsmSchema-V0.6")
+                        && !feature.equals("DenseNodes")) {
+                    throw new IOException("Unsupported PBF feature: " + feature);
+                }
+            } else {
+                r.skip();
+            }
+        }
+    }
+
+    // decodes a PrimitiveBlock
+    static Block decode(byte[] data, RoadProfile profile,
+                        AttributeDictionary dictionary) throws IOException {
+        final ProtoReader r = new ProtoReader(data, 0, data.length);
+        String[] strings = new String[0];
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        final List<int[]> groups = new ArrayList<>();
+        while (r.next()) {
+            if (r.field == 1) {
+                strings = readStringTable(r.sub());
+            } else if (r.field == 2) {
+                final int len = r.length();
+                groups.add(new int[] {r.pos, r.pos + len});
+                r.pos += len;
+            } else if (r.field == 17) {
+                granularity = r.varint();
+            } else if (r.field == 19) {
+                latOffset = r.varint();
+            } else if (r.field == 20) {
+                lonOffset = r.varint();
+            } else {
+                r.skip();
+            }
+        }
+        final Block block = new Block(granularity, latOffset, lonOffset);
+        // groups are decoded after the header fields, which may follow them
+        for (int[] g : groups) {
+            final ProtoReader gr = new ProtoReader(data, g[0], g[1]);
+            while (gr.next()) {
+                if (gr.field == 1) {
+                    block.node(gr.sub());
+                } else if (gr.field == 2) {
+                    block.dense(gr.sub());
+                } else if (gr.field == 3) {
+                    block.way(gr.sub(), strings, profile, dictionary);
+                } else {
+                    gr.skip();
+                }
+            }
+        }
+        return block;
+    }
+
+    private static String[] readStringTable(ProtoReader r) throws IOException {
+        final List<String> s = new ArrayList<>();
+        while (r.next()) {
+            if (r.field == 1) {
+                s.add(r.string());
+            } else {
+                r.skip();
+            }
+        }
+        return s.toArray(new String[0]);
+    }
+
+    // the decoded content of one blob
+    static final class Block {
+        final long granularity;
+        final long latOffset;
+        final long lonOffset;
+
+        int numNodes;
+        long[] ids = new long[256];
+        double[] xs = new double[256];
+        double[] ys = new double[256];
+
+        final List<OsmConverter.WayParser> roads = new ArrayList<>();
+        final List<long[]> refs = new ArrayList<>();
+
+        Block(long granularity, long latOffset, long lonOffset) {
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        void addNode(long id, long lat, long lon) {
+            if (numNodes == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * numNodes);
+                xs = Arrays.copyOf(xs, 2 * numNodes);
+                ys = Arrays.copyOf(ys, 2 * numNodes);
+            }
+            final Point p = Projection.OSM.project(
+                    1e-9 * (latOffset + granularity * lat),
+                    1e-9 * (lonOffset + granularity * lon));
+            ids[numNodes] = id;
+            xs[numNodes] = p.x;
+            ys[numNodes] = p.y;
+            numNodes++;
+        }
+
+        void node(ProtoReader r) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (r.next()) {
+                if (r.field == 1) {
+                    id = r.sint();
+                } else if (r.field == 8) {
+                    lat = r.sint();
+                } else if (r.field == 9) {
+                    lon = r.sint();
+                } else {
+                    r.skip();
+                }
+            }
+            addNode(id, lat, lon);
+        }
+
+        void dense(ProtoReader r) throws IOException {
+            ProtoReader idReader = null;
+            ProtoReader lats = null;
+            ProtoReader lons = null;
+            while (r.next()) {
+                if (r.field == 1) {
+                    idReader = r.sub();
+                } else if (r.field == 8) {
+                    lats = r.sub();
+                } else if (r.field == 9) {
+                    lons = r.sub();
+                } else {
+                    r.skip();
+                }
+            }
+            if (idReader == null || lats == null || lons == null) {
+                return;
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (idReader.pos < idReader.limit) {
+                id += idReader.sint();
+                lat += lats.sint();
+                lon += lons.sint();
+                addNode(id, lat, lon);
+            }
+        }
+
+        // the dictionary is only used once the way is added to the graph, on
+        // the merging thread
+        void way(ProtoReader r, String[] strings, RoadProfile profile,
+                 AttributeDictionary dictionary) throws IOException {
+            final OsmConverter.WayParser way =
+                    new OsmConverter.WayParser(profile, dictionary, null);
+            ProtoReader keys = null;
+            ProtoReader vals = null;
+            ProtoReader refReader = null;
+            while (r.next()) {
+                if (r.field == 2 && r.wireType == 2) {
+                    keys = r.sub();
+                } else if (r.field == 3 && r.wireType == 2) {
+                    vals = r.sub();
+                } else if (r.field == 8 && r.wireType == 2) {
+                    refReader = r.sub();
+                } else {
+                    r.skip();
+                }
+            }
+            if (keys != null && vals != null) {
+                while (keys.pos < keys.limit && vals.pos < vals.limit) {
+                    way.tag(strings[(int) keys.varint()],
+                            strings[(int) vals.varint()]);
+                }
+            }
+            if (!way.isValidRoad || refReader == null) {
+                return;
+            }
+            long[] wayRefs = new long[16];
+            int n = 0;
+            long ref = 0;
+            while (refReader.pos < refReader.limit) {
+                ref += refReader.sint();
+                if (n == wayRefs.length) {
+                    wayRefs = Arrays.copyOf(wayRefs, 2 * n);
+                }
+                wayRefs[n++] = ref;
+            }
+            roads.add(way);
+            refs.add(Arrays.copyOf(wayRefs, n));
+        }
+    }
+
+    // minimal protocol buffers reader over a byte range
+    static final class ProtoReader {
+        final byte[] buf;
+        int pos;
+        final int limit;
+        int field;
+        int wireType;
+
+        ProtoReader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        boolean next() throws IOException {
+            if (pos >= limit) {
+                return false;
+            }
+            final long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated varint");
+                }
+                final byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long zigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long sint() throws IOException {
+            return zigzag(varint());
+        }
+
+        int length() throws IOException {
+            final int len = (int) varint();
+            if (len < 0 || pos + len > limit) {
+                throw new IOException("Truncated field");
+            }
+            return len;
+        }
+
+        ProtoReader sub() throws IOException {
+            final int len = length();
+            final ProtoReader r = new ProtoReader(buf, pos, pos + len);
+            pos += len;
+            return r;
+        }
+
+        String string() throws IOException {
+            final int len = length();
+            final String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        void skip() throws IOException {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    pos += length();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type " + wireType);
+            }
+        }
+    }
+}
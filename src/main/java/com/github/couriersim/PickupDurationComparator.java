@@ -7,6 +7,6 @@ import java.util.Comparator;
 public class PickupDurationComparator implements Comparator<Parcel> {
     @Override
     public int compare(Parcel o1, Parcel o2) {
-        return (int) (o1.getPickupDuration() - o2.getPickupDuration());
+        return Long.compare(o1.getPickupDuration(), o2.getPickupDuration());
     }
 }
@@ -0,0 +1,406 @@
+package com.github.couriersim;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Improves the {@link RoutePlan}s of the fleet in the background. After a tick
+ * in which a plan changed the simulation thread takes a snapshot of all plans
+ * and starts a round, every worker then runs a large neighbourhood search on
+ * its own copies: a few orders that are not picked up yet are removed and
+ * inserted again at their cheapest position in any plan, an improvement of
+ * the total length is kept. Workers only see snapshots, so distances are
+ * estimated with the euclidean distance instead of the (not thread safe)
+ * road model.
+ * <p>
+ * A round is a fixed number of moves per worker, seeded by the simulation
+ * seed, the round and the worker. {@link #ADOPTION_DELAY} ticks after the
+ * snapshot the simulation thread waits for the round and adopts the best
+ * plans, the lowest worker wins ties. Which plans are adopted doesn't depend
+ * on the speed of the threads, so runs with the same seed make the same
+ * decisions and can be replayed. The taxis follow the adopted plans from
+ * their next decision on. Proposals are dropped if any of the plans changed
+ * since the snapshot was taken or if the changed plans aren't shorter on the
+ * roads. Orders that move to another taxi are reported as decisions and move
+ * their charge along. More workers explore more neighbourhoods per round.
+ */
+final class PlanOptimizer implements TickListener, Closeable {
+
+    // ticks after which a snapshot is taken even without plan changes,
+    // the taxis moved
+    private static final int SNAPSHOT_INTERVAL = 60;
+    // orders that are removed and inserted again per move
+    private static final int MAX_REMOVED = 3;
+    // moves without improvement after which a worker ends its round
+    private static final int MAX_STALE_MOVES = 2000;
+    // moves of a worker per round
+    private static final int MAX_MOVES = 20000;
+    // ticks between a snapshot and the adoption of its round, the workers
+    // search while the simulation goes on
+    static final int ADOPTION_DELAY = 10;
+    private static final double EPSILON = 1e-9;
+
+    private final RoadModel roadModel;
+    private final PDPModel pdpModel;
+    private final List<Taxi> taxis = new ArrayList<>();
+    private final ExecutorService workers;
+    private final int threads;
+    private final long seed;
+    private volatile boolean running = true;
+
+    // the searches of the current round, null between rounds
+    private List<Future<Proposal>> round;
+    private long rounds;
+    private long dueTick;
+
+    private int[] lastModCounts = new int[0];
+    private long ticksSinceSnapshot;
+    private long adopted;
+    private long rejected;
+
+    /**
+     * @param threads The number of worker threads.
+     * @param seed Seed of the workers, worker i of round r uses
+     *          <code>seed + r * threads + i</code>.
+     */
+    PlanOptimizer(RoadModel rm, PDPModel pm, int threads, long seed) {
+        roadModel = rm;
+        pdpModel = pm;
+        this.threads = threads;
+        this.seed = seed;
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "plan-optimizer-" + count.getAndIncrement());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    void addTaxi(Taxi taxi) {
+        taxis.add(taxi);
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        final long tick = timeLapse.getStartTime() / timeLapse.getTickLength();
+        if (round == null || tick < dueTick) {
+            return;
+        }
+        final Proposal p = best(round);
+        round = null;
+        if (p == null) {
+            return;
+        }
+        for (int i = 0; i < taxis.size(); i++) {
+            if (taxis.get(i).getPlan().getModCount() != p.snapshot.modCounts[i]) {
+                // a plan changed since the snapshot, the proposal is stale
+                return;
+            }
+        }
+        // the workers priced on straight lines, check the changed plans on the
+        // roads
+        final boolean[] changed = new boolean[taxis.size()];
+        double before = 0;
+        double after = 0;
+        for (int i = 0; i < taxis.size(); i++) {
+            final Taxi taxi = taxis.get(i);
+            changed[i] = !sameStops(taxi.getPlan().getStops(), p.stops.get(i));
+            if (changed[i]) {
+                before += taxi.pricePlan();
+                after += taxi.priceStops(p.stops.get(i));
+            }
+        }
+        if (after >= before - EPSILON) {
+            rejected++;
+            return;
+        }
+        for (int i = 0; i < taxis.size(); i++) {
+            if (changed[i]) {
+                taxis.get(i).adoptPlan(p.stops.get(i), tick);
+            }
+        }
+        adopted++;
+    }
+
+    private static boolean sameStops(List<RoutePlan.Stop> a, List<RoutePlan.Stop> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).parcel != b.get(i).parcel || a.get(i).pickup != b.get(i).pickup) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // waits for the searches of a round, the cheapest proposal of the lowest
+    // worker
+    private static Proposal best(List<Future<Proposal>> searches) {
+        Proposal best = null;
+        for (Future<Proposal> f : searches) {
+            final Proposal p;
+            try {
+                p = f.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            if (p != null && (best == null || p.cost < best.cost)) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {
+        ticksSinceSnapshot++;
+        if (round != null) {
+            // the next snapshot after the adoption
+            return;
+        }
+        final int[] modCounts = new int[taxis.size()];
+        boolean changed = modCounts.length != lastModCounts.length;
+        for (int i = 0; i < modCounts.length; i++) {
+            modCounts[i] = taxis.get(i).getPlan().getModCount();
+            if (!changed && modCounts[i] != lastModCounts[i]) {
+                changed = true;
+            }
+        }
+        if (!changed && ticksSinceSnapshot < SNAPSHOT_INTERVAL) {
+            return;
+        }
+        // the modCounts of the adopted plans changed, so an adoption is
+        // followed by a new snapshot
+        final List<TaxiState> states = new ArrayList<>(taxis.size());
+        for (Taxi taxi : taxis) {
+            final RoutePlan plan = taxi.getPlan();
+            states.add(new TaxiState(roadModel.getPosition(taxi),
+                    plan.getCapacity(), pdpModel.getContentsSize(taxi),
+                    plan.getStops()));
+        }
+        final Snapshot snap = new Snapshot(modCounts, states);
+        final List<Future<Proposal>> searches = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random rng = new Random(seed + rounds * threads + i);
+            searches.add(workers.submit(new Callable<Proposal>() {
+                @Override
+                public Proposal call() {
+                    return search(snap, rng);
+                }
+            }));
+        }
+        round = searches;
+        rounds++;
+        dueTick = timeLapse.getStartTime() / timeLapse.getTickLength() + ADOPTION_DELAY;
+        lastModCounts = modCounts;
+        ticksSinceSnapshot = 0;
+    }
+
+    /** @return The number of proposals that were adopted. */
+    long getAdopted() {
+        return adopted;
+    }
+
+    /**
+     * @return The number of proposals that were dropped because they weren't
+     *         shorter on the roads.
+     */
+    long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the best plans found for the snapshot, null without improvement
+    private Proposal search(Snapshot snap, Random rng) {
+        final int n = snap.states.size();
+        final RoutePlan.Distances[] dist = new RoutePlan.Distances[n];
+        RoutePlan[] plans = new RoutePlan[n];
+        for (int i = 0; i < n; i++) {
+            final TaxiState state = snap.states.get(i);
+            dist[i] = new EuclideanDistances(state.position);
+            plans[i] = new RoutePlan(state.capacity, state.load, state.stops, dist[i]);
+        }
+        if (!hasOpenOrders(plans)) {
+            return null;
+        }
+        double cost = totalLength(plans);
+        boolean improved = false;
+
+        int stale = 0;
+        for (int moves = 0; running && stale < MAX_STALE_MOVES && moves < MAX_MOVES; moves++) {
+            final RoutePlan[] candidate = copy(plans, snap, dist);
+            final boolean valid = move(candidate, dist, rng);
+            final double candidateCost = totalLength(candidate);
+            if (valid && candidateCost < cost - EPSILON) {
+                plans = candidate;
+                cost = candidateCost;
+                stale = 0;
+                improved = true;
+            } else {
+                stale++;
+            }
+        }
+        return improved ? new Proposal(snap, plans, cost) : null;
+    }
+
+    private static boolean hasOpenOrders(RoutePlan[] plans) {
+        for (RoutePlan plan : plans) {
+            for (int i = 0; i < plan.size(); i++) {
+                if (plan.get(i).pickup) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // removes some orders that aren't picked up yet and inserts them again,
+    // false if one of them doesn't fit anymore
+    private static boolean move(RoutePlan[] plans, RoutePlan.Distances[] dist, Random rng) {
+        final List<Parcel> open = new ArrayList<>();
+        for (RoutePlan plan : plans) {
+            for (int i = 0; i < plan.size(); i++) {
+                if (plan.get(i).pickup) {
+                    open.add(plan.get(i).parcel);
+                }
+            }
+        }
+        final int k = 1 + rng.nextInt(Math.min(MAX_REMOVED, open.size()));
+        final List<Parcel> removed = new ArrayList<>(k);
+        for (int r = 0; r < k; r++) {
+            final Parcel p = open.remove(rng.nextInt(open.size()));
+            for (int i = 0; i < plans.length; i++) {
+                if (plans[i].contains(p)) {
+                    plans[i].remove(p, dist[i]);
+                }
+            }
+            removed.add(p);
+        }
+        for (Parcel p : removed) {
+            int best = -1;
+            RoutePlan.Insertion bestInsertion = null;
+            for (int i = 0; i < plans.length; i++) {
+                final RoutePlan.Insertion ins = plans[i].cheapestInsertion(p, dist[i]);
+                if (ins != null && (bestInsertion == null || ins.delta < bestInsertion.delta)) {
+                    best = i;
+                    bestInsertion = ins;
+                }
+            }
+            if (bestInsertion == null) {
+                // others took its place
+                return false;
+            }
+            plans[best].insert(bestInsertion);
+        }
+        return true;
+    }
+
+    private static RoutePlan[] copy(RoutePlan[] plans, Snapshot snap, RoutePlan.Distances[] dist) {
+        final RoutePlan[] copy = new RoutePlan[plans.length];
+        for (int i = 0; i < plans.length; i++) {
+            copy[i] = new RoutePlan(plans[i].getCapacity(), snap.states.get(i).load,
+                    plans[i].getStops(), dist[i]);
+        }
+        return copy;
+    }
+
+    private static double totalLength(RoutePlan[] plans) {
+        double total = 0;
+        for (RoutePlan plan : plans) {
+            total += plan.getLength();
+        }
+        return total;
+    }
+
+    private static final class TaxiState {
+        final Point position;
+        final double capacity;
+        final double load;
+        final List<RoutePlan.Stop> stops;
+
+        TaxiState(Point position, double capacity, double load, List<RoutePlan.Stop> stops) {
+            this.position = position;
+            this.capacity = capacity;
+            this.load = load;
+            this.stops = stops;
+        }
+    }
+
+    private static final class Snapshot {
+        final int[] modCounts;
+        final List<TaxiState> states;
+
+        Snapshot(int[] modCounts, List<TaxiState> states) {
+            this.modCounts = modCounts;
+            this.states = states;
+        }
+    }
+
+    private static final class Proposal {
+        final Snapshot snapshot;
+        final List<List<RoutePlan.Stop>> stops;
+        final double cost;
+
+        Proposal(Snapshot snapshot, RoutePlan[] plans, double cost) {
+            this.snapshot = snapshot;
+            this.cost = cost;
+            stops = new ArrayList<>(plans.length);
+            for (RoutePlan plan : plans) {
+                stops.add(plan.getStops());
+            }
+        }
+    }
+
+    private static final class EuclideanDistances implements RoutePlan.Distances {
+        private final Point position;
+
+        EuclideanDistances(Point position) {
+            this.position = position;
+        }
+
+        @Override
+        public double fromVehicle(Point to) {
+            return Point.distance(position, to);
+        }
+
+        @Override
+        public double between(Point from, Point to) {
+            return Point.distance(from, to);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.couriersim;
+
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Maps WGS84 coordinates to points in the plane of the graph. Graphs created
+ * by the {@link OsmConverter} use {@link #OSM}, coordinates of customers and
+ * depots have to be projected with the same projection before they can be
+ * snapped to the graph.
+ */
+public interface Projection {
+
+    /**
+     * The projection applied by the {@link OsmConverter} to every OSM node.
+     */
+    Projection OSM = new Projection() {
+        // MAGIC constant! Don't touch this without consulting either
+        // Rinde van Lon or Bartosz Michalik, preferably both :-)
+        private static final double SCALE = 1;
+        private static final double METER_TO_KM = 1 / 1000d;
+
+        @Override
+        public Point project(double lat, double lon) {
+            // MERCATOR:
+            // converting to the Mercator projection:
+            // http://mathworld.wolfram.com/MercatorProjection.html
+            // check: http://www.movable-type.co.uk/scripts/latlong.html for
+            // a great explanation
+            final double x = SCALE * lon * METER_TO_KM;
+            final double y = SCALE * METER_TO_KM
+                    * Math.toDegrees(1.0 / Math.sinh(Math.tan(Math
+                    .toRadians(lat))));
+            return new Point(x, y);
+        }
+    };
+
+    /**
+     * @param lat The latitude in degrees.
+     * @param lon The longitude in degrees.
+     * @return The projected point.
+     */
+    Point project(double lat, double lon);
+}
@@ -0,0 +1,83 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+/**
+ * Detects ticks in which nothing can happen: there are no parcels that are not
+ * yet delivered and all taxis are idle. Taxis skip their decisions during such
+ * ticks, which is exactly what they would decide anyway, so the results don't
+ * change. The time model of rinsim can't jump, the clock still advances tick
+ * by tick but a quiet tick only costs a few field reads per listener.
+ * <p>
+ * Has to be registered as a tick listener before the taxis.
+ */
+final class Quiescence implements TickListener, Listener {
+
+    private final List<Taxi> taxis = new ArrayList<>();
+    // parcels that are announced but not yet delivered
+    private long open;
+    private boolean quiet;
+    private long quietTicks;
+
+    static Quiescence install(Simulator simulator, PDPModel pm) {
+        final Quiescence quiescence = new Quiescence();
+        pm.getEventAPI().addListener(quiescence, PDPModelEventType.NEW_PARCEL,
+                PDPModelEventType.END_DELIVERY);
+        simulator.addTickListener(quiescence);
+        return quiescence;
+    }
+
+    void addTaxi(Taxi taxi) {
+        taxis.add(taxi);
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        if (e.getEventType() == PDPModelEventType.NEW_PARCEL) {
+            open++;
+            quiet = false;
+        } else {
+            open--;
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        quiet = open == 0 && allIdle();
+        if (quiet) {
+            quietTicks++;
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    private boolean allIdle() {
+        for (Taxi taxi : taxis) {
+            if (!taxi.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether nothing can happen during the current tick.
+     */
+    boolean isQuiet() {
+        return quiet;
+    }
+
+    long getQuietTicks() {
+        return quietTicks;
+    }
+}
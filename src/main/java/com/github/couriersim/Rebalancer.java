@@ -0,0 +1,177 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.index.SpatialIndex;
+import com.github.couriersim.metrics.DemandHeatmap;
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Moves idle taxis toward the places where orders are expected. Order
+ * arrivals are recorded in a {@link DemandHeatmap}, every interval the idle
+ * taxis are matched to the hotspots with the highest forecast in one batch:
+ * all (taxi, hotspot) pairs are sorted by distance and assigned greedily, so
+ * every hotspot gets at most one taxi. Taxis drive to the graph node nearest
+ * to the centroid of the demand of their hotspot and stop as soon as they get
+ * work.
+ */
+final class Rebalancer implements TickListener, Listener {
+
+    private static final int GRID_SIZE = 32;
+    private static final long HALF_LIFE = 60 * 60 * 1000L;
+    // hotspots with a lower forecast are not worth the drive
+    private static final double MIN_WEIGHT = .5;
+
+    private final RoadModel roadModel;
+    private final SpatialIndex index;
+    private final DemandHeatmap heatmap;
+    private final long interval;
+    private final List<Taxi> taxis = new ArrayList<>();
+    @Nullable
+    private WakeupHub wakeupHub;
+    private long nextRun;
+    private long moves;
+
+    /**
+     * @param interval The time between two rebalancing rounds.
+     */
+    Rebalancer(RoadModel rm, SpatialIndex index, long interval) {
+        roadModel = rm;
+        this.index = index;
+        this.interval = interval;
+        final List<Point> bounds = rm.getBounds();
+        heatmap = new DemandHeatmap(bounds.get(0), bounds.get(1), GRID_SIZE, GRID_SIZE,
+                HALF_LIFE);
+        nextRun = interval;
+    }
+
+    static Rebalancer install(Simulator simulator, RoadModel rm, PDPModel pm,
+                              SpatialIndex index, long interval) {
+        final Rebalancer rebalancer = new Rebalancer(rm, index, interval);
+        pm.getEventAPI().addListener(rebalancer, PDPModelEventType.NEW_PARCEL);
+        simulator.addTickListener(rebalancer);
+        return rebalancer;
+    }
+
+    void addTaxi(Taxi taxi) {
+        taxis.add(taxi);
+    }
+
+    /**
+     * @param hub Sleeping taxis that are sent to a hotspot are removed from
+     *          it.
+     */
+    void setWakeupHub(@Nullable WakeupHub hub) {
+        wakeupHub = hub;
+    }
+
+    DemandHeatmap getHeatmap() {
+        return heatmap;
+    }
+
+    long getMoves() {
+        return moves;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final PDPModelEvent event = (PDPModelEvent) e;
+        if (event.parcel != null) {
+            heatmap.record(event.parcel.getPickupLocation(), event.time);
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {}
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {
+        final long time = timeLapse.getEndTime();
+        if (time < nextRun) {
+            return;
+        }
+        nextRun = time + interval;
+
+        final List<Taxi> idle = new ArrayList<>();
+        for (Taxi taxi : taxis) {
+            if (taxi.canRebalance()) {
+                idle.add(taxi);
+            }
+        }
+        if (idle.isEmpty()) {
+            return;
+        }
+        final int[] hotspots = heatmap.getHotspots(time, idle.size());
+        int h = 0;
+        while (h < hotspots.length && heatmap.getWeight(hotspots[h], time) >= MIN_WEIGHT) {
+            h++;
+        }
+        if (h == 0) {
+            return;
+        }
+        final Point[] targets = new Point[h];
+        for (int i = 0; i < h; i++) {
+            targets[i] = index.nearestNode(heatmap.getCentroid(hotspots[i], time));
+        }
+        assign(idle, targets);
+    }
+
+    // greedy matching on the sorted pairs
+    private void assign(List<Taxi> idle, Point[] targets) {
+        final Point[] positions = new Point[idle.size()];
+        for (int t = 0; t < positions.length; t++) {
+            positions[t] = roadModel.getPosition(idle.get(t));
+        }
+        final double[] distances = new double[positions.length * targets.length];
+        final Integer[] order = new Integer[distances.length];
+        for (int t = 0; t < positions.length; t++) {
+            for (int s = 0; s < targets.length; s++) {
+                final int i = t * targets.length + s;
+                distances[i] = Point.distance(positions[t], targets[s]);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+
+        final boolean[] taxiDone = new boolean[positions.length];
+        final boolean[] targetDone = new boolean[targets.length];
+        final List<Taxi> moving = new ArrayList<>();
+        int assigned = 0;
+        for (int pair : order) {
+            final int t = pair / targets.length;
+            final int s = pair % targets.length;
+            if (taxiDone[t] || targetDone[s]) {
+                continue;
+            }
+            taxiDone[t] = true;
+            targetDone[s] = true;
+            if (!positions[t].equals(targets[s])) {
+                final Taxi taxi = idle.get(t);
+                if (taxi.isAsleep()) {
+                    moving.add(taxi);
+                }
+                taxi.rebalanceTo(targets[s]);
+                moves++;
+            }
+            if (++assigned == targets.length) {
+                break;
+            }
+        }
+        if (wakeupHub != null && !moving.isEmpty()) {
+            wakeupHub.cancel(moving);
+        }
+    }
+}
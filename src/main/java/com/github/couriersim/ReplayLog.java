@@ -0,0 +1,379 @@
+package com.github.couriersim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+
+/**
+ * Compact binary log of everything that determines a run: the seed, the graph,
+ * the other options of the run (see {@link SimConfig#toOptions()}), every
+ * order arrival and every decision a {@link Taxi} makes. A log written
+ * by a {@link Writer} can be re-executed with {@link SimConfig.Builder#replay},
+ * and the decision streams of two logs can be compared with
+ * {@link #diff(File, File)} to find the first tick at which two runs diverged.
+ * <p>
+ * Records are written as fixed width primitives through a buffered stream, so
+ * recording costs a few bytes per order/decision. The writer keeps the number
+ * of every parcel that isn't delivered yet in a map.
+ * <p>
+ * Decision records refer to their parcel by order number, {@link #NO_ORDER}
+ * if the decision is about no parcel and {@link #UNKNOWN_ORDER} if the parcel
+ * wasn't announced to the writer as an order.
+ */
+public final class ReplayLog {
+
+    static final int MAGIC = 0x43535250;
+    static final byte VERSION = 2;
+
+    static final byte ORDER = 'O';
+    static final byte DECISION = 'D';
+    static final byte END = 'E';
+
+    /** Tick that is used for orders that exist before the simulation starts. */
+    public static final long INITIAL_TICK = -1;
+    /** Order of a decision without a parcel. */
+    public static final int NO_ORDER = -1;
+    /** Order of a decision about a parcel that isn't in the log. */
+    public static final int UNKNOWN_ORDER = -2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long seed;
+    private final String graphFile;
+    private final Map<String, String> options;
+    private final long[] orderTicks;
+    // pickup x, pickup y, delivery x, delivery y per order
+    private final double[] orderCoords;
+    private final int[] orderCapacities;
+
+    ReplayLog(long seed, String graphFile, Map<String, String> options, long[] orderTicks,
+              double[] orderCoords, int[] orderCapacities) {
+        this.seed = seed;
+        this.graphFile = graphFile;
+        this.options = Collections.unmodifiableMap(options);
+        this.orderTicks = orderTicks;
+        this.orderCoords = orderCoords;
+        this.orderCapacities = orderCapacities;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getGraphFile() {
+        return graphFile;
+    }
+
+    /**
+     * @return The options of the recorded run.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    public int getNumOrders() {
+        return orderTicks.length;
+    }
+
+    public long getOrderTick(int order) {
+        return orderTicks[order];
+    }
+
+    public Point getPickupLocation(int order) {
+        return new Point(orderCoords[4 * order], orderCoords[4 * order + 1]);
+    }
+
+    public Point getDeliveryLocation(int order) {
+        return new Point(orderCoords[4 * order + 2], orderCoords[4 * order + 3]);
+    }
+
+    public int getNeededCapacity(int order) {
+        return orderCapacities[order];
+    }
+
+    /**
+     * Reads the header and the orders of a log, decisions are skipped.
+     * @param file The log file.
+     * @return The log.
+     * @throws IOException If the file can not be read or is not a log.
+     */
+    public static ReplayLog read(File file) throws IOException {
+        try (Cursor c = new Cursor(file)) {
+            int n = 0;
+            long[] ticks = new long[64];
+            double[] coords = new double[4 * 64];
+            int[] caps = new int[64];
+            while (c.next()) {
+                if (c.type != ORDER) {
+                    continue;
+                }
+                if (n == ticks.length) {
+                    ticks = Arrays.copyOf(ticks, 2 * n);
+                    coords = Arrays.copyOf(coords, 8 * n);
+                    caps = Arrays.copyOf(caps, 2 * n);
+                }
+                ticks[n] = c.tick;
+                System.arraycopy(c.coords, 0, coords, 4 * n, 4);
+                caps[n] = c.capacity;
+                n++;
+            }
+            return new ReplayLog(c.seed, c.graphFile, c.options, Arrays.copyOf(ticks, n),
+                    Arrays.copyOf(coords, 4 * n), Arrays.copyOf(caps, n));
+        }
+    }
+
+    /**
+     * Compares the decision streams of two logs.
+     * @param a The first log.
+     * @param b The second log.
+     * @return The first decision in which the logs differ, or absent if the
+     *         decision streams are identical.
+     * @throws IOException If one of the files can not be read.
+     */
+    public static Optional<Divergence> diff(File a, File b) throws IOException {
+        try (Cursor ca = new Cursor(a); Cursor cb = new Cursor(b)) {
+            long index = 0;
+            while (true) {
+                boolean hasA = ca.nextDecision();
+                boolean hasB = cb.nextDecision();
+                if (!hasA && !hasB) {
+                    return Optional.absent();
+                }
+                if (hasA != hasB || ca.tick != cb.tick || ca.taxi != cb.taxi
+                        || ca.decision != cb.decision || ca.order != cb.order) {
+                    return Optional.of(new Divergence(index,
+                            hasA ? ca.describe() : "<end of log>",
+                            hasB ? cb.describe() : "<end of log>",
+                            hasA ? ca.tick : cb.tick));
+                }
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Usage:
+     * <pre>
+     *   ReplayLog diff a.log b.log
+     *   ReplayLog replay a.log [tick]
+     * </pre>
+     * @param args The command line arguments.
+     * @throws IOException If a log can not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("diff")) {
+            Optional<Divergence> d = diff(new File(args[1]), new File(args[2]));
+            System.out.println(d.isPresent() ? d.get() : "identical");
+        } else if (args.length >= 2 && args[0].equals("replay")) {
+            SimConfig.Builder b = SimConfig.builder()
+                    .replay(read(new File(args[1])));
+            if (args.length >= 3) {
+                b.fastForwardTo(Long.parseLong(args[2]));
+            }
+            CourierSim.run(b.build(), null, null, null);
+        } else {
+            System.err.println("usage: ReplayLog diff <a> <b> | replay <log> [tick]");
+        }
+    }
+
+    /**
+     * Describes the first point where two decision streams differ.
+     */
+    public static final class Divergence {
+        public final long index;
+        public final long tick;
+        public final String left;
+        public final String right;
+
+        Divergence(long index, String left, String right, long tick) {
+            this.index = index;
+            this.left = left;
+            this.right = right;
+            this.tick = tick;
+        }
+
+        @Override
+        public String toString() {
+            return "diverged at decision " + index + " (tick " + tick + "): "
+                    + left + " <> " + right;
+        }
+    }
+
+    /**
+     * Appends a run to a log file. Orders are numbered in arrival order, these
+     * numbers are used to refer to parcels in the decision records.
+     */
+    public static final class Writer implements Taxi.DecisionListener, Closeable {
+        private final DataOutputStream out;
+        private final Map<Parcel, Integer> orderIds;
+        private int nextOrder;
+        private long lastTick;
+
+        public Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+            orderIds = new IdentityHashMap<>();
+        }
+
+        void start(SimConfig config) {
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(config.seed);
+                out.writeUTF(config.graphFile);
+                final Map<String, String> options = config.toOptions();
+                out.writeInt(options.size());
+                for (Map.Entry<String, String> e : options.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void order(long tick, Parcel p) {
+            int id = nextOrder++;
+            orderIds.put(p, id);
+            lastTick = tick;
+            try {
+                out.writeByte(ORDER);
+                out.writeLong(tick);
+                out.writeInt(id);
+                out.writeDouble(p.getPickupLocation().x);
+                out.writeDouble(p.getPickupLocation().y);
+                out.writeDouble(p.getDeliveryLocation().x);
+                out.writeDouble(p.getDeliveryLocation().y);
+                out.writeInt((int) p.getNeededCapacity());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void decided(long tick, Taxi taxi, Taxi.Decision decision,
+                            @Nullable Parcel p) {
+            final Integer id = p == null ? null : orderIds.get(p);
+            if (decision == Taxi.Decision.DELIVER && p != null) {
+                // a delivered parcel is never referred to again
+                orderIds.remove(p);
+            }
+            lastTick = tick;
+            try {
+                out.writeByte(DECISION);
+                out.writeLong(tick);
+                out.writeInt(taxi.getId());
+                out.writeByte(decision.ordinal());
+                out.writeInt(p == null ? NO_ORDER : id == null ? UNKNOWN_ORDER : id);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeByte(END);
+            out.writeLong(lastTick);
+            out.close();
+        }
+    }
+
+    // sequential reader over the records of a log
+    static final class Cursor implements Closeable {
+        final DataInputStream in;
+        final long seed;
+        final String graphFile;
+        final Map<String, String> options = new LinkedHashMap<>();
+
+        byte type;
+        long tick;
+        int order;
+        final double[] coords = new double[4];
+        int capacity;
+        int taxi;
+        int decision;
+
+        Cursor(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE));
+            final int magic = in.readInt();
+            final byte version = in.readByte();
+            if (magic != MAGIC || version != VERSION) {
+                in.close();
+                throw new IOException("Not a replay log: " + file);
+            }
+            seed = in.readLong();
+            graphFile = in.readUTF();
+            for (int n = in.readInt(); n > 0; n--) {
+                options.put(in.readUTF(), in.readUTF());
+            }
+        }
+
+        boolean next() throws IOException {
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                // a log of a run that crashed has no end record
+                return false;
+            }
+            if (type == ORDER) {
+                tick = in.readLong();
+                order = in.readInt();
+                for (int i = 0; i < 4; i++) {
+                    coords[i] = in.readDouble();
+                }
+                capacity = in.readInt();
+            } else if (type == DECISION) {
+                tick = in.readLong();
+                taxi = in.readInt();
+                decision = in.readByte();
+                order = in.readInt();
+            } else if (type == END) {
+                tick = in.readLong();
+                return false;
+            } else {
+                throw new IOException("Corrupt replay log, record type: " + type);
+            }
+            return true;
+        }
+
+        boolean nextDecision() throws IOException {
+            while (next()) {
+                if (type == DECISION) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String describe() {
+            return "tick " + tick + " taxi " + taxi + " "
+                    + Taxi.Decision.values()[decision]
+                    + (order == NO_ORDER ? "" : order == UNKNOWN_ORDER ? " unknown order"
+                            : " order " + order);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.couriersim;
+
+import java.io.IOException;
+
+import com.github.couriersim.metrics.LogHistogram;
+import com.github.couriersim.metrics.ResultSink;
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+/**
+ * Writes the metrics of a run to a {@link ResultSink}: a row per simulated
+ * hour while the run goes on and a row for the whole run at the end. The
+ * duration of a tick is the wall time between the starts of two ticks, so it
+ * covers all tick listeners whatever their order.
+ */
+final class ResultRecorder implements TickListener, Listener {
+
+    static final long INTERVAL = SoakMonitor.HOUR;
+    private static final int HISTOGRAM_PRECISION = 7;
+
+    private final RoadModel roadModel;
+    private final ResultSink sink;
+    private final String config;
+    private final long seed;
+
+    private final LogHistogram tickNanos = new LogHistogram(HISTOGRAM_PRECISION);
+    private long firstTickStart = -1;
+    private long lastTickStart = -1;
+    private long deliveries;
+
+    // totals at the start of the current interval
+    private long intervalStart;
+    private double intervalProfit;
+    private double intervalDistance;
+    private long intervalDeliveries;
+    private long intervalTickNanos;
+    private long intervalTicks;
+
+    ResultRecorder(RoadModel roadModel, ResultSink sink, String config, long seed) {
+        this.roadModel = roadModel;
+        this.sink = sink;
+        this.config = config;
+        this.seed = seed;
+    }
+
+    static ResultRecorder install(Simulator simulator, RoadModel rm, PDPModel pm,
+                                  ResultSink sink, String config, long seed) {
+        final ResultRecorder recorder = new ResultRecorder(rm, sink, config, seed);
+        pm.getEventAPI().addListener(recorder, PDPModelEventType.END_DELIVERY);
+        simulator.addTickListener(recorder);
+        return recorder;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        deliveries++;
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        endTick(System.nanoTime());
+        if (timeLapse.getStartTime() - intervalStart >= INTERVAL) {
+            writeInterval(intervalStart + INTERVAL);
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    /**
+     * Writes the rest of the last interval and the row of the run. The rows
+     * may only become visible once the sink is flushed.
+     */
+    void finish() {
+        endTick(System.nanoTime());
+        if (intervalTicks > 0) {
+            writeInterval(intervalStart + INTERVAL);
+        }
+        try {
+            sink.run(config, seed, fleetProfit(), deliveries, fleetDistance(),
+                    tickNanos.getCount(), tickNanos.getMean(),
+                    tickNanos.getValueAtPercentile(99),
+                    firstTickStart < 0 ? 0 : (lastTickStart - firstTickStart) / 1000000);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the tick that started last ended now
+    private void endTick(long now) {
+        if (lastTickStart >= 0) {
+            final long nanos = now - lastTickStart;
+            tickNanos.record(nanos);
+            intervalTickNanos += nanos;
+            intervalTicks++;
+        } else {
+            firstTickStart = now;
+        }
+        lastTickStart = now;
+    }
+
+    private void writeInterval(long end) {
+        final double profit = fleetProfit();
+        final double distance = fleetDistance();
+        try {
+            sink.interval(config, seed, intervalStart, profit - intervalProfit,
+                    deliveries - intervalDeliveries, distance - intervalDistance,
+                    intervalTicks == 0 ? 0 : (double) intervalTickNanos / intervalTicks);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        intervalStart = end;
+        intervalProfit = profit;
+        intervalDistance = distance;
+        intervalDeliveries = deliveries;
+        intervalTickNanos = 0;
+        intervalTicks = 0;
+    }
+
+    private double fleetProfit() {
+        double total = 0;
+        for (RoadUser ru : roadModel.getObjects(CourierSim.Pred.TAXIS)) {
+            total += ((Taxi) ru).getProfit();
+        }
+        return total;
+    }
+
+    private double fleetDistance() {
+        double total = 0;
+        for (RoadUser ru : roadModel.getObjects(CourierSim.Pred.TAXIS)) {
+            total += ((Taxi) ru).getDistanceDriven();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.couriersim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled set of rules that decide which OSM ways are roads and how their tags
+ * translate to connection attributes. A profile is built once and shared by
+ * all ways (and all threads) of a conversion, matching a tag is a single map
+ * lookup on the key followed by a set lookup on the value.
+ * <p>
+ * {@link #DEFAULT} contains the rules the {@link OsmConverter} always used.
+ */
+public final class RoadProfile {
+
+    static final int ROAD = 1;
+    static final int ONEWAY = 2;
+    static final int MAXSPEED = 3;
+    static final int NAME = 4;
+
+    /**
+     * The highway, junction, oneway, maxspeed and name rules of the
+     * {@link OsmConverter}.
+     */
+    public static final RoadProfile DEFAULT = builder()
+            .roadTypes("highway", "motorway", "motorway_link", "trunk", "trunk_link", "primary", "primary_link", "motorway_junction", "secondary", "secondary_link", "tertiary", "road", "living_street", "residental", "residential", "residential;unclassified", "crossing", "ditch", "unclassified", "raceway", "path", "turning_circle", "track", "trunk_link", "trunk", "platform", "minor")
+            .roadTypes("junction", "roundabout")
+            .oneWay("oneway", "yes")
+            .maxSpeed("maxspeed")
+            .name("name")
+            .defaultSpeed(50)
+            .build();
+
+    private final Map<String, Rule> rules;
+    final double defaultSpeed;
+
+    RoadProfile(Builder b) {
+        rules = new HashMap<>(b.rules);
+        defaultSpeed = b.defaultSpeed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param key The key of a tag.
+     * @return The rule for the key or <code>null</code> if the key is ignored.
+     */
+    Rule rule(String key) {
+        return rules.get(key);
+    }
+
+    public double getDefaultSpeed() {
+        return defaultSpeed;
+    }
+
+    static final class Rule {
+        final int kind;
+        // accepted values, null accepts every value
+        final Set<String> values;
+
+        Rule(int kind, Set<String> values) {
+            this.kind = kind;
+            this.values = values;
+        }
+
+        boolean accepts(String value) {
+            return values == null || values.contains(value);
+        }
+    }
+
+    /**
+     * Extracts the speed from a maxspeed value: all digits are concatenated,
+     * as the old <code>replaceAll("\\D", "")</code> did, but without allocating.
+     * @param v The value.
+     * @return The speed or -1 if the value contains no (or too many) digits.
+     */
+    static int parseSpeed(String v) {
+        long speed = 0;
+        boolean digits = false;
+        for (int i = 0; i < v.length(); i++) {
+            final char c = v.charAt(i);
+            if (c >= '0' && c <= '9') {
+                speed = speed * 10 + (c - '0');
+                digits = true;
+                if (speed > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            }
+        }
+        return digits ? (int) speed : -1;
+    }
+
+    public static final class Builder {
+        final Map<String, Rule> rules = new HashMap<>();
+        double defaultSpeed = 50;
+
+        Builder() {}
+
+        /**
+         * Ways with this key and one of the values are roads. May be called
+         * multiple times for the same key.
+         */
+        public Builder roadTypes(String key, String... values) {
+            final Rule old = rules.get(key);
+            final Set<String> set = new HashSet<>(Arrays.asList(values));
+            if (old != null && old.kind == ROAD) {
+                set.addAll(old.values);
+            }
+            rules.put(key, new Rule(ROAD, set));
+            return this;
+        }
+
+        /** Ways with this key and one of the values are one-way. */
+        public Builder oneWay(String key, String... values) {
+            rules.put(key, new Rule(ONEWAY, new HashSet<>(Arrays.asList(values))));
+            return this;
+        }
+
+        /** The value of this key is the max speed of the way. */
+        public Builder maxSpeed(String key) {
+            rules.put(key, new Rule(MAXSPEED, null));
+            return this;
+        }
+
+        /** The value of this key is the name of the way. */
+        public Builder name(String key) {
+            rules.put(key, new Rule(NAME, null));
+            return this;
+        }
+
+        /** The speed of ways without a max speed. */
+        public Builder defaultSpeed(double speed) {
+            defaultSpeed = speed;
+            return this;
+        }
+
+        public RoadProfile build() {
+            return new RoadProfile(this);
+        }
+    }
+}
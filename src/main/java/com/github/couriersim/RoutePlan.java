@@ -0,0 +1,332 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Ordered list of the pickup and delivery stops a taxi still has to visit.
+ * The distance of every leg (from the previous stop, or from the taxi for the
+ * first stop) and the load after every stop are kept next to the stops, so
+ * testing whether a new order fits at a given position and what it would cost
+ * is O(1). Finding the cheapest insertion of an order costs O(n) distance
+ * queries and O(n^2) of these tests, with n the number of stops.
+ * <p>
+ * Not thread safe, the {@link PlanOptimizer} works on its own copies.
+ */
+final class RoutePlan {
+
+    /**
+     * Shortest path distances used to price insertions.
+     */
+    interface Distances {
+        /** @return The distance in km from the taxi to the point. */
+        double fromVehicle(Point to);
+
+        /** @return The distance in km between two nodes. */
+        double between(Point from, Point to);
+    }
+
+    static final class Stop {
+        final Parcel parcel;
+        final boolean pickup;
+        final Point location;
+
+        Stop(Parcel parcel, boolean pickup) {
+            this.parcel = parcel;
+            this.pickup = pickup;
+            location = pickup ? parcel.getPickupLocation() : parcel.getDeliveryLocation();
+        }
+    }
+
+    /**
+     * The cheapest way to add an order to the plan: the pickup goes before
+     * stop {@link #pickupIndex} and the delivery before stop
+     * {@link #deliveryIndex} of the current plan, the delivery directly
+     * follows the pickup if both are equal.
+     */
+    static final class Insertion {
+        final Parcel parcel;
+        final int pickupIndex;
+        final int deliveryIndex;
+        /** Additional distance in km. */
+        final double delta;
+        // leg distances of the stops that get a new predecessor
+        final double intoPickup;
+        final double afterPickup;
+        final double intoDelivery;
+        final double afterDelivery;
+
+        Insertion(Parcel parcel, int pickupIndex, int deliveryIndex, double delta,
+                  double intoPickup, double afterPickup, double intoDelivery,
+                  double afterDelivery) {
+            this.parcel = parcel;
+            this.pickupIndex = pickupIndex;
+            this.deliveryIndex = deliveryIndex;
+            this.delta = delta;
+            this.intoPickup = intoPickup;
+            this.afterPickup = afterPickup;
+            this.intoDelivery = intoDelivery;
+            this.afterDelivery = afterDelivery;
+        }
+    }
+
+    private final double capacity;
+    private final List<Stop> stops = new ArrayList<>();
+    // legs[i]: distance into stop i, loads[i]: load after stop i
+    private double[] legs = new double[0];
+    private double[] loads = new double[0];
+    private double startLoad;
+    // incremented on every change of the stops
+    private int modCount;
+
+    RoutePlan(double capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a plan with the specified stops, all legs are priced with the
+     * specified distances.
+     */
+    RoutePlan(double capacity, double startLoad, List<Stop> stops, Distances d) {
+        this.capacity = capacity;
+        this.startLoad = startLoad;
+        setStops(stops, d);
+    }
+
+    boolean isEmpty() {
+        return stops.isEmpty();
+    }
+
+    int size() {
+        return stops.size();
+    }
+
+    /** @return The next stop, <code>null</code> if the plan is empty. */
+    @Nullable
+    Stop peek() {
+        return stops.isEmpty() ? null : stops.get(0);
+    }
+
+    Stop get(int i) {
+        return stops.get(i);
+    }
+
+    /** @return A copy of the stops. */
+    List<Stop> getStops() {
+        return new ArrayList<>(stops);
+    }
+
+    double getCapacity() {
+        return capacity;
+    }
+
+    double getStartLoad() {
+        return startLoad;
+    }
+
+    int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Replaces all stops, the legs are priced again.
+     */
+    void setStops(List<Stop> newStops, Distances d) {
+        stops.clear();
+        stops.addAll(newStops);
+        legs = new double[stops.size()];
+        for (int i = 0; i < legs.length; i++) {
+            final Point to = stops.get(i).location;
+            legs[i] = i == 0 ? d.fromVehicle(to) : d.between(stops.get(i - 1).location, to);
+        }
+        modCount++;
+        updateLoads();
+    }
+
+    boolean contains(Parcel p) {
+        for (Stop s : stops) {
+            if (s.parcel == p) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The planned distance in km. */
+    double getLength() {
+        double total = 0;
+        for (double leg : legs) {
+            total += leg;
+        }
+        return total;
+    }
+
+    /**
+     * Updates the distance from the taxi to the first stop and the current
+     * load, the taxi moved since the plan was last priced.
+     */
+    void refresh(Distances d, double load) {
+        startLoad = load;
+        if (!stops.isEmpty()) {
+            legs[0] = d.fromVehicle(stops.get(0).location);
+        }
+        updateLoads();
+    }
+
+    /**
+     * Removes the first stop, the taxi served it.
+     */
+    void pop() {
+        final Stop served = stops.remove(0);
+        startLoad += served.pickup ? served.parcel.getNeededCapacity()
+                : -served.parcel.getNeededCapacity();
+        legs = remove(legs, 0);
+        modCount++;
+        updateLoads();
+    }
+
+    /**
+     * Removes all stops of the parcel, e.g. because it was picked up by
+     * someone else. The legs around the removed stops are recomputed.
+     */
+    void remove(Parcel p, Distances d) {
+        for (int i = stops.size() - 1; i >= 0; i--) {
+            if (stops.get(i).parcel != p) {
+                continue;
+            }
+            stops.remove(i);
+            legs = remove(legs, i);
+            if (i < stops.size()) {
+                final Point to = stops.get(i).location;
+                legs[i] = i == 0 ? d.fromVehicle(to)
+                        : d.between(stops.get(i - 1).location, to);
+            }
+            modCount++;
+        }
+        updateLoads();
+    }
+
+    /**
+     * @return The cheapest feasible insertion of the order, <code>null</code>
+     *         if it doesn't fit anywhere because of the capacity.
+     */
+    @Nullable
+    Insertion cheapestInsertion(Parcel p, Distances d) {
+        final double c = p.getNeededCapacity();
+        if (c > capacity) {
+            return null;
+        }
+        final int n = stops.size();
+        final Point pickup = p.getPickupLocation();
+        final Point delivery = p.getDeliveryLocation();
+        // into[i]: from the predecessor of position i, out[i]: to stop i
+        final double[] intoP = new double[n + 1];
+        final double[] outP = new double[n + 1];
+        final double[] intoD = new double[n + 1];
+        final double[] outD = new double[n + 1];
+        for (int i = 0; i <= n; i++) {
+            if (i == 0) {
+                intoP[0] = d.fromVehicle(pickup);
+            } else {
+                final Point prev = stops.get(i - 1).location;
+                intoP[i] = d.between(prev, pickup);
+                intoD[i] = d.between(prev, delivery);
+            }
+            if (i < n) {
+                final Point next = stops.get(i).location;
+                outP[i] = d.between(pickup, next);
+                outD[i] = d.between(delivery, next);
+            }
+        }
+        final double direct = d.between(pickup, delivery);
+
+        Insertion best = null;
+        for (int i = 0; i <= n; i++) {
+            final double loadBefore = i == 0 ? startLoad : loads[i - 1];
+            if (loadBefore + c > capacity) {
+                continue;
+            }
+            final double leg = i < n ? legs[i] : 0;
+            // delivery right after the pickup
+            final double adjacent = intoP[i] + direct + outD[i] - leg;
+            if (best == null || adjacent < best.delta) {
+                best = new Insertion(p, i, i, adjacent, intoP[i], direct, direct, outD[i]);
+            }
+            final double pickupDelta = intoP[i] + outP[i] - leg;
+            double maxLoad = loadBefore;
+            for (int j = i + 1; j <= n; j++) {
+                // the parcel is on board during stops i..j-1
+                maxLoad = Math.max(maxLoad, loads[j - 1]);
+                if (maxLoad + c > capacity) {
+                    break;
+                }
+                final double delta = pickupDelta
+                        + intoD[j] + outD[j] - (j < n ? legs[j] : 0);
+                if (delta < best.delta) {
+                    best = new Insertion(p, i, j, delta, intoP[i], outP[i],
+                            intoD[j], outD[j]);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Applies an insertion that was computed on the current plan.
+     */
+    void insert(Insertion ins) {
+        final int n = stops.size();
+        final List<Stop> newStops = new ArrayList<>(n + 2);
+        final double[] newLegs = new double[n + 2];
+        int k = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i == ins.pickupIndex) {
+                newStops.add(new Stop(ins.parcel, true));
+                newLegs[k++] = ins.intoPickup;
+            }
+            if (i == ins.deliveryIndex) {
+                newStops.add(new Stop(ins.parcel, false));
+                newLegs[k++] = ins.intoDelivery;
+            }
+            if (i < n) {
+                newStops.add(stops.get(i));
+                if (i == ins.deliveryIndex) {
+                    newLegs[k++] = ins.afterDelivery;
+                } else if (i == ins.pickupIndex) {
+                    newLegs[k++] = ins.afterPickup;
+                } else {
+                    newLegs[k++] = legs[i];
+                }
+            }
+        }
+        stops.clear();
+        stops.addAll(newStops);
+        legs = newLegs;
+        modCount++;
+        updateLoads();
+    }
+
+    private void updateLoads() {
+        if (loads.length != stops.size()) {
+            loads = new double[stops.size()];
+        }
+        double load = startLoad;
+        for (int i = 0; i < stops.size(); i++) {
+            final Stop s = stops.get(i);
+            load += s.pickup ? s.parcel.getNeededCapacity() : -s.parcel.getNeededCapacity();
+            loads[i] = load;
+        }
+    }
+
+    private static double[] remove(double[] a, int i) {
+        final double[] b = new double[a.length - 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i + 1, b, i, b.length - i);
+        return b;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.couriersim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+/**
+ * Assigns every new order to the taxi whose {@link RoutePlan} grows the least
+ * by inserting it (cheapest insertion over the whole fleet). Orders that fit
+ * in no plan because of the capacity are retried every tick. Taxis then only
+ * follow their plans, there is no search for parcels per tick.
+ */
+final class RoutePlanDispatcher implements Dispatcher, TickListener, Listener {
+
+    private final RoadModel roadModel;
+    private final List<Taxi> taxis = new ArrayList<>();
+    private final Deque<Parcel> pending = new ArrayDeque<>();
+
+    RoutePlanDispatcher(RoadModel roadModel) {
+        this.roadModel = roadModel;
+    }
+
+    static RoutePlanDispatcher install(Simulator simulator, RoadModel rm,
+                                       PDPModel pm) {
+        final RoutePlanDispatcher dispatcher = new RoutePlanDispatcher(rm);
+        pm.getEventAPI().addListener(dispatcher, PDPModelEventType.NEW_PARCEL);
+        simulator.addTickListener(dispatcher);
+        return dispatcher;
+    }
+
+    @Override
+    public void addTaxi(Taxi taxi) {
+        taxis.add(taxi);
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final Parcel p = ((PDPModelEvent) e).parcel;
+        if (p != null) {
+            pending.add(p);
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        final long tick = timeLapse.getStartTime() / timeLapse.getTickLength();
+        for (Iterator<Parcel> it = pending.iterator(); it.hasNext();) {
+            final Parcel p = it.next();
+            if (!roadModel.containsObject(p)) {
+                it.remove();
+                continue;
+            }
+            Taxi best = null;
+            RoutePlan.Insertion bestInsertion = null;
+            for (Taxi taxi : taxis) {
+                final RoutePlan.Insertion ins = taxi.priceInsertion(p);
+                if (ins != null && (bestInsertion == null || ins.delta < bestInsertion.delta)) {
+                    best = taxi;
+                    bestInsertion = ins;
+                }
+            }
+            if (best != null) {
+                best.assign(bestInsertion, tick);
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    int getPending() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.couriersim;
+
+import com.github.couriersim.generator.GraphGenerator;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.MultiAttributeData;
+
+/**
+ * Prints the memory use and tick time of headless runs on synthetic graphs of
+ * increasing size, one line per graph:
+ * <pre>
+ * ScalingCurve grid|planar|ring [simulated minutes] [nodes...]
+ * </pre>
+ * The default sizes go from 1k to 1M nodes.
+ */
+public final class ScalingCurve {
+
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000};
+    private static final long MINUTE = 60 * 1000L;
+    private static final long TICK_LENGTH = 1000L;
+
+    private ScalingCurve() {}
+
+    public static void main(String[] args) {
+        final String kind = args.length > 0 ? args[0] : "grid";
+        final long minutes = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                sizes[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("spec,nodes,connections,generateMs,graphMB,msPerTick");
+        for (int size : sizes) {
+            final String spec = spec(kind, size);
+            final long heapBefore = usedHeap();
+            final long start = System.nanoTime();
+            final Graph<MultiAttributeData> graph = CourierSim.loadGraph(spec);
+            final long generated = System.nanoTime();
+            final long graphBytes = usedHeap() - heapBefore;
+
+            final long runStart = System.nanoTime();
+            CourierSim.run(SimConfig.builder()
+                    .headless(true)
+                    .graphFile(spec)
+                    .endTime(minutes * MINUTE)
+                    .build(), null, null, null);
+            final long runNanos = System.nanoTime() - runStart;
+            final long ticks = minutes * MINUTE / TICK_LENGTH;
+
+            System.out.println(String.format("%s,%d,%d,%d,%d,%.4f", spec,
+                    graph.getNumberOfNodes(), graph.getNumberOfConnections(),
+                    (generated - start) / 1000000, graphBytes >> 20,
+                    runNanos / 1e6 / ticks));
+            CourierSim.evictGraph(spec);
+        }
+    }
+
+    // a spec with (about) the specified number of nodes
+    private static String spec(String kind, int nodes) {
+        final int side = (int) Math.ceil(Math.sqrt(nodes));
+        switch (kind) {
+            case "grid":
+                return GraphGenerator.PREFIX + "grid:" + side + "x" + side;
+            case "planar":
+                return GraphGenerator.PREFIX + "planar:" + nodes;
+            case "ring":
+                return GraphGenerator.PREFIX + "ring:" + side + "x" + side;
+            default:
+                throw new IllegalArgumentException("Unknown kind: " + kind);
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
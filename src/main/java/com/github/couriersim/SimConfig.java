@@ -0,0 +1,463 @@
+package com.github.couriersim;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.cost.CostModel;
+import com.github.couriersim.cost.GasCostModel;
+import com.github.couriersim.metrics.ResultSink;
+
+/**
+ * Immutable set of options for a single {@link CourierSim} run. Use
+ * {@link #builder()} to create one, every option has a sensible default so a
+ * plain <code>SimConfig.builder().build()</code> behaves like
+ * {@link CourierSim#run(boolean)}.
+ */
+public final class SimConfig {
+
+    /** The seed that is used by the simulator when none is specified. */
+    public static final long DEFAULT_SEED = 123L;
+
+    final boolean testing;
+    final boolean headless;
+    final long endTime;
+    final String graphFile;
+    final long seed;
+    @Nullable final ReplayLog.Writer recorder;
+    @Nullable final ReplayLog replay;
+    final long fastForwardTick;
+    final boolean soak;
+    final CostModel costModel;
+    final boolean memoizeDistances;
+    final Taxi.Strategy strategy;
+    final int optimizerThreads;
+    final boolean skipIdle;
+    final boolean sleepIdle;
+    final double wakeRadius;
+    final long rebalanceInterval;
+    final int numTaxis;
+    final double orderProbability;
+    final Dispatcher.Factory dispatcher;
+    final boolean auction;
+    final double auctionRange;
+    final boolean traffic;
+    final int trafficStartHour;
+    final boolean networkNearest;
+    @Nullable final File orderFeed;
+    final int readAhead;
+    @Nullable final ResultSink results;
+    final String resultLabel;
+
+    SimConfig(Builder b) {
+        testing = b.testing;
+        headless = b.headless;
+        endTime = b.endTime;
+        graphFile = b.graphFile;
+        seed = b.seed;
+        recorder = b.recorder;
+        replay = b.replay;
+        fastForwardTick = b.fastForwardTick;
+        soak = b.soak;
+        costModel = b.costModel;
+        memoizeDistances = b.memoizeDistances;
+        strategy = b.strategy;
+        optimizerThreads = b.optimizerThreads;
+        skipIdle = b.skipIdle;
+        sleepIdle = b.sleepIdle;
+        wakeRadius = b.wakeRadius;
+        rebalanceInterval = b.rebalanceInterval;
+        numTaxis = b.numTaxis;
+        orderProbability = b.orderProbability;
+        dispatcher = b.dispatcher;
+        auction = b.auction;
+        auctionRange = b.auctionRange;
+        traffic = b.traffic;
+        trafficStartHour = b.trafficStartHour;
+        networkNearest = b.networkNearest;
+        orderFeed = b.orderFeed;
+        readAhead = b.readAhead;
+        results = b.results;
+        resultLabel = b.resultLabel;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The options that determine the outcome of the run, in the form
+     * {@link Builder#option(String, String)} reads. Not included are the
+     * options of the GUI, recording, replaying and results, and a dispatcher
+     * other than the default.
+     */
+    public Map<String, String> toOptions() {
+        final Map<String, String> o = new LinkedHashMap<>();
+        o.put("graph", graphFile);
+        o.put("seed", Long.toString(seed));
+        o.put("end", Long.toString(endTime));
+        o.put("taxis", Integer.toString(numTaxis));
+        o.put("p", Double.toString(orderProbability));
+        o.put("strategy", strategy.name());
+        o.put("cost", costModel.toString());
+        o.put("memoize", Boolean.toString(memoizeDistances));
+        o.put("optimizers", Integer.toString(optimizerThreads));
+        o.put("skipIdle", Boolean.toString(skipIdle));
+        if (sleepIdle) {
+            o.put("sleep", Double.toString(wakeRadius));
+        }
+        o.put("rebalance", Long.toString(rebalanceInterval));
+        if (auction) {
+            o.put("auction", Double.toString(auctionRange));
+        }
+        if (traffic) {
+            o.put("traffic", Integer.toString(trafficStartHour));
+        }
+        o.put("nearest", Boolean.toString(networkNearest));
+        if (orderFeed != null) {
+            o.put("orders", orderFeed.getPath());
+        }
+        o.put("soak", Boolean.toString(soak));
+        return o;
+    }
+
+    public static final class Builder {
+        boolean testing = false;
+        boolean headless = false;
+        long endTime = Long.MAX_VALUE;
+        String graphFile = CourierSim.MAP_FILE;
+        long seed = DEFAULT_SEED;
+        @Nullable ReplayLog.Writer recorder;
+        @Nullable ReplayLog replay;
+        long fastForwardTick = -1;
+        boolean soak = false;
+        CostModel costModel = new GasCostModel();
+        boolean memoizeDistances = true;
+        Taxi.Strategy strategy = Taxi.Strategy.MULTI_REGION;
+        int optimizerThreads = 0;
+        boolean skipIdle = false;
+        boolean sleepIdle = false;
+        double wakeRadius = 0;
+        long rebalanceInterval = 0;
+        int numTaxis = CourierSim.NUM_TAXIS;
+        double orderProbability = CourierSim.NEW_CUSTOMER_PROB;
+        Dispatcher.Factory dispatcher = RoutePlanDispatcher::install;
+        boolean auction = false;
+        double auctionRange = 0;
+        boolean traffic = false;
+        int trafficStartHour = 0;
+        boolean networkNearest = false;
+        @Nullable File orderFeed;
+        int readAhead = OrderFeed.DEFAULT_READ_AHEAD;
+        @Nullable ResultSink results;
+        String resultLabel = "";
+
+        Builder() {}
+
+        public Builder testing(boolean testing) {
+            this.testing = testing;
+            return this;
+        }
+
+        /**
+         * Runs the simulation without a GUI, {@link CourierSim} then only
+         * returns once the end time is reached.
+         */
+        public Builder headless(boolean headless) {
+            this.headless = headless;
+            return this;
+        }
+
+        public Builder endTime(long endTime) {
+            this.endTime = endTime;
+            return this;
+        }
+
+        public Builder graphFile(String graphFile) {
+            this.graphFile = graphFile;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Records the seed, all order arrivals and all taxi decisions of the
+         * run to the specified writer.
+         */
+        public Builder recordTo(ReplayLog.Writer recorder) {
+            this.recorder = recorder;
+            return this;
+        }
+
+        /**
+         * Re-executes a recorded run: the options of the recorded run are
+         * used (see {@link SimConfig#toOptions()}) and orders arrive exactly
+         * as they were recorded instead of being drawn from the random
+         * generator. Options set afterwards override the recorded ones.
+         */
+        public Builder replay(ReplayLog log) {
+            for (Map.Entry<String, String> e : log.getOptions().entrySet()) {
+                option(e.getKey(), e.getValue());
+            }
+            this.replay = log;
+            this.seed = log.getSeed();
+            this.graphFile = log.getGraphFile();
+            return this;
+        }
+
+        /**
+         * Runs headless up to (and including) the specified tick and then
+         * stops, the returned simulator can then be inspected.
+         */
+        public Builder fastForwardTo(long tick) {
+            this.fastForwardTick = tick;
+            return this;
+        }
+
+        /**
+         * Enables the soak mode for long horizons: delivered parcels are
+         * retired from the simulator, metrics are kept in fixed-size windows
+         * and histograms and the heap usage is reported per simulated day.
+         */
+        public Builder soak(boolean soak) {
+            this.soak = soak;
+            return this;
+        }
+
+        /**
+         * Sets the model the taxis use to estimate the cost of a trip, by
+         * default {@link GasCostModel}.
+         */
+        public Builder costModel(CostModel costModel) {
+            this.costModel = costModel;
+            return this;
+        }
+
+        /**
+         * Whether shortest path distances are memoized per tick in a cache
+         * shared by all taxis, enabled by default.
+         */
+        public Builder memoizeDistances(boolean memoize) {
+            this.memoizeDistances = memoize;
+            return this;
+        }
+
+        /**
+         * Sets how the taxis choose their stops, by default
+         * {@link Taxi.Strategy#MULTI_REGION}.
+         */
+        public Builder strategy(Taxi.Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * The number of threads that improve the route plans in the
+         * background, only used with {@link Taxi.Strategy#ROUTE_PLAN}. By
+         * default 0, plans are only built by insertion.
+         */
+        public Builder optimizerThreads(int threads) {
+            this.optimizerThreads = threads;
+            return this;
+        }
+
+        /**
+         * Skips the work of ticks in which there are no parcels and all taxis
+         * are idle, and draws the next order arrival ahead of time. The
+         * random draws happen in the same order, so the results are the same
+         * as without this option.
+         */
+        public Builder skipIdle(boolean skipIdle) {
+            this.skipIdle = skipIdle;
+            return this;
+        }
+
+        /**
+         * Lets taxis that have nothing to do sleep until a new parcel arrives
+         * or a claim is released within the specified radius, or until stock
+         * arrives at the depot. A radius of 0 wakes all taxis for every
+         * event.
+         */
+        public Builder sleepIdle(double wakeRadius) {
+            this.sleepIdle = true;
+            this.wakeRadius = wakeRadius;
+            return this;
+        }
+
+        /**
+         * Moves idle taxis toward forecast demand hotspots every interval (in
+         * ms of simulated time), 0 (the default) disables rebalancing.
+         */
+        public Builder rebalanceEvery(long interval) {
+            this.rebalanceInterval = interval;
+            return this;
+        }
+
+        public Builder numTaxis(int numTaxis) {
+            this.numTaxis = numTaxis;
+            return this;
+        }
+
+        /**
+         * The probability that a new order arrives during a tick, ignored when
+         * replaying.
+         */
+        public Builder orderProbability(double probability) {
+            this.orderProbability = probability;
+            return this;
+        }
+
+        /**
+         * Sets how orders are assigned to the route plans, only used with
+         * {@link Taxi.Strategy#ROUTE_PLAN}. By default
+         * {@link RoutePlanDispatcher}.
+         */
+        Builder dispatchBy(Dispatcher.Factory factory) {
+            this.dispatcher = factory;
+            return this;
+        }
+
+        /**
+         * New parcels are auctioned among the taxis within the specified
+         * range of their pickup location (see {@link OrderAuction}) instead
+         * of being searched for by every taxi. A range of 0 uses an eighth of
+         * the diagonal of the map. Not used with
+         * {@link Taxi.Strategy#ROUTE_PLAN}.
+         */
+        public Builder auction(double range) {
+            this.auction = true;
+            this.auctionRange = range;
+            return this;
+        }
+
+        /**
+         * Simulates traffic (see {@link TrafficModel}): the speeds of the
+         * roads follow the hour of the day, incidents slow down roads for a
+         * while and the taxis drive the fastest routes.
+         * @param startHour The hour of the day at which the simulation
+         *          starts.
+         */
+        public Builder traffic(int startHour) {
+            this.traffic = true;
+            this.trafficStartHour = startHour;
+            return this;
+        }
+
+        /**
+         * Lets the taxis look for the closest parcel by road distance, with a
+         * search along the roads that stops at the first parcel no other taxi
+         * claimed. By default the closest parcel in a straight line is taken,
+         * claimed or not.
+         */
+        public Builder networkNearest(boolean networkNearest) {
+            this.networkNearest = networkNearest;
+            return this;
+        }
+
+        /**
+         * Replays real orders from a file, see {@link OrderFeed} for the
+         * formats, instead of drawing random arrivals. The orders are
+         * snapped to the nodes of the graph and arrive at their time after
+         * the first order. The coordinates are projected like the
+         * {@link OsmConverter} does, so the graph has to be an OSM map.
+         */
+        public Builder orderFeed(File file) {
+            this.orderFeed = file;
+            return this;
+        }
+
+        /**
+         * Sets how many batches of {@link OrderFeed#BATCH_SIZE} orders an
+         * order feed reads ahead, by default
+         * {@link OrderFeed#DEFAULT_READ_AHEAD}.
+         */
+        public Builder readAhead(int batches) {
+            this.readAhead = batches;
+            return this;
+        }
+
+        /**
+         * Sends the metrics of the run to a sink, e.g. a result store: the
+         * profit, deliveries, distance and tick timings per simulated hour
+         * and for the whole run. The caller closes the sink.
+         * @param label Describes the options of the run, runs are grouped by
+         *          it in queries.
+         */
+        public Builder results(ResultSink sink, String label) {
+            this.results = sink;
+            this.resultLabel = label;
+            return this;
+        }
+
+        /**
+         * Sets an option by name, the names are those of
+         * {@link SimConfig#toOptions()}: <code>graph, seed, end</code> (ms),
+         * <code>taxis, p, strategy, cost</code> (see
+         * {@link CostModel#parse(String)}), <code>memoize, optimizers,
+         * skipIdle, sleep</code> (wake radius), <code>rebalance</code> (ms),
+         * <code>auction</code> (range), <code>traffic</code> (start hour),
+         * <code>nearest, orders</code> (file) and <code>soak</code>.
+         * @throws IllegalArgumentException If the option is unknown or its
+         *           value is invalid.
+         */
+        public Builder option(String key, String value) {
+            try {
+                switch (key) {
+                    case "graph":
+                        return graphFile(value);
+                    case "seed":
+                        return seed(Long.parseLong(value));
+                    case "end":
+                        return endTime(Long.parseLong(value));
+                    case "taxis":
+                        return numTaxis(Integer.parseInt(value));
+                    case "p":
+                        return orderProbability(Double.parseDouble(value));
+                    case "strategy":
+                        return strategy(Taxi.Strategy.valueOf(value.toUpperCase(Locale.ROOT)));
+                    case "cost":
+                        return costModel(CostModel.parse(value));
+                    case "memoize":
+                        return memoizeDistances(Boolean.parseBoolean(value));
+                    case "optimizers":
+                        return optimizerThreads(Integer.parseInt(value));
+                    case "skipIdle":
+                        return skipIdle(Boolean.parseBoolean(value));
+                    case "sleep":
+                        return sleepIdle(Double.parseDouble(value));
+                    case "rebalance":
+                        return rebalanceEvery(Long.parseLong(value));
+                    case "auction":
+                        return auction(Double.parseDouble(value));
+                    case "traffic":
+                        return traffic(Integer.parseInt(value));
+                    case "nearest":
+                        return networkNearest(Boolean.parseBoolean(value));
+                    case "orders":
+                        return orderFeed(new File(value));
+                    case "soak":
+                        return soak(Boolean.parseBoolean(value));
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value: " + key + "=" + value);
+            }
+        }
+
+        public SimConfig build() {
+            if (orderFeed != null && !CourierSim.isProjected(graphFile)) {
+                // the orders would all snap to the same corner of the graph
+                throw new IllegalArgumentException("An order feed needs an OSM map,"
+                        + " the coordinates of " + graphFile + " aren't projected.");
+            }
+            return new SimConfig(this);
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package com.github.couriersim;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.github.couriersim.metrics.ResultSink;
+import com.github.couriersim.metrics.ResultStore;
+
+/**
+ * Long running process that runs simulations for local clients, so a short
+ * what-if run doesn't pay for starting the JVM, loading the graph, building
+ * its indexes and warming up the JIT. Graphs and indexes stay in the caches
+ * of {@link CourierSim}, jobs run concurrently on a bounded pool of workers.
+ * <pre>
+ * SimDaemon [--port N] [--dir DIR] [--workers N] [--queue N] [--store DIR]
+ *           [--preload GRAPH,...]
+ * </pre>
+ * A job is a line of whitespace separated options, e.g.
+ * <code>graph=synthetic:grid:60x60:1 seed=7 hours=4 taxis=20 p=0.02
+ * strategy=NEAREST_NEIGHBOUR</code>. The options are those of
+ * {@link SimConfig.Builder#option(String, String)}, <code>hours</code> (the
+ * end time, by default 8), <code>label</code> and <code>id</code>, a tag that
+ * is repeated in the replies. Jobs are read from a TCP socket on the loopback interface (one job
+ * per line, any number per connection) and from <code>*.job</code> files that
+ * appear in a watched directory. The replies are streamed back as lines while
+ * the job runs, to the socket or to a <code>.out</code> file next to the job
+ * file:
+ * <pre>
+ * accepted ID
+ * interval ID time=.. profit=.. deliveries=.. distance=.. tick_ns=..
+ * done ID profit=.. deliveries=.. distance=.. ticks=.. tick_ns=.. wall_ms=..
+ * failed ID message
+ * rejected ID message
+ * </pre>
+ * Jobs are rejected when all workers are busy and the queue is full. With
+ * <code>--store</code> the metrics are also appended to a
+ * {@link ResultStore}, every worker flushes its rows when no jobs wait.
+ */
+public final class SimDaemon implements Closeable {
+
+    static final int DEFAULT_PORT = 7531;
+    static final String JOB_SUFFIX = ".job";
+    static final double DEFAULT_HOURS = 8;
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final double WARMUP_HOURS = 1;
+    // a busy daemon still makes its rows visible at least this often
+    private static final long FLUSH_INTERVAL = 60 * 1000L;
+
+    private final ThreadPoolExecutor workers;
+    @Nullable
+    private final ResultStore store;
+    private final ThreadLocal<ResultStore.Writer> writers = new ThreadLocal<>();
+    private final ThreadLocal<Long> flushed =
+            ThreadLocal.withInitial(System::currentTimeMillis);
+    private final List<ResultStore.Writer> allWriters = new ArrayList<>();
+    private final List<Closeable> sources = new ArrayList<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    SimDaemon(int threads, int queue, @Nullable ResultStore store) {
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    final Thread t = new Thread(r, "sim-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.store = store;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        File dir = null;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int queue = -1;
+        ResultStore store = null;
+        String preload = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--dir":
+                    dir = new File(args[++i]);
+                    break;
+                case "--workers":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    queue = Integer.parseInt(args[++i]);
+                    break;
+                case "--store":
+                    store = ResultStore.open(new File(args[++i]));
+                    break;
+                case "--preload":
+                    preload = args[++i];
+                    break;
+                default:
+                    System.err.println("usage: SimDaemon [--port N] [--dir DIR] [--workers N]"
+                            + " [--queue N] [--store DIR] [--preload GRAPH,...]");
+                    return;
+            }
+        }
+        final SimDaemon daemon = new SimDaemon(threads,
+                queue > 0 ? queue : 4 * threads, store);
+        if (preload != null) {
+            for (String graph : preload.split(",")) {
+                daemon.warmUp(graph);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        daemon.listen(port);
+        System.out.println("Listening on " + InetAddress.getLoopbackAddress() + ":" + port);
+        if (dir != null) {
+            daemon.watch(dir);
+            System.out.println("Watching " + dir);
+        }
+    }
+
+    /**
+     * Loads a graph and its indexes and runs a short simulation on it, so the
+     * first job doesn't run on cold code.
+     */
+    void warmUp(String graph) {
+        CourierSim.loadGraph(graph);
+        CourierSim.getSpatialIndex(graph);
+        CourierSim.run(SimConfig.builder()
+                .headless(true)
+                .graphFile(graph)
+                .endTime((long) (WARMUP_HOURS * HOUR))
+                .build(), null, null, null);
+    }
+
+    /**
+     * Accepts connections on the loopback interface, every line a
+     * connection sends is a job.
+     */
+    void listen(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        synchronized (sources) {
+            sources.add(server);
+        }
+        final Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    serve(server.accept());
+                } catch (IOException e) {
+                    if (!server.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "sim-daemon-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Runs the jobs of the <code>*.job</code> files in a directory, existing
+     * ones first. A job file has to be complete when it appears, e.g. by
+     * renaming it into the directory. When all its jobs are done it is
+     * renamed to <code>*.job.done</code>.
+     */
+    void watch(final File dir) throws IOException {
+        final WatchService watcher = dir.toPath().getFileSystem().newWatchService();
+        dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        synchronized (sources) {
+            sources.add(watcher);
+        }
+        final Thread thread = new Thread(() -> {
+            // the jobs of a file finish on the workers, they remove it
+            final Set<String> seen = ConcurrentHashMap.newKeySet();
+            try {
+                scan(dir, seen);
+                while (true) {
+                    final WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(dir, seen);
+                        } else {
+                            runFile(dir.toPath().resolve((Path) event.context()).toFile(), seen);
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        }, "sim-daemon-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops taking jobs, waits for the running and queued jobs and flushes
+     * the result store.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (sources) {
+            for (Closeable c : sources) {
+                c.close();
+            }
+            sources.clear();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (allWriters) {
+            for (ResultStore.Writer w : allWriters) {
+                w.close();
+            }
+            allWriters.clear();
+        }
+    }
+
+    /**
+     * Queues a job, the replies go to the client.
+     */
+    void submit(String line, Client client) {
+        final String id = Long.toString(ids.incrementAndGet());
+        final Job job;
+        try {
+            job = Job.parse(line, id);
+        } catch (IllegalArgumentException e) {
+            client.send("failed " + id + " " + e.getMessage());
+            return;
+        }
+        client.add();
+        try {
+            workers.execute(() -> run(job, client));
+            client.send("accepted " + job.id);
+        } catch (RejectedExecutionException e) {
+            client.send("rejected " + job.id + " all workers busy");
+            client.remove();
+        }
+    }
+
+    private void run(Job job, Client client) {
+        try {
+            final ResultStore.Writer writer = writer();
+            job.config.results(new Replies(job.id, client, writer), job.label);
+            CourierSim.run(job.config.build(), null, null, null);
+            if (writer != null && (workers.getQueue().isEmpty()
+                    || System.currentTimeMillis() - flushed.get() >= FLUSH_INTERVAL)) {
+                writer.flush();
+                flushed.set(System.currentTimeMillis());
+            }
+        } catch (Exception e) {
+            client.send("failed " + job.id + " " + e);
+        } finally {
+            client.remove();
+        }
+    }
+
+    // the store writer of the worker thread
+    @Nullable
+    private ResultStore.Writer writer() {
+        if (store == null) {
+            return null;
+        }
+        ResultStore.Writer w = writers.get();
+        if (w == null) {
+            w = store.writer();
+            writers.set(w);
+            synchronized (allWriters) {
+                allWriters.add(w);
+            }
+        }
+        return w;
+    }
+
+    private void serve(final Socket socket) throws IOException {
+        final Client client = new Client(new OutputStreamWriter(socket.getOutputStream(),
+                StandardCharsets.UTF_8), socket);
+        final Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        submit(line, client);
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away, its running jobs still finish
+            } finally {
+                client.end();
+            }
+        }, "sim-daemon-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void scan(File dir, Set<String> seen) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                runFile(f, seen);
+            }
+        }
+    }
+
+    private void runFile(final File file, Set<String> seen) {
+        final String name = file.getName();
+        if (!name.endsWith(JOB_SUFFIX) || !seen.add(name)) {
+            return;
+        }
+        final File out = new File(file.getParentFile(),
+                name.substring(0, name.length() - JOB_SUFFIX.length()) + ".out");
+        try {
+            final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            final Client client = new Client(new OutputStreamWriter(
+                    new FileOutputStream(out, true), StandardCharsets.UTF_8), () -> {
+                        file.renameTo(new File(file.getPath() + ".done"));
+                        seen.remove(name);
+                    });
+            for (String line : lines) {
+                if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                    submit(line, client);
+                }
+            }
+            client.end();
+        } catch (IOException e) {
+            System.err.println("Can't run " + file + ": " + e);
+        }
+    }
+
+    /**
+     * A parsed job.
+     */
+    static final class Job {
+        final String id;
+        final String label;
+        final SimConfig.Builder config;
+
+        Job(String id, String label, SimConfig.Builder config) {
+            this.id = id;
+            this.label = label;
+            this.config = config;
+        }
+
+        /**
+         * @param line The options of the job.
+         * @param id The id of the job if the options don't contain one.
+         * @throws IllegalArgumentException If an option is unknown or its
+         *           value is invalid.
+         */
+        static Job parse(String line, String id) {
+            final SimConfig.Builder b = SimConfig.builder()
+                    .headless(true)
+                    .endTime((long) (DEFAULT_HOURS * HOUR));
+            String label = null;
+            final StringBuilder options = new StringBuilder();
+            for (String option : line.trim().split("\\s+")) {
+                final int eq = option.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + option);
+                }
+                final String key = option.substring(0, eq);
+                final String value = option.substring(eq + 1);
+                switch (key) {
+                    case "id":
+                        id = value;
+                        continue;
+                    case "label":
+                        label = value;
+                        continue;
+                    case "hours":
+                        final double hours;
+                        try {
+                            hours = Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid value: " + option);
+                        }
+                        if (!(hours > 0)) {
+                            throw new IllegalArgumentException("hours must be positive: " + hours);
+                        }
+                        b.endTime((long) (hours * HOUR));
+                        break;
+                    default:
+                        b.option(key, value);
+                }
+                options.append(options.length() == 0 ? "" : " ").append(option);
+            }
+            return new Job(id, label != null ? label : options.toString(), b);
+        }
+    }
+
+    /**
+     * Where the replies to the jobs of a connection or job file go. Knows how
+     * many jobs are still running, the output is closed after the last one
+     * once no more jobs come.
+     */
+    static final class Client {
+        private final Writer out;
+        @Nullable
+        private final Closeable onDone;
+        private int pending;
+        private boolean ended;
+        private boolean broken;
+
+        Client(Writer out, @Nullable Closeable onDone) {
+            this.out = out;
+            this.onDone = onDone;
+        }
+
+        synchronized void send(String line) {
+            if (broken) {
+                return;
+            }
+            try {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+
+        synchronized void add() {
+            pending++;
+        }
+
+        synchronized void remove() {
+            pending--;
+            closeIfDone();
+        }
+
+        // no more jobs will be added
+        synchronized void end() {
+            ended = true;
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (!ended || pending > 0) {
+                return;
+            }
+            try {
+                out.close();
+                if (onDone != null) {
+                    onDone.close();
+                }
+            } catch (IOException e) {
+                // nobody left to tell
+            }
+        }
+    }
+
+    // streams the metrics of a job to its client and the store
+    private static final class Replies implements ResultSink {
+        private final String id;
+        private final Client client;
+        @Nullable
+        private final ResultSink store;
+
+        Replies(String id, Client client, @Nullable ResultSink store) {
+            this.id = id;
+            this.client = client;
+            this.store = store;
+        }
+
+        @Override
+        public void run(String config, long seed, double profit, long deliveries,
+                        double distance, long ticks, double tickMeanNanos,
+                        long tickP99Nanos, long wallMs) throws IOException {
+            if (store != null) {
+                store.run(config, seed, profit, deliveries, distance, ticks,
+                        tickMeanNanos, tickP99Nanos, wallMs);
+            }
+            client.send(String.format(Locale.ROOT,
+                    "done %s profit=%.2f deliveries=%d distance=%.2f ticks=%d tick_ns=%.0f"
+                            + " wall_ms=%d",
+                    id, profit, deliveries, distance, ticks, tickMeanNanos, wallMs));
+        }
+
+        @Override
+        public void interval(String config, long seed, long time, double profit,
+                             long deliveries, double distance, double tickMeanNanos)
+                throws IOException {
+            if (store != null) {
+                store.interval(config, seed, time, profit, deliveries, distance,
+                        tickMeanNanos);
+            }
+            client.send(String.format(Locale.ROOT,
+                    "interval %s time=%d profit=%.2f deliveries=%d distance=%.2f tick_ns=%.0f",
+                    id, time, profit, deliveries, distance, tickMeanNanos));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.couriersim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.couriersim.metrics.LogHistogram;
+import com.github.couriersim.metrics.SlidingWindow;
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+
+/**
+ * Keeps the state of long (multi-day) runs bounded. Delivered parcels are
+ * unregistered from the simulator and only survive as a primitive summary in
+ * a ring buffer of recent deliveries, all other metrics live in fixed-size
+ * sliding windows and histograms. Once per simulated day a report including
+ * the heap usage is printed, which should stay flat for the whole run.
+ */
+final class SoakMonitor implements TickListener, Listener {
+
+    static final long HOUR = 60 * 60 * 1000L;
+    static final long DAY = 24 * HOUR;
+
+    // number of delivery summaries that are kept
+    private static final int RECENT_DELIVERIES = 1024;
+    private static final int HISTOGRAM_PRECISION = 7;
+
+    private final Simulator simulator;
+    private final RoadModel roadModel;
+
+    // arrival and pickup time of every parcel that is not yet delivered
+    private final Map<Parcel, long[]> open = new IdentityHashMap<>();
+    private final List<Parcel> toRetire = new ArrayList<>();
+
+    private final long[] arrivalTimes = new long[RECENT_DELIVERIES];
+    private final long[] pickupTimes = new long[RECENT_DELIVERIES];
+    private final long[] deliveryTimes = new long[RECENT_DELIVERIES];
+    private final float[] capacities = new float[RECENT_DELIVERIES];
+    private long delivered;
+
+    private final LogHistogram waitTimes = new LogHistogram(HISTOGRAM_PRECISION);
+    private final LogHistogram deliveryLatencies = new LogHistogram(HISTOGRAM_PRECISION);
+    private final SlidingWindow deliveriesPerDay = new SlidingWindow(24, HOUR);
+    private final SlidingWindow profitPerDay = new SlidingWindow(24, HOUR);
+
+    private double lastProfit;
+    private long nextHour = HOUR;
+    private long nextDay = DAY;
+    private long lastHeapAfterGc;
+
+    SoakMonitor(Simulator simulator, RoadModel roadModel) {
+        this.simulator = simulator;
+        this.roadModel = roadModel;
+    }
+
+    static SoakMonitor install(Simulator simulator, RoadModel rm, PDPModel pm) {
+        final SoakMonitor monitor = new SoakMonitor(simulator, rm);
+        pm.getEventAPI().addListener(monitor, PDPModelEventType.NEW_PARCEL,
+                PDPModelEventType.END_PICKUP, PDPModelEventType.END_DELIVERY);
+        simulator.addTickListener(monitor);
+        return monitor;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final PDPModelEvent event = (PDPModelEvent) e;
+        final Parcel p = event.parcel;
+        if (p == null) {
+            return;
+        }
+        if (e.getEventType() == PDPModelEventType.NEW_PARCEL) {
+            open.put(p, new long[] {event.time, -1});
+        } else if (e.getEventType() == PDPModelEventType.END_PICKUP) {
+            final long[] times = open.get(p);
+            if (times != null) {
+                times[1] = event.time;
+                waitTimes.record(Math.max(0, event.time - times[0]));
+            }
+        } else if (e.getEventType() == PDPModelEventType.END_DELIVERY) {
+            final long[] times = open.remove(p);
+            final int i = (int) (delivered++ % RECENT_DELIVERIES);
+            arrivalTimes[i] = times == null ? -1 : times[0];
+            pickupTimes[i] = times == null ? -1 : times[1];
+            deliveryTimes[i] = event.time;
+            capacities[i] = (float) p.getNeededCapacity();
+            if (times != null) {
+                deliveryLatencies.record(Math.max(0, event.time - times[0]));
+            }
+            deliveriesPerDay.record(event.time, 1);
+            // unregistering inside the event would modify the model while it
+            // is dispatching, so this happens after the tick
+            toRetire.add(p);
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {}
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {
+        for (Parcel p : toRetire) {
+            simulator.unregister(p);
+        }
+        toRetire.clear();
+
+        final long time = timeLapse.getEndTime();
+        if (time >= nextHour) {
+            final double profit = getFleetProfit();
+            profitPerDay.record(time, profit - lastProfit);
+            lastProfit = profit;
+            nextHour += HOUR;
+        }
+        if (time >= nextDay) {
+            deliveriesPerDay.advance(time);
+            profitPerDay.advance(time);
+            lastHeapAfterGc = heapAfterLastGc();
+            final Runtime rt = Runtime.getRuntime();
+            System.out.println(String.format(
+                    "day %d: delivered=%d open=%d last24h[deliveries=%d profit=%.2f]"
+                            + " wait[%s] latency[%s] heap=%dMB heapAfterGc=%dMB",
+                    time / DAY, delivered, open.size(),
+                    deliveriesPerDay.getCount(), profitPerDay.getSum(),
+                    waitTimes, deliveryLatencies,
+                    (rt.totalMemory() - rt.freeMemory()) >> 20,
+                    lastHeapAfterGc >> 20));
+            nextDay += DAY;
+        }
+    }
+
+    long getDelivered() {
+        return delivered;
+    }
+
+    LogHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    LogHistogram getDeliveryLatencies() {
+        return deliveryLatencies;
+    }
+
+    /**
+     * @param age 0 for the most recent delivery, 1 for the one before, etc.
+     * @return arrival, pickup and delivery time of a recent delivery.
+     */
+    long[] getRecentDelivery(int age) {
+        if (age >= Math.min(delivered, RECENT_DELIVERIES)) {
+            throw new IllegalArgumentException("Only " + Math.min(delivered,
+                    RECENT_DELIVERIES) + " deliveries are kept.");
+        }
+        final int i = (int) ((delivered - 1 - age) % RECENT_DELIVERIES);
+        return new long[] {arrivalTimes[i], pickupTimes[i], deliveryTimes[i]};
+    }
+
+    private double getFleetProfit() {
+        double total = 0;
+        for (RoadUser ru : roadModel.getObjects(CourierSim.Pred.TAXIS)) {
+            total += ((Taxi) ru).getProfit();
+        }
+        return total;
+    }
+
+    // heap in use right after the last collection, this is what has to stay
+    // flat, the current usage also contains garbage
+    static long heapAfterLastGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                final MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    used += usage.getUsed();
+                }
+            }
+        }
+        return used;
+    }
+}
@@ -1,18 +1,30 @@
 package com.github.couriersim;
 
+import com.github.couriersim.cost.CostModel;
+import com.github.couriersim.cost.DistanceCache;
+import com.github.couriersim.cost.GasCostModel;
+import com.github.couriersim.index.HubDistanceTable;
+import com.github.couriersim.index.NetworkKnn;
 import com.github.rinde.rinsim.core.model.pdp.*;
+import com.github.rinde.rinsim.core.model.road.GraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.MoveProgress;
 import com.github.rinde.rinsim.core.model.road.MovingRoadUser;
 import com.github.rinde.rinsim.core.model.road.RoadModel;
 import com.github.rinde.rinsim.core.model.road.RoadModels;
 import com.github.rinde.rinsim.core.model.road.RoadUser;
 import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Connection;
 import com.github.rinde.rinsim.geom.Point;
 import com.google.common.base.Predicate;
 import org.jetbrains.annotations.Nullable;
 
 import javax.measure.unit.SI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 
 /**
@@ -21,28 +33,435 @@ import java.util.Set;
  *
  * @author Rinde van Lon
  */
-class Taxi extends Vehicle {
-    private static final double SPEED = 1000d;
+class Taxi extends Vehicle implements AuctionChannel.Receiver {
+    static final double SPEED = 1000d;
+    private static final DecisionListener NO_LISTENER = new DecisionListener() {
+        @Override
+        public void decided(long tick, Taxi taxi, Decision decision,
+                            @Nullable Parcel p) {}
+    };
+    private final int id;
+    private DecisionListener decisionListener = NO_LISTENER;
     private boolean shouldMoveToDepot = false;
     private String printed;
     private String role;
     private Parcel current_parcel;
     private double profit;
-    private final double GAS_PRICE_PER_GALON = 270d;
-    private final double KM_PER_GALON = 30d;
-    private final double PERCENTAGE_KM = .01;
+    // km driven so far
+    private double odometer;
+    private CostModel costModel = new GasCostModel();
+    @Nullable
+    private DistanceCache distanceCache;
+    @Nullable
+    private HubDistanceTable hubTable;
+    // rest of the route to the depot from the hub table, only valid while
+    // the taxi keeps driving to the depot
+    @Nullable
+    private Queue<Point> depotRoute;
+    private boolean routedToDepot;
+    @Nullable
+    private NetworkKnn knn;
+    private double knnRadius;
+    // reused result of the road distance searches
+    private final List<Parcel> nearest = new ArrayList<>(1);
+    @Nullable
+    private TrafficModel traffic;
+    // fastest route by the traffic model, the nodes still ahead
+    @Nullable
+    private Queue<Point> route;
+    @Nullable
+    private int[] routeEdges;
+    @Nullable
+    private Point routeTarget;
+    private boolean routeStale;
+    private Strategy strategy = Strategy.MULTI_REGION;
+    @Nullable
+    private RoutePlan plan;
+    @Nullable
+    private Quiescence quiescence;
+    @Nullable
+    private WakeupHub wakeupHub;
+    private boolean asleep;
+    @Nullable
+    private OrderBook orderBook;
+    @Nullable
+    private DepotInventory depotInventory;
+    // batch taken from the depot inventory that still has to be loaded
+    private final ArrayDeque<Parcel> loading = new ArrayDeque<>();
+    // parcel the taxi heads to, other taxis consider it taken
+    @Nullable
+    private Parcel claim;
+    // node an idle taxi drives to because demand is expected there
+    @Nullable
+    private Point rebalanceTarget;
+    @Nullable
+    private OrderAuction auction;
+    // auction messages delivered since the last tick
+    private final List<OrderAuction.Message> inbox = new ArrayList<>();
+    // parcels won in the auction, picked up in this order
+    private final ArrayDeque<Parcel> awarded = new ArrayDeque<>();
+    // parcel of the bid that is not answered yet
+    @Nullable
+    private Parcel bidOn;
 
 
-    Taxi(Point startPosition, int capacity) {
+    Taxi(int id, Point startPosition, int capacity) {
         super(VehicleDTO.builder()
                 .capacity(capacity)
                 .startPosition(startPosition)
                 .speed(SPEED)
                 .build());
+        this.id = id;
         profit = 0;
         role = "Pickup";
     }
 
+    /**
+     * The decisions a taxi takes, these are reported to the
+     * {@link DecisionListener}. Don't reorder, the ordinal is stored in
+     * {@link ReplayLog}s.
+     */
+    enum Decision {
+        TARGET_PICKUP, TARGET_DELIVERY, RETARGET, PICKUP, DELIVER,
+        RETURN_TO_DEPOT, DROP, LOAD,
+        /** An order was moved to the plan of another taxi. */
+        RELEASE,
+        /** An order of another taxi was moved to this plan. */
+        REASSIGN
+    }
+
+    /**
+     * Receives every decision of a taxi, used for recording runs.
+     */
+    interface DecisionListener {
+        void decided(long tick, Taxi taxi, Decision decision, @Nullable Parcel p);
+    }
+
+    /**
+     * The ways a taxi can choose its next stop.
+     */
+    enum Strategy {
+        /** Pickup or deliver the nearest parcel, one at a time. */
+        NEAREST_NEIGHBOUR,
+        /** Pickup and delivery taxis exchanging parcels at the depot. */
+        MULTI_REGION,
+        /**
+         * Follow a {@link RoutePlan} of multiple stops, orders are inserted
+         * by the {@link RoutePlanDispatcher}.
+         */
+        ROUTE_PLAN
+    }
+
+    int getId() {
+        return id;
+    }
+
+    void setDecisionListener(DecisionListener listener) {
+        decisionListener = listener;
+    }
+
+    void setCostModel(CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    /**
+     * @param cache Cache shared by all taxis that memoizes distances within a
+     *          tick, <code>null</code> to query the road model every time.
+     */
+    void setDistanceCache(@Nullable DistanceCache cache) {
+        distanceCache = cache;
+    }
+
+    /**
+     * @param table Shortest path trees of the depots, distances and routes
+     *          to and from a depot are looked up in it. <code>null</code> to
+     *          query the road model.
+     */
+    void setHubTable(@Nullable HubDistanceTable table) {
+        hubTable = table;
+    }
+
+    /**
+     * @param index Finds the closest parcels by road distance, the taxi then
+     *          skips parcels other taxis claimed. <code>null</code> to take
+     *          the closest parcel in a straight line.
+     * @param radius The road distance up to which the index is searched,
+     *          beyond it the closest unclaimed parcel in a straight line is
+     *          taken.
+     */
+    void setNetworkKnn(@Nullable NetworkKnn index, double radius) {
+        knn = index;
+        knnRadius = radius;
+    }
+
+    /**
+     * @param traffic The traffic of a dynamic graph, the taxi then drives the
+     *          fastest routes and repairs them when the speed of a road
+     *          ahead changes. <code>null</code> for static roads.
+     */
+    void setTraffic(@Nullable TrafficModel traffic) {
+        this.traffic = traffic;
+    }
+
+    /**
+     * Called by the {@link TrafficModel} when the speed of a connection of
+     * the route of this taxi changed.
+     */
+    void routeChanged(int edge) {
+        if (route == null || routeEdges == null) {
+            return;
+        }
+        // the connections behind the taxi don't matter
+        for (int i = routeEdges.length - route.size(); i < routeEdges.length; i++) {
+            if (i >= 0 && routeEdges[i] == edge) {
+                routeStale = true;
+                return;
+            }
+        }
+    }
+
+    void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+        plan = strategy == Strategy.ROUTE_PLAN
+                ? new RoutePlan(getCapacity()) : null;
+    }
+
+    /**
+     * @param quiescence Tells when nothing can happen, the taxi then skips
+     *          its decision. <code>null</code> to always decide.
+     */
+    void setQuiescence(@Nullable Quiescence quiescence) {
+        this.quiescence = quiescence;
+    }
+
+    /**
+     * @param hub Where the taxi sleeps while it has nothing to do,
+     *          <code>null</code> to search for work every tick.
+     */
+    void setWakeupHub(@Nullable WakeupHub hub) {
+        wakeupHub = hub;
+    }
+
+    /**
+     * @param book The shared book of waiting parcels and their claims,
+     *          <code>null</code> to scan the road model instead.
+     */
+    void setOrderBook(@Nullable OrderBook book) {
+        orderBook = book;
+    }
+
+    /**
+     * @param inventory The parcels dropped at the depot, pickup taxis ignore
+     *          these and delivery taxis load them in batches.
+     */
+    void setDepotInventory(@Nullable DepotInventory inventory) {
+        depotInventory = inventory;
+    }
+
+    /**
+     * @param auction The auction in which the taxi bids for new parcels,
+     *          <code>null</code> to look for parcels itself. A taxi in an
+     *          auction only picks up the parcels it won and never sleeps.
+     */
+    void setAuction(@Nullable OrderAuction auction) {
+        this.auction = auction;
+    }
+
+    @Override
+    public void receive(OrderAuction.Message message) {
+        inbox.add(message);
+    }
+
+    void setAsleep(boolean asleep) {
+        this.asleep = asleep;
+    }
+
+    boolean isAsleep() {
+        return asleep;
+    }
+
+    /**
+     * @return Whether the taxi has nothing to do until a new parcel arrives.
+     */
+    boolean isIdle() {
+        return rebalanceTarget == null && hasNoWork();
+    }
+
+    private boolean hasNoWork() {
+        return current_parcel == null && !shouldMoveToDepot
+                && (plan == null || plan.isEmpty())
+                && awarded.isEmpty() && bidOn == null;
+    }
+
+    /**
+     * @return Whether the taxi is empty and has nothing to do, such that it
+     *         can be sent to a demand hotspot. Delivery taxis stay put.
+     */
+    boolean canRebalance() {
+        return hasNoWork() && !Objects.equals(role, "Delivery")
+                && getPDPModel().getContentsSize(this) == 0;
+    }
+
+    /**
+     * Sends an idle taxi to the specified node, it stops as soon as it gets
+     * work.
+     */
+    void rebalanceTo(Point target) {
+        rebalanceTarget = target;
+        asleep = false;
+    }
+
+    @Nullable
+    RoutePlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Prices the insertion of an order in the plan of this taxi.
+     * @return <code>null</code> if the order doesn't fit in the plan.
+     */
+    @Nullable
+    RoutePlan.Insertion priceInsertion(Parcel p) {
+        final RoutePlan.Distances d = distances();
+        plan.refresh(d, getPDPModel().getContentsSize(this));
+        return plan.cheapestInsertion(p, d);
+    }
+
+    /**
+     * Adds an order to the plan, the insertion has to be priced on the
+     * current plan by {@link #priceInsertion(Parcel)}.
+     */
+    void assign(RoutePlan.Insertion insertion, long tick) {
+        plan.insert(insertion);
+        profit += calculateParcelCharge(insertion.parcel)
+                - costModel.cost(insertion.delta, insertion.delta / SPEED);
+        decisionListener.decided(tick, this, Decision.TARGET_PICKUP, insertion.parcel);
+    }
+
+    /**
+     * @return The road length in km of the current plan, from the current
+     *         position of the taxi.
+     */
+    double pricePlan() {
+        plan.refresh(distances(), getPDPModel().getContentsSize(this));
+        return plan.getLength();
+    }
+
+    /**
+     * @return The road length in km of a plan with the specified stops, from
+     *         the current position of the taxi.
+     */
+    double priceStops(List<RoutePlan.Stop> stops) {
+        return new RoutePlan(plan.getCapacity(), getPDPModel().getContentsSize(this),
+                stops, distances()).getLength();
+    }
+
+    /**
+     * Replaces the stops of the plan, e.g. by the ones of an improved plan
+     * found by the {@link PlanOptimizer}. The profit is charged with the
+     * change of the road length, orders that move between plans move their
+     * charge along and are reported as {@link Decision#RELEASE} and
+     * {@link Decision#REASSIGN}.
+     */
+    void adoptPlan(List<RoutePlan.Stop> stops, long tick) {
+        final double before = pricePlan();
+        final List<Parcel> released = new ArrayList<>();
+        for (RoutePlan.Stop s : plan.getStops()) {
+            if (s.pickup && !picksUp(stops, s.parcel)) {
+                released.add(s.parcel);
+            }
+        }
+        final List<Parcel> reassigned = new ArrayList<>();
+        for (RoutePlan.Stop s : stops) {
+            if (s.pickup && !plan.contains(s.parcel)) {
+                reassigned.add(s.parcel);
+            }
+        }
+        plan.setStops(stops, distances());
+        final double delta = plan.getLength() - before;
+        profit -= costModel.cost(delta, delta / SPEED);
+        for (Parcel p : released) {
+            profit -= calculateParcelCharge(p);
+            decisionListener.decided(tick, this, Decision.RELEASE, p);
+        }
+        for (Parcel p : reassigned) {
+            profit += calculateParcelCharge(p);
+            decisionListener.decided(tick, this, Decision.REASSIGN, p);
+        }
+    }
+
+    private static boolean picksUp(List<RoutePlan.Stop> stops, Parcel p) {
+        for (RoutePlan.Stop s : stops) {
+            if (s.pickup && s.parcel == p) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void decide(TimeLapse time, Decision decision, @Nullable Parcel p) {
+        decisionListener.decided(time.getStartTime() / time.getTickLength(),
+                this, decision, p);
+        if (wakeupHub != null || orderBook != null || depotInventory != null) {
+            updateClaim(decision, p);
+        }
+    }
+
+    // keeps the order book up to date and tells the sleeping taxis about
+    // released claims and new depot stock
+    private void updateClaim(Decision decision, @Nullable Parcel p) {
+        final Parcel released = claim;
+        switch (decision) {
+            case TARGET_PICKUP:
+            case RETARGET:
+                claim = p;
+                break;
+            case PICKUP:
+                // the parcel is gone, the book removes it by itself
+                claim = null;
+                return;
+            case TARGET_DELIVERY:
+            case RETURN_TO_DEPOT:
+                claim = null;
+                break;
+            case DROP:
+                // back on the road, waiting at the depot
+                if (depotInventory != null) {
+                    depotInventory.add(p);
+                } else if (orderBook != null) {
+                    orderBook.add(p);
+                }
+                if (wakeupHub != null) {
+                    wakeupHub.stockArrived();
+                }
+                return;
+            default:
+                return;
+        }
+        if (released == claim) {
+            return;
+        }
+        if (released != null) {
+            if (orderBook != null) {
+                orderBook.release(released, this);
+            }
+            if (wakeupHub != null) {
+                wakeupHub.claimReleased(released.getPickupLocation());
+            }
+        }
+        if (claim != null && orderBook != null) {
+            orderBook.claim(claim, this);
+        }
+    }
+
+    private void sleep() {
+        // a rebalancing taxi sleeps once it arrived, calls for bids don't
+        // wake a sleeping taxi
+        if (wakeupHub != null && rebalanceTarget == null && auction == null) {
+            wakeupHub.sleep(this, getRoadModel().getPosition(this));
+        }
+    }
+
     public void setRole(String role) {
         this.role = role;
     }
@@ -50,6 +469,13 @@ class Taxi extends Vehicle {
         return profit;
     }
 
+    /**
+     * @return The distance the taxi drove so far, in km.
+     */
+    public double getDistanceDriven() {
+        return odometer;
+    }
+
     @Override
     public void afterTick(TimeLapse timeLapse) {}
 
@@ -83,17 +509,19 @@ class Taxi extends Vehicle {
             current_parcel = null;
         } else if (inCargo) {
             // if it is in cargo, go to its destination
-            rm.moveTo(this, current_parcel.getDeliveryLocation(), time);
+            driveTo(current_parcel.getDeliveryLocation(), time);
             if (rm.getPosition(this).equals(current_parcel.getDeliveryLocation())) {
                 // deliver when we arrive
                 pm.deliver(this, current_parcel, time);
+                decide(time, Decision.DELIVER, current_parcel);
             }
         } else {
             // it is still available, go there as fast as possible
-            rm.moveTo(this, current_parcel, time);
+            driveTo(rm.getPosition(current_parcel), time);
             if (rm.equalPosition(this, current_parcel)) {
                 // pickup customer
                 pm.pickup(this, current_parcel, time);
+                decide(time, Decision.PICKUP, current_parcel);
             }
         }
     }
@@ -129,25 +557,28 @@ class Taxi extends Vehicle {
 
         if (current_parcel != null) {
             if (pm.containerContains(this, current_parcel)) {
-                rm.moveTo(this, current_parcel.getDeliveryLocation(), time);
+                driveTo(current_parcel.getDeliveryLocation(), time);
                 if (rm.getPosition(this).equals(current_parcel.getDeliveryLocation())) {
                     // deliver when we arrive
                     pm.deliver(this, current_parcel, time);
+                    decide(time, Decision.DELIVER, current_parcel);
                     current_parcel = null;
                 }
             } else {
-                if (isParcelAlreadyTaken(current_parcel)) {
+                if (auction == null && isParcelAlreadyTaken(current_parcel)) {
                     printlnonce("It's already taken!");
                     profit -= calculateParcelProfit(current_parcel);
                     current_parcel = pickClosestNonTakenParcel();
                     profit += calculateParcelProfit(current_parcel);
+                    decide(time, Decision.RETARGET, current_parcel);
                     return;
                 }
                 printlnonce("Moving");
-                rm.moveTo(this, current_parcel.getPickupLocation(), time);
+                driveTo(current_parcel.getPickupLocation(), time);
                 if (rm.getPosition(this).equals(current_parcel.getPickupLocation())) {
                     // pickup when we arrive
                     pm.pickup(this, current_parcel, time);
+                    decide(time, Decision.PICKUP, current_parcel);
                     current_parcel = null;
                 }
             }
@@ -166,29 +597,42 @@ class Taxi extends Vehicle {
             }
         }
 
-        Parcel p = RoadModels.findClosestObject(rm.getPosition(this), rm, Parcel.class);
+        Parcel p = auction != null ? awarded.peek()
+                : knn != null ? findNearestUnclaimedParcel(false)
+                : RoadModels.findClosestObject(rm.getPosition(this), rm, Parcel.class);
         if (p == null && closest_parcel != null) {
             printlnonce("Last parcel to be delivered?");
             current_parcel = closest_parcel;
             profit -= calculateMovingCost(current_parcel);
+            decide(time, Decision.TARGET_DELIVERY, current_parcel);
         } else if (p != null && closest_parcel != null) {
             double available_capacity = getAvailableCapacity();
-            boolean is_closest_already_taken = isParcelAlreadyTaken(p);
+            boolean is_closest_already_taken = auction == null && isParcelAlreadyTaken(p);
             if (is_closest_already_taken || (p.getNeededCapacity() > available_capacity
                     || p.getPickupDuration() > closest_parcel.getDeliveryDuration())) {
                 printlnonce("Trying to deliver the closest parcel");
                 current_parcel = closest_parcel;
                 profit -= calculateMovingCost(current_parcel);
+                decide(time, Decision.TARGET_DELIVERY, current_parcel);
             } else if (p.getNeededCapacity() <= available_capacity
                     && p.getPickupDuration() <= closest_parcel.getDeliveryDuration()) {
                 printlnonce("Trying to pickup the closest parcel");
                 current_parcel = p;
+                awarded.remove(p);
                 profit += calculateParcelProfit(current_parcel);
+                decide(time, Decision.TARGET_PICKUP, current_parcel);
             }
         } else if (p != null) {
             printlnonce("Trying to pickup the closest parcel (only option)");
-            current_parcel = pickClosestNonTakenParcel();
+            current_parcel = auction != null ? awarded.poll() : pickClosestNonTakenParcel();
             profit += calculateParcelProfit(current_parcel);
+            decide(time, Decision.TARGET_PICKUP, current_parcel);
+            if (current_parcel == null) {
+                // all taken, wait for a claim to be released
+                sleep();
+            }
+        } else {
+            sleep();
         }
     }
 
@@ -209,36 +653,123 @@ class Taxi extends Vehicle {
             return;
         }
         if (current_parcel != null) {
-            rm.moveTo(this, current_parcel.getDeliveryLocation(), time);
+            driveTo(current_parcel.getDeliveryLocation(), time);
             if (rm.getPosition(this).equals(current_parcel.getDeliveryLocation())) {
                 // pickup when we arrive
                 pm.deliver(this, current_parcel, time);
+                decide(time, Decision.DELIVER, current_parcel);
                 current_parcel = null;
             }
             return;
 
         }
-        if (pm.getContentsSize(this) > 0) {
+        if (pm.getContentsSize(this) > 0 && loading.isEmpty()) {
             for(Parcel parcel: pm.getContents(this)) {
                 current_parcel = parcel;
                 profit -= calculateCostByDistance(current_parcel.getDeliveryLocation());
+                decide(time, Decision.TARGET_DELIVERY, current_parcel);
                 return;
             }
         }
 
-        if (pm.getContentsSize(depot) > 0) {
-            rm.moveTo(this, depot, time);
+        if (depotInventory != null) {
+            loadFromInventory(time, depot);
+        } else if (pm.getContentsSize(depot) > 0) {
+            moveToDepot(depot, time);
             if (rm.getPosition(this).equals(rm.getPosition(depot))) {
                 for (Parcel parcel: pm.getContents(depot)) {
                     if (getAvailableCapacity() < parcel.getNeededCapacity()) {
                         continue;
                     }
                     pm.addParcelIn(this, parcel);
+                    decide(time, Decision.LOAD, parcel);
                 }
             }
+        } else if (wakeupHub != null) {
+            wakeupHub.sleepUntilStock(this);
+        }
+    }
+
+    // drives to the depot, takes a batch and picks it up one parcel at a time
+    private void loadFromInventory(TimeLapse time, Depot depot) {
+        final RoadModel rm = getRoadModel();
+        final PDPModel pm = getPDPModel();
+        if (loading.isEmpty() && depotInventory.isEmpty()) {
+            if (wakeupHub != null) {
+                wakeupHub.sleepUntilStock(this);
+            }
+            return;
+        }
+        moveToDepot(depot, time);
+        if (!rm.getPosition(this).equals(rm.getPosition(depot))) {
+            return;
+        }
+        if (loading.isEmpty()) {
+            loading.addAll(depotInventory.takeBatch(getAvailableCapacity()));
+        }
+        if (!loading.isEmpty() && time.hasTimeLeft()
+                && pm.getVehicleState(this) == PDPModel.VehicleState.IDLE) {
+            final Parcel parcel = loading.poll();
+            pm.pickup(this, parcel, time);
+            depotInventory.pickedUp(parcel);
+            decide(time, Decision.LOAD, parcel);
+        }
+    }
+
+    // follows the route of the hub table when the taxi is on a node, lets
+    // the road model find the way otherwise
+    private void moveToDepot(Depot depot, TimeLapse time) {
+        final RoadModel rm = getRoadModel();
+        if (traffic != null) {
+            // the trees are by length, not by travel time
+            driveTo(rm.getPosition(depot), time);
+            return;
+        }
+        routedToDepot = true;
+        if (depotRoute == null && hubTable != null) {
+            final int hub = hubTable.hubIndex(rm.getPosition(depot));
+            final List<Point> route = hub < 0 ? null
+                    : hubTable.routeToHub(hub, rm.getPosition(this));
+            if (route != null) {
+                depotRoute = new LinkedList<>(route);
+            }
+        }
+        if (depotRoute == null) {
+            travelled(rm.moveTo(this, depot, time));
+        } else if (!depotRoute.isEmpty()) {
+            travelled(rm.followPath(this, depotRoute, time));
+        }
+        if (depotRoute != null && depotRoute.isEmpty()) {
+            depotRoute = null;
+        }
+    }
+
+    // moves toward a node, on the fastest route if there is traffic
+    private void driveTo(Point target, TimeLapse time) {
+        final RoadModel rm = getRoadModel();
+        if (traffic == null) {
+            travelled(rm.moveTo(this, target, time));
+            return;
+        }
+        if (route == null || routeStale || !target.equals(routeTarget)) {
+            final TrafficModel.Route r = traffic.route(rm, this, target);
+            traffic.watch(this, routeEdges, r == null ? null : r.edges);
+            route = r == null ? null : new LinkedList<>(r.nodes);
+            routeEdges = r == null ? null : r.edges;
+            routeTarget = target;
+            routeStale = false;
+        }
+        if (route == null) {
+            travelled(rm.moveTo(this, target, time));
+        } else if (!route.isEmpty()) {
+            travelled(rm.followPath(this, route, time));
         }
     }
 
+    private void travelled(MoveProgress progress) {
+        odometer += progress.distance().doubleValue(SI.KILOMETER);
+    }
+
     private boolean isTruckFull() {
         final PDPModel pm = getPDPModel();
         return pm.getContainerCapacity(this) == pm.getContentsSize(this);
@@ -254,11 +785,12 @@ class Taxi extends Vehicle {
         }
 
         if (isTruckFull() || shouldMoveToDepot) {
-            rm.moveTo(this, depot, time);
+            moveToDepot(depot, time);
             if (rm.getPosition(this).equals(rm.getPosition(depot))) {
                 // deliver when we arrive
                 for (Parcel parcel: pm.getContents(this)) {
                     pm.drop(this, parcel, time);
+                    decide(time, Decision.DROP, parcel);
                 }
                 shouldMoveToDepot = false;
             }
@@ -266,18 +798,20 @@ class Taxi extends Vehicle {
         }
 
         if (current_parcel != null) {
-            if (isParcelAlreadyTaken(current_parcel)) {
+            if (auction == null && isParcelAlreadyTaken(current_parcel)) {
                 printlnonce("It's already taken!");
                 profit -= calculateParcelProfit(current_parcel);
                 current_parcel = pickClosestNonTakenParcel();
                 profit += calculateParcelProfit(current_parcel);
+                decide(time, Decision.RETARGET, current_parcel);
                 return;
             }
             printlnonce("Moving");
-            rm.moveTo(this, current_parcel.getPickupLocation(), time);
+            driveTo(current_parcel.getPickupLocation(), time);
             if (rm.getPosition(this).equals(current_parcel.getPickupLocation())) {
                 // pickup when we arrive
                 pm.pickup(this, current_parcel, time);
+                decide(time, Decision.PICKUP, current_parcel);
                 if (isTruckFull()) {
                     profit -= calculateCostByDistance(rm.getPosition(depot));
                 }
@@ -287,22 +821,104 @@ class Taxi extends Vehicle {
         }
 
 
-        Parcel p = RoadModels.findClosestObject(rm.getPosition(this), rm, Parcel.class);
+        Parcel p = auction != null ? awarded.peek() : findClosestWaitingParcel();
         if (p != null) {
             double available_capacity = getAvailableCapacity();
             if (p.getNeededCapacity() <= available_capacity) {
                 printlnonce("Trying to pickup the closest parcel");
                 current_parcel = p;
+                awarded.remove(p);
                 profit += calculateParcelProfit(current_parcel);
+                decide(time, Decision.TARGET_PICKUP, current_parcel);
             } else {
                 shouldMoveToDepot = true;
+                decide(time, Decision.RETURN_TO_DEPOT, null);
             }
+        } else {
+            sleep();
         }
     }
 
+    // closest parcel on the road that is not waiting at the depot or
+    // reserved for a delivery taxi
+    @Nullable
+    private Parcel findClosestWaitingParcel() {
+        if (knn != null) {
+            return findNearestUnclaimedParcel(true);
+        }
+        return findClosestOutsideInventory();
+    }
+
+    @Nullable
+    private Parcel findClosestOutsideInventory() {
+        final RoadModel rm = getRoadModel();
+        if (depotInventory == null || depotInventory.isClear()) {
+            return RoadModels.findClosestObject(rm.getPosition(this), rm, Parcel.class);
+        }
+        return (Parcel) RoadModels.findClosestObject(rm.getPosition(this), rm,
+                new Predicate<RoadUser>() {
+                    @Override
+                    public boolean apply(@Nullable RoadUser ru) {
+                        return ru instanceof Parcel && !depotInventory.contains((Parcel) ru);
+                    }
+                });
+    }
+
+    // closest parcel by road distance that no other taxi claimed, searched
+    // from the node the taxi is on or drives to up to the radius, the parcels
+    // on the nodes come from the order book
+    @Nullable
+    private Parcel findNearestUnclaimedParcel(final boolean skipInventory) {
+        final RoadModel rm = getRoadModel();
+        Point from = rm.getPosition(this);
+        double offset = 0;
+        if (orderBook == null) {
+            return skipInventory ? findClosestOutsideInventory()
+                    : RoadModels.findClosestObject(from, rm, Parcel.class);
+        }
+        if (orderBook.getUnclaimed() == 0) {
+            return null;
+        }
+        if (!knn.isNode(from)) {
+            final Connection<?> c = rm instanceof GraphRoadModel
+                    ? ((GraphRoadModel) rm).getConnection(this).orNull() : null;
+            if (c == null) {
+                return skipInventory ? findClosestOutsideInventory()
+                        : RoadModels.findClosestObject(from, rm, Parcel.class);
+            }
+            // the part of the connection that is still ahead
+            final double straight = Point.distance(c.from(), c.to());
+            offset = straight > 0
+                    ? c.getLength() * Point.distance(from, c.to()) / straight : 0;
+            from = c.to();
+        }
+        nearest.clear();
+        knn.nearest(from, offset, 1, knnRadius, orderBook::at,
+                p -> !(skipInventory && depotInventory != null && depotInventory.contains(p))
+                        && !isParcelAlreadyTaken(p),
+                nearest);
+        if (!nearest.isEmpty()) {
+            return nearest.get(0);
+        }
+        // nothing close, the order book knows the far ones
+        final Point position = rm.getPosition(this);
+        Parcel closest = null;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        for (Parcel p = orderBook.firstUnclaimed(); p != null; p = orderBook.nextUnclaimed(p)) {
+            final double d = Point.distance(position, p.getPickupLocation());
+            if (d < closestDistance
+                    && !(skipInventory && depotInventory != null && depotInventory.contains(p))) {
+                closest = p;
+                closestDistance = d;
+            }
+        }
+        return closest;
+    }
+
     private double calculateParcelProfit(Parcel p) {
-        printlnonce(String.valueOf(calculateMovingCost(p)));
-        return calculateParcelCharge(p) - calculateMovingCost(p);
+        final double movingCost = calculateMovingCost(p);
+        printlnonce(String.valueOf(movingCost));
+        return calculateParcelCharge(p) - movingCost;
     }
     private double calculateParcelCharge(Parcel p) {
         if (p == null) return 0d;
@@ -317,12 +933,31 @@ class Taxi extends Vehicle {
         return calculateCostByDistance(p.getPickupLocation());
     }
     private double calculateCostByDistance(Point point) {
+        final double km = getDistanceTo(point);
+        return costModel.cost(km, km / SPEED);
+    }
+
+    // length in km of the shortest path from the current position
+    private double getDistanceTo(Point point) {
         final RoadModel rm = getRoadModel();
+        if (hubTable != null) {
+            // the road model measures graph lengths in km
+            final double km = hubTable.distance(rm.getPosition(this), point);
+            if (km < Double.POSITIVE_INFINITY) {
+                return km;
+            }
+        }
+        if (distanceCache != null) {
+            return distanceCache.distanceKm(rm, this, point);
+        }
         return rm.getDistanceOfPath(
                 rm.getShortestPathTo(this, point)
-        ).doubleValue(SI.KILOMETER) * PERCENTAGE_KM / KM_PER_GALON * GAS_PRICE_PER_GALON;
+        ).doubleValue(SI.KILOMETER);
     }
     private boolean isParcelAlreadyTaken(Parcel p) {
+        if (orderBook != null) {
+            return orderBook.isClaimedByOther(p, this);
+        }
         final RoadModel rm = getRoadModel();
         Set<RoadUser> settaxis = rm.getObjects(Pred.TAXIS);
         boolean is_closest_already_taken = false;
@@ -340,6 +975,9 @@ class Taxi extends Vehicle {
     }
 
     private Parcel pickClosestNonTakenParcel() {
+        if (orderBook != null) {
+            return orderBook.firstUnclaimed();
+        }
         for (Parcel parc: getAvailableParcels()){
             if (!isParcelAlreadyTaken(parc)) {
                 return parc;
@@ -361,9 +999,130 @@ class Taxi extends Vehicle {
         final PDPModel pm = getPDPModel();
         return pm.getContainerCapacity(this) - pm.getContentsSize(this);
     }
+    protected void routePlanSolution(TimeLapse time) {
+        final RoadModel rm = getRoadModel();
+        final PDPModel pm = getPDPModel();
+
+        if (!time.hasTimeLeft() || pm.getVehicleState(this) != PDPModel.VehicleState.IDLE) {
+            return;
+        }
+        RoutePlan.Stop stop = plan.peek();
+        while (stop != null && stop.pickup && !rm.containsObject(stop.parcel)) {
+            // sanity check: the parcel is gone, drop it from the plan
+            plan.remove(stop.parcel, distances());
+            stop = plan.peek();
+        }
+        if (stop == null) {
+            return;
+        }
+        driveTo(stop.location, time);
+        if (rm.getPosition(this).equals(stop.location)) {
+            if (stop.pickup) {
+                pm.pickup(this, stop.parcel, time);
+                decide(time, Decision.PICKUP, stop.parcel);
+            } else {
+                pm.deliver(this, stop.parcel, time);
+                decide(time, Decision.DELIVER, stop.parcel);
+            }
+            plan.pop();
+        }
+    }
+
+    private RoutePlan.Distances distances() {
+        final RoadModel rm = getRoadModel();
+        return new RoutePlan.Distances() {
+            @Override
+            public double fromVehicle(Point to) {
+                return getDistanceTo(to);
+            }
+
+            @Override
+            public double between(Point from, Point to) {
+                if (distanceCache != null) {
+                    return distanceCache.distanceKm(rm, from, to);
+                }
+                return from.equals(to) ? 0 : rm.getDistanceOfPath(
+                        rm.getShortestPathTo(from, to)).doubleValue(SI.KILOMETER);
+            }
+        };
+    }
+
+    // handles the auction messages of the last tick: records won parcels and
+    // bids for the call that pays most if the taxi is free
+    private void readAuction(TimeLapse time) {
+        for (OrderAuction.Message m : inbox) {
+            if (m instanceof OrderAuction.Award) {
+                awarded.add(m.parcel);
+            }
+            if (m.parcel == bidOn && !(m instanceof OrderAuction.CallForBids)) {
+                bidOn = null;
+            }
+        }
+        final boolean free = current_parcel == null && awarded.isEmpty() && bidOn == null
+                && !shouldMoveToDepot && !Objects.equals(role, "Delivery");
+        final RoadModel rm = getRoadModel();
+        Parcel best = null;
+        double bestProfit = 0;
+        boolean tooLarge = false;
+        for (OrderAuction.Message m : inbox) {
+            if (!free || !(m instanceof OrderAuction.CallForBids)
+                    || !rm.containsObject(m.parcel)) {
+                continue;
+            }
+            if (m.parcel.getNeededCapacity() > getAvailableCapacity()) {
+                tooLarge = true;
+                continue;
+            }
+            final double parcelProfit = calculateParcelProfit(m.parcel);
+            if (best == null || parcelProfit > bestProfit) {
+                best = m.parcel;
+                bestProfit = parcelProfit;
+            }
+        }
+        inbox.clear();
+        if (best != null) {
+            bidOn = best;
+            auction.bid(this, best, bestProfit);
+        } else if (tooLarge && strategy == Strategy.MULTI_REGION
+                && getPDPModel().getContentsSize(this) > 0) {
+            // like a closest parcel that doesn't fit: unload first
+            shouldMoveToDepot = true;
+            decide(time, Decision.RETURN_TO_DEPOT, null);
+        }
+    }
+
     @Override
     protected void tickImpl(TimeLapse time) {
-//        pickupAndDeliverySolutionNN(time);
-        pickupAndDeliverySolutionMultiRegion(time);
+        if (asleep || quiescence != null && quiescence.isQuiet()) {
+            return;
+        }
+        if (auction != null && !inbox.isEmpty()) {
+            readAuction(time);
+        }
+        routedToDepot = false;
+        switch (strategy) {
+            case NEAREST_NEIGHBOUR:
+                pickupAndDeliverySolutionNN(time);
+                break;
+            case ROUTE_PLAN:
+                routePlanSolution(time);
+                break;
+            default:
+                pickupAndDeliverySolutionMultiRegion(time);
+        }
+        if (!routedToDepot) {
+            depotRoute = null;
+        }
+        if (rebalanceTarget != null) {
+            if (!hasNoWork()) {
+                rebalanceTarget = null;
+            } else if (time.hasTimeLeft()) {
+                final RoadModel rm = getRoadModel();
+                driveTo(rebalanceTarget, time);
+                if (rm.getPosition(this).equals(rebalanceTarget)) {
+                    rebalanceTarget = null;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,417 @@
+package com.github.couriersim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+import com.github.rinde.rinsim.core.model.road.GraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.ListenableGraph;
+import com.github.rinde.rinsim.geom.MultiAttributeData;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Changes the speeds of the roads over the day: fast roads slow down in the
+ * rush hours following {@link #ARTERIAL_PROFILE}, ordinary streets a bit
+ * less, and random incidents slow down single connections for a while. New
+ * speeds are written to the connection data of the graph of a dynamic graph
+ * road model, so vehicles really drive slower.
+ * <p>
+ * Speeds are in the units of the graph. A vehicle drives a connection at its
+ * own speed capped by the maximum speed of the connection, connections
+ * without a maximum speed are driven at the vehicle speed and slow down
+ * relative to it. Which connections are fast roads follows from the loaded
+ * graph, see {@link #getArterialSpeed()}.
+ * <p>
+ * Taxis route by travel time with {@link #route(RoadModel, Taxi, Point)} and
+ * register the connections of their route with
+ * {@link #watch(Taxi, int[], int[])}. When the speed of
+ * a connection changes only the taxis registered on it are told, they plan
+ * the rest of their route again the next time they move. The speeds are
+ * applied incrementally as well: all connections when the hour changes,
+ * otherwise only the connections of incidents that start or end.
+ */
+final class TrafficModel implements TickListener {
+
+    /** Speed factor of fast roads per hour of the day. */
+    static final double[] ARTERIAL_PROFILE = {
+            1, 1, 1, 1, 1, 1, .9, .6, .45, .7, .85, .85,
+            .8, .85, .85, .8, .65, .5, .6, .8, .9, 1, 1, 1};
+    /** Speed factor of ordinary streets when fast roads slow down. */
+    static final double STREET_FACTOR = .85;
+
+    // incidents per simulated hour and their effect
+    private static final double INCIDENT_RATE = 2;
+    private static final double INCIDENT_FACTOR = .2;
+    private static final long MIN_INCIDENT = 20 * 60 * 1000L;
+    private static final long MAX_INCIDENT = 60 * 60 * 1000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final ListenableGraph<MultiAttributeData> graph;
+    private final int startHour;
+    private final RandomGenerator rng;
+
+    private final Map<Point, Integer> nodeIds = new HashMap<>();
+    private final Point[] nodes;
+    // outgoing connections in compressed sparse row form
+    private final int[] outStart;
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final double[] length;
+    private final MultiAttributeData[] original;
+    private final double[] baseSpeed;
+    private final boolean[] arterial;
+    private final double arterialSpeed;
+    private final double[] speed;
+    // incident factor per connection, 1 without incident
+    private final double[] incident;
+    // number of incidents on a connection, the worst factor counts
+    private final int[] activeIncidents;
+    private final PriorityQueue<Incident> incidents = new PriorityQueue<>();
+    private int hour = -1;
+    private long changes;
+
+    // taxis with a route over a connection
+    private final Map<Integer, List<Taxi>> watchers = new HashMap<>();
+
+    // search state reused by every route
+    private final double[] dist;
+    private final int[] parentEdge;
+    private final int[] visited;
+    private int search;
+
+    /**
+     * @param startHour The hour of the day at which the simulation starts.
+     * @param seed Seed of the incidents, independent of the simulator.
+     * @param vehicleSpeed The speed of the vehicles in the units of the graph.
+     */
+    TrafficModel(ListenableGraph<MultiAttributeData> graph, int startHour, long seed,
+                 double vehicleSpeed) {
+        this.graph = graph;
+        this.startHour = startHour;
+        rng = new MersenneTwister(seed);
+        nodes = graph.getNodes().toArray(new Point[0]);
+        for (int i = 0; i < nodes.length; i++) {
+            nodeIds.put(nodes[i], i);
+        }
+        final List<Connection<MultiAttributeData>> conns = new ArrayList<>(graph.getConnections());
+        conns.sort((a, b) -> Integer.compare(nodeIds.get(a.from()), nodeIds.get(b.from())));
+        final int m = conns.size();
+        outStart = new int[nodes.length + 1];
+        edgeFrom = new int[m];
+        edgeTo = new int[m];
+        length = new double[m];
+        original = new MultiAttributeData[m];
+        baseSpeed = new double[m];
+        arterial = new boolean[m];
+        speed = new double[m];
+        incident = new double[m];
+        Arrays.fill(incident, 1);
+        activeIncidents = new int[m];
+        for (int e = 0; e < m; e++) {
+            final Connection<MultiAttributeData> c = conns.get(e);
+            edgeFrom[e] = nodeIds.get(c.from());
+            edgeTo[e] = nodeIds.get(c.to());
+            outStart[edgeFrom[e] + 1]++;
+            length[e] = c.getLength();
+            original[e] = c.data().orNull();
+            baseSpeed[e] = Double.isNaN(maxSpeed(e)) ? vehicleSpeed
+                    : Math.min(vehicleSpeed, maxSpeed(e));
+            speed[e] = baseSpeed[e];
+        }
+        arterialSpeed = median(m);
+        for (int e = 0; e < m; e++) {
+            // without a maximum speed nothing is known about the road
+            arterial[e] = maxSpeed(e) >= arterialSpeed;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            outStart[i + 1] += outStart[i];
+        }
+        dist = new double[nodes.length];
+        parentEdge = new int[nodes.length];
+        visited = new int[nodes.length];
+    }
+
+    /**
+     * A route by travel time, the nodes to follow and the connections that
+     * lead to them.
+     */
+    static final class Route {
+        final List<Point> nodes;
+        final int[] edges;
+
+        Route(List<Point> nodes, int[] edges) {
+            this.nodes = nodes;
+            this.edges = edges;
+        }
+    }
+
+    /**
+     * Slows down a connection for a while.
+     * @param factor The factor of the speed, in (0, 1].
+     */
+    void addIncident(Point from, Point to, long start, long duration, double factor) {
+        final int e = edge(from, to);
+        if (e < 0) {
+            throw new IllegalArgumentException("No connection " + from + " -> " + to);
+        }
+        incidents.add(new Incident(e, start, factor, true));
+        incidents.add(new Incident(e, start + duration, factor, false));
+    }
+
+    long getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return The median of the maximum speeds of the connections that have
+     *         one, connections at least this fast are fast roads. NaN if no
+     *         connection has a maximum speed, all of them are streets then.
+     */
+    double getArterialSpeed() {
+        return arterialSpeed;
+    }
+
+    // NaN without a maximum speed
+    private double maxSpeed(int e) {
+        return original[e] != null && original[e].getMaxSpeed().isPresent()
+                ? original[e].getMaxSpeed().get() : Double.NaN;
+    }
+
+    private double median(int m) {
+        final double[] speeds = new double[m];
+        int n = 0;
+        for (int e = 0; e < m; e++) {
+            if (!Double.isNaN(maxSpeed(e))) {
+                speeds[n++] = maxSpeed(e);
+            }
+        }
+        if (n == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(speeds, 0, n);
+        return speeds[n / 2];
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        final long now = timeLapse.getStartTime();
+        final int h = (int) ((startHour + now / HOUR) % 24);
+        if (h != hour) {
+            hour = h;
+            for (int e = 0; e < speed.length; e++) {
+                apply(e);
+            }
+        }
+        // incidents arrive as a Poisson process
+        if (rng.nextDouble() < INCIDENT_RATE * timeLapse.getTickLength() / HOUR
+                && speed.length > 0) {
+            final int e = rng.nextInt(speed.length);
+            final long duration = MIN_INCIDENT
+                    + (long) (rng.nextDouble() * (MAX_INCIDENT - MIN_INCIDENT));
+            incidents.add(new Incident(e, now, INCIDENT_FACTOR, true));
+            incidents.add(new Incident(e, now + duration, INCIDENT_FACTOR, false));
+        }
+        while (!incidents.isEmpty() && incidents.peek().time <= now) {
+            final Incident i = incidents.poll();
+            if (i.start) {
+                activeIncidents[i.edge]++;
+                incident[i.edge] = Math.min(incident[i.edge], i.factor);
+            } else if (--activeIncidents[i.edge] == 0) {
+                incident[i.edge] = 1;
+            }
+            apply(i.edge);
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    /**
+     * Plans the fastest route of a taxi to a node and registers the taxi on
+     * its connections, replacing its previous route. A taxi between two
+     * nodes first drives to the end of its connection.
+     * @return The route, <code>null</code> if the target is not a node or
+     *         can't be reached.
+     */
+    @Nullable
+    Route route(RoadModel rm, Taxi taxi, Point target) {
+        final Point position = rm.getPosition(taxi);
+        Integer start = nodeIds.get(position);
+        Point first = null;
+        if (start == null && rm instanceof GraphRoadModel) {
+            final Connection<?> c = ((GraphRoadModel) rm).getConnection(taxi).orNull();
+            if (c != null) {
+                first = c.to();
+                start = nodeIds.get(first);
+            }
+        }
+        final Integer end = nodeIds.get(target);
+        if (start == null || end == null) {
+            return null;
+        }
+        final int[] edges = fastest(start, end);
+        if (edges == null) {
+            return null;
+        }
+        final List<Point> route = new ArrayList<>(edges.length + 1);
+        if (first != null) {
+            route.add(first);
+        }
+        for (int e : edges) {
+            route.add(nodes[edgeTo[e]]);
+        }
+        return new Route(route, edges);
+    }
+
+    /**
+     * Registers a taxi on the connections of its new route.
+     */
+    void watch(Taxi taxi, @Nullable int[] oldEdges, @Nullable int[] newEdges) {
+        if (oldEdges != null) {
+            for (int e : oldEdges) {
+                final List<Taxi> list = watchers.get(e);
+                if (list != null) {
+                    list.remove(taxi);
+                }
+            }
+        }
+        if (newEdges != null) {
+            for (int e : newEdges) {
+                List<Taxi> list = watchers.get(e);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    watchers.put(e, list);
+                }
+                list.add(taxi);
+            }
+        }
+    }
+
+    // Dijkstra by travel time from start to end, null if unreachable
+    @Nullable
+    private int[] fastest(int start, int end) {
+        search++;
+        final PriorityQueue<double[]> queue = new PriorityQueue<>(
+                (a, b) -> Double.compare(a[0], b[0]));
+        dist[start] = 0;
+        parentEdge[start] = -1;
+        visited[start] = search;
+        queue.add(new double[] {0, start});
+        while (!queue.isEmpty()) {
+            final double[] top = queue.poll();
+            final int v = (int) top[1];
+            if (top[0] > dist[v]) {
+                continue;
+            }
+            if (v == end) {
+                final ArrayDeque<Integer> path = new ArrayDeque<>();
+                for (int e = parentEdge[end]; e >= 0; e = parentEdge[edgeFrom[e]]) {
+                    path.addFirst(e);
+                }
+                final int[] edges = new int[path.size()];
+                int i = 0;
+                for (int e : path) {
+                    edges[i++] = e;
+                }
+                return edges;
+            }
+            for (int e = outStart[v]; e < outStart[v + 1]; e++) {
+                final int w = edgeTo[e];
+                final double d = dist[v] + length[e] / speed[e];
+                if (visited[w] != search || d < dist[w]) {
+                    visited[w] = search;
+                    dist[w] = d;
+                    parentEdge[w] = e;
+                    queue.add(new double[] {d, w});
+                }
+            }
+        }
+        return null;
+    }
+
+    // writes the current speed of a connection to the graph if it changed
+    private void apply(int e) {
+        double factor = ARTERIAL_PROFILE[hour];
+        if (!arterial[e]) {
+            factor = factor < 1 ? STREET_FACTOR : 1;
+        }
+        factor *= incident[e];
+        final double s = baseSpeed[e] * factor;
+        if (s == speed[e]) {
+            return;
+        }
+        speed[e] = s;
+        final Point from = nodes[edgeFrom[e]];
+        final Point to = nodes[edgeTo[e]];
+        if (factor == 1 && original[e] != null) {
+            graph.setConnectionData(from, to, original[e]);
+        } else if (factor == 1) {
+            // uncapped again
+            graph.setConnectionData(from, to, MultiAttributeData.builder()
+                    .setLength(length[e])
+                    .build());
+        } else {
+            final MultiAttributeData.Builder b = MultiAttributeData.builder()
+                    .setLength(length[e])
+                    .setMaxSpeed(s);
+            if (original[e] != null) {
+                b.addAllAttributes(original[e].getAttributes());
+            }
+            graph.setConnectionData(from, to, b.build());
+        }
+        changes++;
+        final List<Taxi> list = watchers.get(e);
+        if (list != null) {
+            for (Taxi taxi : list) {
+                taxi.routeChanged(e);
+            }
+        }
+    }
+
+    private int edge(Point from, Point to) {
+        final Integer f = nodeIds.get(from);
+        final Integer t = nodeIds.get(to);
+        if (f == null || t == null) {
+            return -1;
+        }
+        for (int e = outStart[f]; e < outStart[f + 1]; e++) {
+            if (edgeTo[e] == t) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Incident implements Comparable<Incident> {
+        final int edge;
+        final long time;
+        final double factor;
+        // start or end of the incident
+        final boolean start;
+
+        Incident(int edge, long time, double factor, boolean start) {
+            this.edge = edge;
+            this.time = time;
+            this.factor = factor;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(Incident o) {
+            return Long.compare(time, o.time);
+        }
+    }
+}
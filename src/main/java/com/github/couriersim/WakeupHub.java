@@ -0,0 +1,197 @@
+package com.github.couriersim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Lets idle taxis sleep until something happens that could give them work,
+ * instead of searching for parcels every tick. A taxi that found nothing to do
+ * goes to sleep, it is woken by:
+ * <ul>
+ * <li>a new parcel within the wake radius of its position,</li>
+ * <li>a claim that is released within the radius, i.e. another taxi no longer
+ * heads to a pickup location,</li>
+ * <li>parcels that are dropped at the depot, for taxis waiting for stock.</li>
+ * </ul>
+ * If no sleeping taxi is within the radius of a new parcel all of them are
+ * woken, so parcels far away from the fleet are still served. Sleeping taxis
+ * are bucketed in a grid with cells of the size of the radius, so an event only
+ * looks at the 3x3 cells around it.
+ */
+final class WakeupHub implements Listener {
+
+    // used for a radius <= 0, everything is in one cell
+    private static final long ALL = 0;
+
+    private final double radius;
+    private final Map<Long, List<Sleeper>> sleepers = new HashMap<>();
+    private final List<Taxi> waitingForStock = new ArrayList<>();
+    private int asleep;
+    private long wakeups;
+
+    /**
+     * @param radius The wake radius in graph units, <code>0</code> to wake
+     *          all sleeping taxis for every event.
+     */
+    WakeupHub(double radius) {
+        this.radius = radius;
+    }
+
+    static WakeupHub install(PDPModel pm, double radius) {
+        final WakeupHub hub = new WakeupHub(radius);
+        pm.getEventAPI().addListener(hub, PDPModelEventType.NEW_PARCEL);
+        return hub;
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final PDPModelEvent event = (PDPModelEvent) e;
+        if (event.parcel != null) {
+            wakeNear(event.parcel.getPickupLocation(), true);
+        }
+    }
+
+    /**
+     * Puts a taxi to sleep until a parcel arrives or a claim is released near
+     * its position.
+     */
+    void sleep(Taxi taxi, Point position) {
+        taxi.setAsleep(true);
+        final Long cell = cell(position);
+        List<Sleeper> list = sleepers.get(cell);
+        if (list == null) {
+            list = new ArrayList<>();
+            sleepers.put(cell, list);
+        }
+        list.add(new Sleeper(taxi, position));
+        asleep++;
+    }
+
+    /**
+     * Puts a taxi to sleep until parcels are dropped at the depot.
+     */
+    void sleepUntilStock(Taxi taxi) {
+        taxi.setAsleep(true);
+        waitingForStock.add(taxi);
+    }
+
+    /**
+     * A taxi no longer heads to the specified pickup location, others may
+     * want to go there now.
+     */
+    void claimReleased(Point location) {
+        wakeNear(location, false);
+    }
+
+    /**
+     * Parcels were dropped at the depot.
+     */
+    void stockArrived() {
+        for (Taxi taxi : waitingForStock) {
+            taxi.setAsleep(false);
+            wakeups++;
+        }
+        waitingForStock.clear();
+    }
+
+    /**
+     * Removes taxis from the sleepers without waking them through an event,
+     * e.g. because they were sent elsewhere. One pass over all sleepers.
+     */
+    void cancel(Collection<Taxi> taxis) {
+        final Set<Taxi> cancelled = Collections.newSetFromMap(new IdentityHashMap<Taxi, Boolean>());
+        cancelled.addAll(taxis);
+        for (List<Sleeper> list : sleepers.values()) {
+            for (Iterator<Sleeper> it = list.iterator(); it.hasNext();) {
+                if (cancelled.contains(it.next().taxi)) {
+                    it.remove();
+                    asleep--;
+                }
+            }
+        }
+        waitingForStock.removeAll(cancelled);
+        for (Taxi taxi : cancelled) {
+            taxi.setAsleep(false);
+        }
+    }
+
+    long getWakeups() {
+        return wakeups;
+    }
+
+    private void wakeNear(Point location, boolean orAll) {
+        if (asleep == 0) {
+            return;
+        }
+        int woken = 0;
+        if (radius <= 0) {
+            woken = wake(sleepers.get(ALL), location, Double.POSITIVE_INFINITY);
+        } else {
+            final long cx = (long) Math.floor(location.x / radius);
+            final long cy = (long) Math.floor(location.y / radius);
+            for (long x = cx - 1; x <= cx + 1; x++) {
+                for (long y = cy - 1; y <= cy + 1; y++) {
+                    woken += wake(sleepers.get(key(x, y)), location, radius);
+                }
+            }
+        }
+        if (woken == 0 && orAll) {
+            for (List<Sleeper> list : sleepers.values()) {
+                woken += wake(list, location, Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    private int wake(List<Sleeper> list, Point location, double maxDistance) {
+        if (list == null) {
+            return 0;
+        }
+        int woken = 0;
+        for (Iterator<Sleeper> it = list.iterator(); it.hasNext();) {
+            final Sleeper sleeper = it.next();
+            if (Point.distance(sleeper.position, location) <= maxDistance) {
+                sleeper.taxi.setAsleep(false);
+                it.remove();
+                woken++;
+            }
+        }
+        asleep -= woken;
+        wakeups += woken;
+        return woken;
+    }
+
+    private Long cell(Point p) {
+        if (radius <= 0) {
+            return ALL;
+        }
+        return key((long) Math.floor(p.x / radius), (long) Math.floor(p.y / radius));
+    }
+
+    private static Long key(long x, long y) {
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+
+    private static final class Sleeper {
+        final Taxi taxi;
+        final Point position;
+
+        Sleeper(Taxi taxi, Point position) {
+            this.taxi = taxi;
+            this.position = position;
+        }
+    }
+}
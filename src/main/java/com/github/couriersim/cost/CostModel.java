@@ -0,0 +1,42 @@
+package com.github.couriersim.cost;
+
+/**
+ * Translates a trip into money. Taxis use it to estimate the cost of driving to
+ * a pickup or delivery location. The models of this package describe
+ * themselves with <code>toString()</code> in the form {@link #parse(String)}
+ * reads, e.g. <code>distance:1.5</code>.
+ */
+public interface CostModel {
+
+    /**
+     * @param km The length of the trip in kilometers.
+     * @param hours The duration of the trip in hours.
+     * @return The cost of the trip.
+     */
+    double cost(double km, double hours);
+
+    /**
+     * Creates a model from its description: <code>gas</code>,
+     * <code>gas:PRICE:KM_PER_GALON:PERCENTAGE_KM</code>,
+     * <code>distance:PRICE_PER_KM</code> or <code>time:PRICE_PER_HOUR</code>.
+     * @throws IllegalArgumentException If the description is not one of these.
+     */
+    static CostModel parse(String spec) {
+        final String[] parts = spec.split(":");
+        try {
+            if (parts[0].equals("gas") && parts.length == 1) {
+                return new GasCostModel();
+            } else if (parts[0].equals("gas") && parts.length == 4) {
+                return new GasCostModel(Double.parseDouble(parts[1]),
+                        Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+            } else if (parts[0].equals("distance") && parts.length == 2) {
+                return new DistanceCostModel(Double.parseDouble(parts[1]));
+            } else if (parts[0].equals("time") && parts.length == 2) {
+                return new TimeCostModel(Double.parseDouble(parts[1]));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Unknown cost model: " + spec);
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.couriersim.cost;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+import javax.measure.unit.SI;
+
+import com.github.rinde.rinsim.core.model.road.GraphRoadModel;
+import com.github.rinde.rinsim.core.model.road.MovingRoadUser;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Memoizes shortest path distances for the duration of a single tick. The
+ * cache is shared by all taxis and keyed by (origin, target), where the origin
+ * is the position of the road user asking, i.e. a node or a position on a
+ * connection. A position on a connection is keyed together with the
+ * connection, users at the same point driving in opposite directions have
+ * different distances. Road users don't move between their decisions within a tick so
+ * repeated estimates within a tick are plain hash lookups. The cache is
+ * emptied after every tick, so it has to be registered as a tick listener.
+ * <p>
+ * Entries live in an open addressing table that is invalidated by bumping a
+ * stamp, lookups don't allocate.
+ */
+public final class DistanceCache implements TickListener {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private Point[] froms;
+    // the connection the origin lies on, null for nodes
+    private Point[] connFroms;
+    private Point[] connTos;
+    private Point[] tos;
+    private double[] values;
+    private int[] stamps;
+    private int stamp = 1;
+    private int size;
+
+    private long hits;
+    private long misses;
+
+    public DistanceCache() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param rm The road model.
+     * @param user The road user that is at the origin.
+     * @param target The target.
+     * @return The length in km of the shortest path from the position of the
+     *         user to the target.
+     */
+    public double distanceKm(RoadModel rm, MovingRoadUser user, Point target) {
+        final Point from = rm.getPosition(user);
+        final Connection<?> c = rm instanceof GraphRoadModel
+                ? ((GraphRoadModel) rm).getConnection(user).orNull() : null;
+        final Point connFrom = c == null ? null : c.from();
+        final Point connTo = c == null ? null : c.to();
+        final double cached = lookup(from, connFrom, connTo, target);
+        if (!Double.isNaN(cached)) {
+            return cached;
+        }
+        final double km = rm.getDistanceOfPath(rm.getShortestPathTo(user, target))
+                .doubleValue(SI.KILOMETER);
+        put(from, connFrom, connTo, target, km);
+        return km;
+    }
+
+    /**
+     * @param rm The road model.
+     * @param from The origin, must be a node of the graph.
+     * @param target The target.
+     * @return The length in km of the shortest path from origin to target.
+     */
+    public double distanceKm(RoadModel rm, Point from, Point target) {
+        final double cached = lookup(from, null, null, target);
+        if (!Double.isNaN(cached)) {
+            return cached;
+        }
+        final double km = from.equals(target) ? 0 : rm.getDistanceOfPath(
+                rm.getShortestPathTo(from, target)).doubleValue(SI.KILOMETER);
+        put(from, null, null, target, km);
+        return km;
+    }
+
+    // NaN if absent
+    private double lookup(Point from, @Nullable Point connFrom,
+                          @Nullable Point connTo, Point to) {
+        final int mask = froms.length - 1;
+        int i = hash(from, connTo, to) & mask;
+        while (stamps[i] == stamp) {
+            if (froms[i].equals(from) && tos[i].equals(to)
+                    && Objects.equals(connFroms[i], connFrom)
+                    && Objects.equals(connTos[i], connTo)) {
+                hits++;
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        misses++;
+        return Double.NaN;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {}
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {
+        stamp++;
+        size = 0;
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    private void put(Point from, @Nullable Point connFrom, @Nullable Point connTo,
+                     Point to, double value) {
+        if (2 * (size + 1) > froms.length) {
+            grow();
+        }
+        final int mask = froms.length - 1;
+        int i = hash(from, connTo, to) & mask;
+        while (stamps[i] == stamp) {
+            i = (i + 1) & mask;
+        }
+        froms[i] = from;
+        connFroms[i] = connFrom;
+        connTos[i] = connTo;
+        tos[i] = to;
+        values[i] = value;
+        stamps[i] = stamp;
+        size++;
+    }
+
+    private void grow() {
+        final Point[] oldFroms = froms;
+        final Point[] oldConnFroms = connFroms;
+        final Point[] oldConnTos = connTos;
+        final Point[] oldTos = tos;
+        final double[] oldValues = values;
+        final int[] oldStamps = stamps;
+        allocate(2 * oldFroms.length);
+        final int live = stamp;
+        stamp = 1;
+        size = 0;
+        for (int i = 0; i < oldFroms.length; i++) {
+            if (oldStamps[i] == live) {
+                put(oldFroms[i], oldConnFroms[i], oldConnTos[i], oldTos[i],
+                        oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        froms = new Point[capacity];
+        connFroms = new Point[capacity];
+        connTos = new Point[capacity];
+        tos = new Point[capacity];
+        values = new double[capacity];
+        stamps = new int[capacity];
+    }
+
+    private static int hash(Point from, @Nullable Point connTo, Point to) {
+        final int h = (from.hashCode() * 31 + Objects.hashCode(connTo)) * 31
+                + to.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
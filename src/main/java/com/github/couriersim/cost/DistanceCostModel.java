@@ -0,0 +1,23 @@
+package com.github.couriersim.cost;
+
+/**
+ * Cost proportional to the driven distance.
+ */
+public class DistanceCostModel implements CostModel {
+
+    private final double pricePerKm;
+
+    public DistanceCostModel(double pricePerKm) {
+        this.pricePerKm = pricePerKm;
+    }
+
+    @Override
+    public double cost(double km, double hours) {
+        return km * pricePerKm;
+    }
+
+    @Override
+    public String toString() {
+        return "distance:" + pricePerKm;
+    }
+}
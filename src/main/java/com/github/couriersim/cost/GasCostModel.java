@@ -0,0 +1,36 @@
+package com.github.couriersim.cost;
+
+/**
+ * Fuel based cost, the model the taxis always used.
+ */
+public class GasCostModel implements CostModel {
+
+    public static final double GAS_PRICE_PER_GALON = 270d;
+    public static final double KM_PER_GALON = 30d;
+    public static final double PERCENTAGE_KM = .01;
+
+    private final double gasPricePerGalon;
+    private final double kmPerGalon;
+    private final double percentageKm;
+
+    public GasCostModel() {
+        this(GAS_PRICE_PER_GALON, KM_PER_GALON, PERCENTAGE_KM);
+    }
+
+    public GasCostModel(double gasPricePerGalon, double kmPerGalon,
+                        double percentageKm) {
+        this.gasPricePerGalon = gasPricePerGalon;
+        this.kmPerGalon = kmPerGalon;
+        this.percentageKm = percentageKm;
+    }
+
+    @Override
+    public double cost(double km, double hours) {
+        return km * percentageKm / kmPerGalon * gasPricePerGalon;
+    }
+
+    @Override
+    public String toString() {
+        return "gas:" + gasPricePerGalon + ":" + kmPerGalon + ":" + percentageKm;
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.couriersim.cost;
+
+/**
+ * Cost proportional to the driving time, e.g. the wage of the driver.
+ */
+public class TimeCostModel implements CostModel {
+
+    private final double pricePerHour;
+
+    public TimeCostModel(double pricePerHour) {
+        this.pricePerHour = pricePerHour;
+    }
+
+    @Override
+    public double cost(double km, double hours) {
+        return hours * pricePerHour;
+    }
+
+    @Override
+    public String toString() {
+        return "time:" + pricePerHour;
+    }
+}
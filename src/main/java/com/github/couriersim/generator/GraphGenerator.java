@@ -0,0 +1,260 @@
+package com.github.couriersim.generator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.MultiAttributeData;
+import com.github.rinde.rinsim.geom.Point;
+import com.github.rinde.rinsim.geom.TableGraph;
+
+/**
+ * Generates synthetic road graphs for scalability tests, from a few thousand
+ * up to millions of nodes. Every connection carries its length and a maximum
+ * speed, and a generated graph only depends on its parameters and seed.
+ * <p>
+ * Graphs can also be described by a spec (see {@link #fromSpec(String)}),
+ * which is what {@code CourierSim.loadGraph} accepts for names starting with
+ * {@link #PREFIX}.
+ */
+public final class GraphGenerator {
+
+    /** Prefix of graph names that are generated instead of loaded. */
+    public static final String PREFIX = "synthetic:";
+
+    /** Distance between two neighbouring nodes of a grid. */
+    public static final double BLOCK_LENGTH = 100d;
+
+    private static final double STREET_SPEED = 30d;
+    private static final double AVENUE_SPEED = 50d;
+    private static final double RING_SPEED = 70d;
+    // every AVENUE_INTERVAL-th street of a grid is a two-way avenue
+    private static final int AVENUE_INTERVAL = 5;
+
+    private GraphGenerator() {}
+
+    /**
+     * Manhattan grid: every fifth street in both directions is a fast two-way
+     * avenue, the streets in between are one-way with alternating direction,
+     * except for a random fraction that is two-way.
+     * @param columns The number of nodes per row.
+     * @param rows The number of nodes per column.
+     * @param twoWayFraction The fraction of ordinary streets that is two-way.
+     * @param seed The seed.
+     * @return The graph, strongly connected.
+     */
+    public static Graph<MultiAttributeData> grid(int columns, int rows,
+                                                 double twoWayFraction, long seed) {
+        checkSize(columns >= 2 && rows >= 2, "a grid needs at least 2x2 nodes");
+        final RandomGenerator rng = new MersenneTwister(seed);
+        final Graph<MultiAttributeData> graph = new TableGraph<>();
+        final Point[][] nodes = new Point[columns][rows];
+        for (int x = 0; x < columns; x++) {
+            for (int y = 0; y < rows; y++) {
+                nodes[x][y] = new Point(x * BLOCK_LENGTH, y * BLOCK_LENGTH);
+            }
+        }
+        // horizontal streets
+        for (int y = 0; y < rows; y++) {
+            final boolean avenue = isAvenue(y, rows);
+            final boolean twoWay = avenue || rng.nextDouble() < twoWayFraction;
+            final boolean east = y % 2 == 0;
+            for (int x = 0; x + 1 < columns; x++) {
+                street(graph, nodes[x][y], nodes[x + 1][y], east, twoWay,
+                        avenue ? AVENUE_SPEED : STREET_SPEED);
+            }
+        }
+        // vertical streets
+        for (int x = 0; x < columns; x++) {
+            final boolean avenue = isAvenue(x, columns);
+            final boolean twoWay = avenue || rng.nextDouble() < twoWayFraction;
+            final boolean north = x % 2 == 0;
+            for (int y = 0; y + 1 < rows; y++) {
+                street(graph, nodes[x][y], nodes[x][y + 1], north, twoWay,
+                        avenue ? AVENUE_SPEED : STREET_SPEED);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Random planar network: nodes are jittered grid points, every block gets
+     * one of its two diagonals and a random part of the streets is removed,
+     * but never the streets of a random spanning tree, so the network stays
+     * connected. All streets are two-way.
+     * @param nodes The (approximate) number of nodes.
+     * @param removeFraction The fraction of the streets not in the spanning
+     *          tree that is removed.
+     * @param seed The seed.
+     * @return The graph, strongly connected.
+     */
+    public static Graph<MultiAttributeData> planar(int nodes, double removeFraction,
+                                                   long seed) {
+        final int side = (int) Math.ceil(Math.sqrt(nodes));
+        checkSize(side >= 2, "a planar network needs at least 4 nodes");
+        final RandomGenerator rng = new MersenneTwister(seed);
+        final Point[] points = new Point[side * side];
+        for (int i = 0; i < points.length; i++) {
+            // a jitter of less than a quarter block keeps every block convex,
+            // so streets never cross
+            points[i] = new Point(
+                    (i % side + (rng.nextDouble() - .5) / 2) * BLOCK_LENGTH,
+                    (i / side + (rng.nextDouble() - .5) / 2) * BLOCK_LENGTH);
+        }
+        final List<int[]> streets = new ArrayList<>();
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                final int i = y * side + x;
+                if (x + 1 < side) {
+                    streets.add(new int[] {i, i + 1});
+                }
+                if (y + 1 < side) {
+                    streets.add(new int[] {i, i + side});
+                }
+                if (x + 1 < side && y + 1 < side) {
+                    streets.add(rng.nextBoolean() ? new int[] {i, i + side + 1}
+                            : new int[] {i + 1, i + side});
+                }
+            }
+        }
+        // random spanning tree (Kruskal on shuffled streets)
+        shuffle(streets, rng);
+        final int[] parent = new int[points.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        final Graph<MultiAttributeData> graph = new TableGraph<>();
+        for (int[] s : streets) {
+            final int a = find(parent, s[0]);
+            final int b = find(parent, s[1]);
+            final boolean tree = a != b;
+            if (tree) {
+                parent[a] = b;
+            }
+            if (tree || rng.nextDouble() >= removeFraction) {
+                street(graph, points[s[0]], points[s[1]], true, true, STREET_SPEED);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Ring-radial city: concentric ring roads around a center, connected by
+     * radial spokes. Ring roads are fast, spokes are ordinary streets.
+     * @param rings The number of rings.
+     * @param spokes The number of nodes per ring.
+     * @param seed The seed, used to vary the radii of the rings slightly.
+     * @return The graph with <code>rings * spokes + 1</code> nodes, strongly
+     *         connected.
+     */
+    public static Graph<MultiAttributeData> ringRadial(int rings, int spokes, long seed) {
+        checkSize(rings >= 1 && spokes >= 3, "a ring-radial city needs a ring of 3 nodes");
+        final RandomGenerator rng = new MersenneTwister(seed);
+        final Graph<MultiAttributeData> graph = new TableGraph<>();
+        final Point center = new Point(0, 0);
+        Point[] inner = null;
+        for (int r = 1; r <= rings; r++) {
+            final double radius = (r + (rng.nextDouble() - .5) / 2) * BLOCK_LENGTH;
+            final Point[] ring = new Point[spokes];
+            for (int s = 0; s < spokes; s++) {
+                final double angle = 2 * Math.PI * s / spokes;
+                ring[s] = new Point(radius * Math.cos(angle), radius * Math.sin(angle));
+            }
+            for (int s = 0; s < spokes; s++) {
+                street(graph, ring[s], ring[(s + 1) % spokes], true, true, RING_SPEED);
+                street(graph, inner == null ? center : inner[s], ring[s], true, true,
+                        STREET_SPEED);
+            }
+            inner = ring;
+        }
+        return graph;
+    }
+
+    /**
+     * Generates a graph from a spec, the seed is optional and 0 by default:
+     * <ul>
+     * <li><code>synthetic:grid:COLUMNSxROWS[:seed]</code></li>
+     * <li><code>synthetic:planar:NODES[:seed]</code></li>
+     * <li><code>synthetic:ring:RINGSxSPOKES[:seed]</code></li>
+     * </ul>
+     * @param spec The spec.
+     * @return The graph.
+     */
+    public static Graph<MultiAttributeData> fromSpec(String spec) {
+        if (!spec.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Not a synthetic graph: " + spec);
+        }
+        final String[] parts = spec.substring(PREFIX.length()).split(":");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Invalid spec: " + spec);
+        }
+        final long seed = parts.length == 3 ? Long.parseLong(parts[2]) : 0L;
+        switch (parts[0]) {
+            case "grid": {
+                final int[] size = dimensions(parts[1], spec);
+                return grid(size[0], size[1], .2, seed);
+            }
+            case "planar":
+                return planar(Integer.parseInt(parts[1]), .3, seed);
+            case "ring": {
+                final int[] size = dimensions(parts[1], spec);
+                return ringRadial(size[0], size[1], seed);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown kind of graph: " + spec);
+        }
+    }
+
+    private static int[] dimensions(String s, String spec) {
+        final String[] xy = s.split("x");
+        if (xy.length != 2) {
+            throw new IllegalArgumentException("Expected AxB in: " + spec);
+        }
+        return new int[] {Integer.parseInt(xy[0]), Integer.parseInt(xy[1])};
+    }
+
+    private static boolean isAvenue(int i, int size) {
+        return i % AVENUE_INTERVAL == 0 || i == size - 1;
+    }
+
+    // one-way streets go from a to b if forward, from b to a otherwise
+    private static void street(Graph<MultiAttributeData> graph, Point a, Point b,
+                               boolean forward, boolean twoWay, double speed) {
+        final MultiAttributeData data = MultiAttributeData.builder()
+                .setLength(Point.distance(a, b))
+                .setMaxSpeed(speed)
+                .build();
+        if (twoWay || forward) {
+            graph.addConnection(a, b, data);
+        }
+        if (twoWay || !forward) {
+            graph.addConnection(b, a, data);
+        }
+    }
+
+    private static void shuffle(List<int[]> list, RandomGenerator rng) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            final int j = rng.nextInt(i + 1);
+            final int[] tmp = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, tmp);
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void checkSize(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.couriersim.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Shortest path trees rooted at a few fixed nodes (hubs, e.g. depots), in both
+ * directions: for every node the length of the shortest path to and from each
+ * hub and the next node on these paths. The trees are computed once with
+ * Dijkstra over the connection lengths and stored in primitive arrays, so a
+ * distance is an array lookup and a route is a walk over predecessors.
+ * <p>
+ * The table does not follow changes of the graph, use
+ * {@link #isFor(Graph, List)} to find out whether it has to be rebuilt. All
+ * queries are read-only so a single table can be shared between threads.
+ */
+public final class HubDistanceTable {
+
+    private static final int NONE = -1;
+
+    private final Graph<?> graph;
+    private final int numConnections;
+    private final List<Point> hubs;
+    private final Map<Point, Integer> nodeIds;
+    private final Point[] nodes;
+    // per hub, indexed by node id
+    private final double[][] toHub;
+    private final int[][] nextToHub;
+    private final double[][] fromHub;
+    private final int[][] prevFromHub;
+
+    HubDistanceTable(Graph<?> graph, List<Point> hubs) {
+        this.graph = graph;
+        this.hubs = Collections.unmodifiableList(new ArrayList<>(hubs));
+        nodes = graph.getNodes().toArray(new Point[0]);
+        nodeIds = new HashMap<>(nodes.length * 2);
+        for (int i = 0; i < nodes.length; i++) {
+            nodeIds.put(nodes[i], i);
+        }
+        // forward and reverse adjacency in compressed sparse row form
+        final int n = nodes.length;
+        final int[] outStart = new int[n + 1];
+        final int[] inStart = new int[n + 1];
+        int m = 0;
+        for (Connection<?> c : graph.getConnections()) {
+            outStart[nodeIds.get(c.from()) + 1]++;
+            inStart[nodeIds.get(c.to()) + 1]++;
+            m++;
+        }
+        numConnections = m;
+        for (int i = 0; i < n; i++) {
+            outStart[i + 1] += outStart[i];
+            inStart[i + 1] += inStart[i];
+        }
+        final int[] outTarget = new int[m];
+        final double[] outLength = new double[m];
+        final int[] inSource = new int[m];
+        final double[] inLength = new double[m];
+        final int[] outFill = Arrays.copyOf(outStart, n);
+        final int[] inFill = Arrays.copyOf(inStart, n);
+        for (Connection<?> c : graph.getConnections()) {
+            final int from = nodeIds.get(c.from());
+            final int to = nodeIds.get(c.to());
+            outTarget[outFill[from]] = to;
+            outLength[outFill[from]++] = c.getLength();
+            inSource[inFill[to]] = from;
+            inLength[inFill[to]++] = c.getLength();
+        }
+
+        toHub = new double[hubs.size()][];
+        nextToHub = new int[hubs.size()][];
+        fromHub = new double[hubs.size()][];
+        prevFromHub = new int[hubs.size()][];
+        final NodeHeap heap = new NodeHeap(n);
+        for (int h = 0; h < hubs.size(); h++) {
+            final Integer root = nodeIds.get(hubs.get(h));
+            if (root == null) {
+                throw new IllegalArgumentException("Hub is not a node: " + hubs.get(h));
+            }
+            fromHub[h] = new double[n];
+            prevFromHub[h] = new int[n];
+            dijkstra(root, outStart, outTarget, outLength, fromHub[h], prevFromHub[h], heap);
+            // on the reverse graph the parent is the next node toward the hub
+            toHub[h] = new double[n];
+            nextToHub[h] = new int[n];
+            dijkstra(root, inStart, inSource, inLength, toHub[h], nextToHub[h], heap);
+        }
+    }
+
+    /**
+     * @param graph The graph.
+     * @param hubs The roots of the trees, nodes of the graph.
+     * @return The table.
+     */
+    public static HubDistanceTable create(Graph<?> graph, List<Point> hubs) {
+        return new HubDistanceTable(graph, hubs);
+    }
+
+    /**
+     * @return Whether this table was built for the graph, as it is now, and
+     *         the same hubs.
+     */
+    public boolean isFor(Graph<?> g, List<Point> h) {
+        return g == graph && g.getNumberOfNodes() == nodes.length
+                && g.getNumberOfConnections() == numConnections && hubs.equals(h);
+    }
+
+    public List<Point> getHubs() {
+        return hubs;
+    }
+
+    /**
+     * @return The index of the hub at the point, -1 if there is none.
+     */
+    public int hubIndex(Point p) {
+        return hubs.indexOf(p);
+    }
+
+    /**
+     * @return The length of the shortest path from a node to the hub,
+     *         {@link Double#NaN} if the point is not a node and
+     *         {@link Double#POSITIVE_INFINITY} if the hub can't be reached.
+     */
+    public double distanceToHub(int hub, Point from) {
+        final Integer v = nodeIds.get(from);
+        return v == null ? Double.NaN : toHub[hub][v];
+    }
+
+    /**
+     * @return The length of the shortest path from the hub to a node,
+     *         {@link Double#NaN} if the point is not a node and
+     *         {@link Double#POSITIVE_INFINITY} if it can't be reached.
+     */
+    public double distanceFromHub(int hub, Point to) {
+        final Integer v = nodeIds.get(to);
+        return v == null ? Double.NaN : fromHub[hub][v];
+    }
+
+    /**
+     * Looks up the distance between two points if one of them is a hub.
+     * @return The length of the shortest path, {@link Double#NaN} if neither
+     *         point is a hub or the other point is not a node.
+     */
+    public double distance(Point from, Point to) {
+        int hub = hubIndex(to);
+        if (hub >= 0) {
+            return distanceToHub(hub, from);
+        }
+        hub = hubIndex(from);
+        return hub >= 0 ? distanceFromHub(hub, to) : Double.NaN;
+    }
+
+    /**
+     * @return The nodes of the shortest path from a node to the hub, without
+     *         the start and with the hub, <code>null</code> if the point is
+     *         not a node or the hub can't be reached.
+     */
+    @Nullable
+    public List<Point> routeToHub(int hub, Point from) {
+        final Integer start = nodeIds.get(from);
+        if (start == null || toHub[hub][start] == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        final List<Point> route = new ArrayList<>();
+        for (int v = nextToHub[hub][start]; v != NONE; v = nextToHub[hub][v]) {
+            route.add(nodes[v]);
+        }
+        return route;
+    }
+
+    /**
+     * @return The nodes of the shortest path from the hub to a node, without
+     *         the hub and with the end, <code>null</code> if the point is not
+     *         a node or it can't be reached.
+     */
+    @Nullable
+    public List<Point> routeFromHub(int hub, Point to) {
+        final Integer end = nodeIds.get(to);
+        if (end == null || fromHub[hub][end] == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        final List<Point> route = new ArrayList<>();
+        for (int v = end; prevFromHub[hub][v] != NONE; v = prevFromHub[hub][v]) {
+            route.add(nodes[v]);
+        }
+        Collections.reverse(route);
+        return route;
+    }
+
+    private static void dijkstra(int root, int[] start, int[] target, double[] length,
+                                 double[] dist, int[] parent, NodeHeap heap) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(parent, NONE);
+        dist[root] = 0;
+        heap.push(root, 0);
+        while (!heap.isEmpty()) {
+            final int v = heap.pop();
+            for (int e = start[v]; e < start[v + 1]; e++) {
+                final int w = target[e];
+                final double d = dist[v] + length[e];
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    parent[w] = v;
+                    heap.push(w, d);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.couriersim.index;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.github.rinde.rinsim.core.model.road.RoadModels;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Nearest objects by road distance instead of by straight line distance, as
+ * {@link RoadModels#findClosestObject} does. A query runs Dijkstra from the
+ * start node and looks at the objects on every node as soon as the node is
+ * settled, so the objects are found in order of their road distance and the
+ * search stops after the first k accepted objects or at the distance bound.
+ * The search only visits the part of the graph that is closer than the k-th
+ * object.
+ * <p>
+ * The graph is copied once into primitive arrays. Every thread gets its own
+ * heap and distance arrays that are reused by all its queries, a query only
+ * allocates the results it returns. Like {@link HubDistanceTable} this does
+ * not follow changes of the graph, use {@link #isFor(Graph)}.
+ */
+public final class NetworkKnn {
+
+    private final Graph<?> graph;
+    private final int numConnections;
+    private final Map<Point, Integer> nodeIds;
+    private final Point[] nodes;
+    private final int[] start;
+    private final int[] target;
+    private final double[] length;
+    private final double detour;
+    private final ThreadLocal<Search> searches;
+
+    NetworkKnn(Graph<?> graph) {
+        this.graph = graph;
+        nodes = graph.getNodes().toArray(new Point[0]);
+        final int n = nodes.length;
+        nodeIds = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            nodeIds.put(nodes[i], i);
+        }
+        start = new int[n + 1];
+        int m = 0;
+        for (Connection<?> c : graph.getConnections()) {
+            start[nodeIds.get(c.from()) + 1]++;
+            m++;
+        }
+        numConnections = m;
+        for (int i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        target = new int[m];
+        length = new double[m];
+        final int[] fill = Arrays.copyOf(start, n);
+        double roads = 0;
+        double straight = 0;
+        for (Connection<?> c : graph.getConnections()) {
+            final int from = nodeIds.get(c.from());
+            target[fill[from]] = nodeIds.get(c.to());
+            length[fill[from]++] = c.getLength();
+            roads += c.getLength();
+            straight += Point.distance(c.from(), c.to());
+        }
+        detour = roads > 0 && straight > 0 ? roads / straight : 1;
+        searches = ThreadLocal.withInitial(() -> new Search(n));
+    }
+
+    /**
+     * @param graph The graph, its connection lengths are the distances.
+     * @return The index.
+     */
+    public static NetworkKnn create(Graph<?> graph) {
+        return new NetworkKnn(graph);
+    }
+
+    /**
+     * @return Whether this index was built for the graph, as it is now.
+     */
+    public boolean isFor(Graph<?> g) {
+        return g == graph && g.getNumberOfNodes() == nodes.length
+                && g.getNumberOfConnections() == numConnections;
+    }
+
+    /**
+     * @return The total length of the connections per unit of their straight
+     *         line length, converts coordinate distances to road distances.
+     */
+    public double getDetour() {
+        return detour;
+    }
+
+    public boolean isNode(Point p) {
+        return nodeIds.containsKey(p);
+    }
+
+    /**
+     * Finds the accepted objects closest to a node, in order of road distance.
+     * @param from The start node.
+     * @param offset The distance that is already behind before the start
+     *          node, e.g. the rest of the connection a vehicle is on.
+     * @param k The maximum number of objects.
+     * @param maxDistance Nodes further than this are not searched.
+     * @param objectsAt The objects on a node, <code>null</code> or empty if
+     *          there are none.
+     * @param accept Whether an object may be returned.
+     * @param result Gets the objects, closest first.
+     * @return The number of objects added to the result, 0 if the start is not
+     *         a node.
+     */
+    public <T> int nearest(Point from, double offset, int k, double maxDistance,
+                           Function<Point, ? extends Collection<? extends T>> objectsAt,
+                           Predicate<? super T> accept, List<? super T> result) {
+        final Integer root = nodeIds.get(from);
+        if (root == null || k <= 0) {
+            return 0;
+        }
+        final Search s = searches.get();
+        final int stamp = s.next();
+        final NodeHeap heap = s.heap;
+        int found = 0;
+        s.reach(root, offset, stamp);
+        heap.push(root, offset);
+        while (!heap.isEmpty() && heap.peekKey() <= maxDistance) {
+            final int v = heap.pop();
+            final Collection<? extends T> objects = objectsAt.apply(nodes[v]);
+            if (objects != null) {
+                for (T o : objects) {
+                    if (accept.test(o)) {
+                        result.add(o);
+                        if (++found == k) {
+                            heap.clear();
+                            return found;
+                        }
+                    }
+                }
+            }
+            final double dv = s.dist[v];
+            for (int e = start[v]; e < start[v + 1]; e++) {
+                final int w = target[e];
+                final double d = dv + length[e];
+                if (s.seen[w] != stamp || d < s.dist[w]) {
+                    s.reach(w, d, stamp);
+                    heap.push(w, d);
+                }
+            }
+        }
+        heap.clear();
+        return found;
+    }
+
+    // per thread search state, a node's distance is only valid if it was
+    // reached in the current search
+    private static final class Search {
+        final NodeHeap heap;
+        final double[] dist;
+        final int[] seen;
+        int stamp;
+
+        Search(int n) {
+            heap = new NodeHeap(n);
+            dist = new double[n];
+            seen = new int[n];
+        }
+
+        int next() {
+            if (++stamp == 0) {
+                Arrays.fill(seen, 0);
+                stamp = 1;
+            }
+            return stamp;
+        }
+
+        void reach(int v, double d, int s) {
+            dist[v] = d;
+            seen[v] = s;
+        }
+    }
+}
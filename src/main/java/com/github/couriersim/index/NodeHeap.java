@@ -0,0 +1,97 @@
+package com.github.couriersim.index;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of node ids (0 to n - 1) with decrease-key, the arrays are
+ * allocated once so a heap can be reused by many searches.
+ */
+final class NodeHeap {
+    private final int[] heap;
+    private final double[] key;
+    // position of a node in the heap, -1 if not in it
+    private final int[] pos;
+    private int size;
+
+    NodeHeap(int n) {
+        heap = new int[n];
+        key = new double[n];
+        pos = new int[n];
+        Arrays.fill(pos, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all nodes, also after a search that stopped early.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            pos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    double peekKey() {
+        return key[heap[0]];
+    }
+
+    // inserts the node or lowers its key
+    void push(int v, double k) {
+        key[v] = k;
+        if (pos[v] < 0) {
+            heap[size] = v;
+            pos[v] = size++;
+        }
+        up(pos[v]);
+    }
+
+    int pop() {
+        final int top = heap[0];
+        pos[top] = -1;
+        if (--size > 0) {
+            heap[0] = heap[size];
+            pos[heap[0]] = 0;
+            down(0);
+        }
+        return top;
+    }
+
+    private void up(int i) {
+        final int v = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (key[heap[parent]] <= key[v]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+
+    private void down(int i) {
+        final int v = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && key[heap[child + 1]] < key[heap[child]]) {
+                child++;
+            }
+            if (key[v] <= key[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.couriersim.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.github.couriersim.Projection;
+import com.github.rinde.rinsim.geom.Connection;
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Static spatial index over the nodes and connections of a graph, used to snap
+ * real world coordinates to the graph. Nodes are stored in a packed k-d tree,
+ * connections in a packed STR R-tree. Both are built once, the index does not
+ * follow changes of the graph.
+ * <p>
+ * All queries are read-only so a single index can be shared between threads.
+ */
+public final class SpatialIndex {
+
+    // number of entries per R-tree node
+    private static final int FANOUT = 16;
+
+    private final Projection projection;
+
+    // k-d tree: node i of the range [lo, hi) is stored at (lo + hi) / 2, the
+    // split axis alternates between x and y with the depth
+    private final double[] nodeX;
+    private final double[] nodeY;
+    private final Point[] nodes;
+
+    // R-tree: level 0 are the connections, every higher level holds the
+    // bounding boxes of FANOUT entries of the level below
+    private final Point[] edgeFrom;
+    private final Point[] edgeTo;
+    private final List<double[]> levels;
+
+    SpatialIndex(Graph<?> graph, Projection projection) {
+        this.projection = projection;
+
+        nodes = graph.getNodes().toArray(new Point[0]);
+        nodeX = new double[nodes.length];
+        nodeY = new double[nodes.length];
+        buildKdTree(0, nodes.length, 0);
+
+        final List<Connection<?>> conns = new ArrayList<>();
+        for (Connection<?> c : graph.getConnections()) {
+            conns.add(c);
+        }
+        final int n = conns.size();
+        final double[] box = new double[4 * n];
+        final Point[] from = new Point[n];
+        final Point[] to = new Point[n];
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        sortTileRecursive(conns, order);
+        for (int i = 0; i < n; i++) {
+            final Connection<?> c = conns.get(order[i]);
+            from[i] = c.from();
+            to[i] = c.to();
+            box[4 * i] = Math.min(c.from().x, c.to().x);
+            box[4 * i + 1] = Math.min(c.from().y, c.to().y);
+            box[4 * i + 2] = Math.max(c.from().x, c.to().x);
+            box[4 * i + 3] = Math.max(c.from().y, c.to().y);
+        }
+        edgeFrom = from;
+        edgeTo = to;
+        levels = new ArrayList<>();
+        levels.add(box);
+        double[] below = box;
+        while (below.length > 4) {
+            final int size = below.length / 4;
+            final int parents = (size + FANOUT - 1) / FANOUT;
+            final double[] level = new double[4 * parents];
+            for (int p = 0; p < parents; p++) {
+                level[4 * p] = Double.POSITIVE_INFINITY;
+                level[4 * p + 1] = Double.POSITIVE_INFINITY;
+                level[4 * p + 2] = Double.NEGATIVE_INFINITY;
+                level[4 * p + 3] = Double.NEGATIVE_INFINITY;
+                for (int c = p * FANOUT; c < Math.min(size, (p + 1) * FANOUT); c++) {
+                    level[4 * p] = Math.min(level[4 * p], below[4 * c]);
+                    level[4 * p + 1] = Math.min(level[4 * p + 1], below[4 * c + 1]);
+                    level[4 * p + 2] = Math.max(level[4 * p + 2], below[4 * c + 2]);
+                    level[4 * p + 3] = Math.max(level[4 * p + 3], below[4 * c + 3]);
+                }
+            }
+            levels.add(level);
+            below = level;
+        }
+    }
+
+    /**
+     * Builds an index for graphs created by the {@link com.github.couriersim.OsmConverter}.
+     * @param graph The graph.
+     * @return The index.
+     */
+    public static SpatialIndex create(Graph<?> graph) {
+        return create(graph, Projection.OSM);
+    }
+
+    /**
+     * @param graph The graph.
+     * @param projection The projection that was used to create the graph.
+     * @return The index.
+     */
+    public static SpatialIndex create(Graph<?> graph, Projection projection) {
+        return new SpatialIndex(graph, projection);
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @param p A point in graph coordinates.
+     * @return The graph node closest to the point.
+     */
+    public Point nearestNode(Point p) {
+        return nodes[nearestNode(p.x, p.y)];
+    }
+
+    /**
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @return The graph node closest to the projected coordinate.
+     */
+    public Point nearestNode(double lat, double lon) {
+        return nearestNode(projection.project(lat, lon));
+    }
+
+    /**
+     * @param p A point in graph coordinates.
+     * @return The closest position on any connection of the graph.
+     */
+    public EdgeSnap nearestEdge(Point p) {
+        if (edgeFrom.length == 0) {
+            throw new IllegalStateException("The graph has no connections.");
+        }
+        final double[] best = {Double.POSITIVE_INFINITY, -1};
+        searchEdges(levels.size() - 1, 0, p.x, p.y, best);
+        final int e = (int) best[1];
+        final Point a = edgeFrom[e];
+        final Point b = edgeTo[e];
+        final double t = projectOnSegment(p.x, p.y, a, b);
+        final Point snapped = new Point(a.x + t * (b.x - a.x), a.y + t * (b.y - a.y));
+        return new EdgeSnap(a, b, snapped, Math.sqrt(best[0]),
+                t * Point.distance(a, b));
+    }
+
+    /**
+     * @param lat The latitude.
+     * @param lon The longitude.
+     * @return The closest position on any connection of the graph.
+     */
+    public EdgeSnap nearestEdge(double lat, double lon) {
+        return nearestEdge(projection.project(lat, lon));
+    }
+
+    /**
+     * Snaps a batch of coordinates to their nearest nodes, in parallel.
+     * @param lats The latitudes.
+     * @param lons The longitudes, must have the same length as lats.
+     * @return The nearest node of every coordinate.
+     */
+    public Point[] snapToNodes(final double[] lats, final double[] lons) {
+        if (lats.length != lons.length) {
+            throw new IllegalArgumentException("lats and lons differ in length");
+        }
+        final Point[] result = new Point[lats.length];
+        IntStream.range(0, lats.length).parallel().forEach(
+                i -> result[i] = nearestNode(lats[i], lons[i]));
+        return result;
+    }
+
+    /**
+     * Snaps a batch of coordinates to their nearest connections, in parallel.
+     * @param lats The latitudes.
+     * @param lons The longitudes, must have the same length as lats.
+     * @return The nearest position on a connection of every coordinate.
+     */
+    public EdgeSnap[] snapToEdges(final double[] lats, final double[] lons) {
+        if (lats.length != lons.length) {
+            throw new IllegalArgumentException("lats and lons differ in length");
+        }
+        final EdgeSnap[] result = new EdgeSnap[lats.length];
+        IntStream.range(0, lats.length).parallel().forEach(
+                i -> result[i] = nearestEdge(lats[i], lons[i]));
+        return result;
+    }
+
+    public int getNumberOfNodes() {
+        return nodes.length;
+    }
+
+    /**
+     * A position on a connection.
+     */
+    public static final class EdgeSnap {
+        public final Point from;
+        public final Point to;
+        public final Point position;
+        /** Distance between the query point and {@link #position}. */
+        public final double distance;
+        /** Distance between {@link #from} and {@link #position}. */
+        public final double offset;
+
+        EdgeSnap(Point from, Point to, Point position, double distance,
+                 double offset) {
+            this.from = from;
+            this.to = to;
+            this.position = position;
+            this.distance = distance;
+            this.offset = offset;
+        }
+    }
+
+    private void buildKdTree(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            if (hi - lo == 1) {
+                nodeX[lo] = nodes[lo].x;
+                nodeY[lo] = nodes[lo].y;
+            }
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0);
+        nodeX[mid] = nodes[mid].x;
+        nodeY[mid] = nodes[mid].y;
+        buildKdTree(lo, mid, depth + 1);
+        buildKdTree(mid + 1, hi, depth + 1);
+    }
+
+    // quickselect on the nodes array, afterwards nodes[k] is the median
+    private void select(int lo, int hi, int k, boolean byX) {
+        while (lo < hi) {
+            final double pivot = coord(nodes[(lo + hi) >>> 1], byX);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coord(nodes[i], byX) < pivot) {
+                    i++;
+                }
+                while (coord(nodes[j], byX) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final Point tmp = nodes[i];
+                    nodes[i] = nodes[j];
+                    nodes[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double coord(Point p, boolean byX) {
+        return byX ? p.x : p.y;
+    }
+
+    private int nearestNode(double x, double y) {
+        if (nodes.length == 0) {
+            throw new IllegalStateException("The graph has no nodes.");
+        }
+        final double[] best = {Double.POSITIVE_INFINITY, -1};
+        searchNodes(0, nodes.length, 0, x, y, best);
+        return (int) best[1];
+    }
+
+    private void searchNodes(int lo, int hi, int depth, double x, double y,
+                             double[] best) {
+        if (lo >= hi) {
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        final double dx = nodeX[mid] - x;
+        final double dy = nodeY[mid] - y;
+        final double d = dx * dx + dy * dy;
+        if (d < best[0]) {
+            best[0] = d;
+            best[1] = mid;
+        }
+        final double diff = depth % 2 == 0 ? x - nodeX[mid] : y - nodeY[mid];
+        if (diff < 0) {
+            searchNodes(lo, mid, depth + 1, x, y, best);
+            if (diff * diff < best[0]) {
+                searchNodes(mid + 1, hi, depth + 1, x, y, best);
+            }
+        } else {
+            searchNodes(mid + 1, hi, depth + 1, x, y, best);
+            if (diff * diff < best[0]) {
+                searchNodes(lo, mid, depth + 1, x, y, best);
+            }
+        }
+    }
+
+    private void searchEdges(int level, int index, double x, double y,
+                             double[] best) {
+        if (level == 0) {
+            final double t = projectOnSegment(x, y, edgeFrom[index], edgeTo[index]);
+            final Point a = edgeFrom[index];
+            final Point b = edgeTo[index];
+            final double dx = a.x + t * (b.x - a.x) - x;
+            final double dy = a.y + t * (b.y - a.y) - y;
+            final double d = dx * dx + dy * dy;
+            if (d < best[0]) {
+                best[0] = d;
+                best[1] = index;
+            }
+            return;
+        }
+        final double[] below = levels.get(level - 1);
+        final int size = below.length / 4;
+        final int end = Math.min(size, (index + 1) * FANOUT);
+        for (int c = index * FANOUT; c < end; c++) {
+            if (boxDistance(below, c, x, y) < best[0]) {
+                searchEdges(level - 1, c, x, y, best);
+            }
+        }
+    }
+
+    // squared distance between a point and the i-th box of a level
+    private static double boxDistance(double[] boxes, int i, double x, double y) {
+        final double dx = Math.max(0, Math.max(boxes[4 * i] - x, x - boxes[4 * i + 2]));
+        final double dy = Math.max(0, Math.max(boxes[4 * i + 1] - y, y - boxes[4 * i + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    // position of the projection of (x, y) on segment ab as a fraction of ab
+    private static double projectOnSegment(double x, double y, Point a, Point b) {
+        final double vx = b.x - a.x;
+        final double vy = b.y - a.y;
+        final double len = vx * vx + vy * vy;
+        if (len == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((x - a.x) * vx + (y - a.y) * vy) / len));
+    }
+
+    // Sort-Tile-Recursive ordering: sort on x, cut into vertical slices and
+    // sort every slice on y, consecutive runs of FANOUT then form the leaves
+    private static void sortTileRecursive(final List<Connection<?>> conns,
+                                          Integer[] order) {
+        final int n = order.length;
+        Arrays.sort(order, (a, b) -> Double.compare(
+                centerX(conns.get(a)), centerX(conns.get(b))));
+        final int leaves = (n + FANOUT - 1) / FANOUT;
+        final int slices = (int) Math.ceil(Math.sqrt(leaves));
+        final int sliceSize = slices * FANOUT;
+        for (int s = 0; s < n; s += sliceSize) {
+            Arrays.sort(order, s, Math.min(n, s + sliceSize),
+                    (a, b) -> Double.compare(centerY(conns.get(a)),
+                            centerY(conns.get(b))));
+        }
+    }
+
+    private static double centerX(Connection<?> c) {
+        return (c.from().x + c.to().x) / 2;
+    }
+
+    private static double centerY(Connection<?> c) {
+        return (c.from().y + c.to().y) / 2;
+    }
+}
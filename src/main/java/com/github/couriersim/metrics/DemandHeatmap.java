@@ -0,0 +1,146 @@
+package com.github.couriersim.metrics;
+
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Exponentially decaying count of the order arrivals per cell of a grid over
+ * the map. The decay is applied lazily: a cell remembers when it was last
+ * updated and is only decayed when it is recorded to or read, so recording is
+ * O(1) regardless of the number of cells. Next to the weight every cell keeps
+ * the (equally decayed) sum of the arrival positions, such that the centroid
+ * of the recent demand in a cell is known.
+ */
+public final class DemandHeatmap {
+
+    private final double minX;
+    private final double minY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int columns;
+    private final int rows;
+    // decay time constant, the weight drops by a factor e every tau
+    private final double tau;
+
+    private final double[] weights;
+    private final double[] sumX;
+    private final double[] sumY;
+    private final long[] updated;
+
+    /**
+     * @param min The lower left corner of the map.
+     * @param max The upper right corner of the map.
+     * @param columns The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @param halfLife The time after which an arrival counts for half.
+     */
+    public DemandHeatmap(Point min, Point max, int columns, int rows, long halfLife) {
+        if (columns < 1 || rows < 1 || halfLife < 1) {
+            throw new IllegalArgumentException("columns, rows and halfLife must be positive");
+        }
+        minX = min.x;
+        minY = min.y;
+        cellWidth = Math.max(max.x - min.x, Double.MIN_NORMAL) / columns;
+        cellHeight = Math.max(max.y - min.y, Double.MIN_NORMAL) / rows;
+        this.columns = columns;
+        this.rows = rows;
+        tau = halfLife / Math.log(2);
+        weights = new double[columns * rows];
+        sumX = new double[weights.length];
+        sumY = new double[weights.length];
+        updated = new long[weights.length];
+    }
+
+    /**
+     * Records an order arrival.
+     * @param p The position of the arrival.
+     * @param time The current time, never earlier than a previous time.
+     */
+    public void record(Point p, long time) {
+        final int cell = cell(p);
+        decay(cell, time);
+        weights[cell]++;
+        sumX[cell] += p.x;
+        sumY[cell] += p.y;
+    }
+
+    public int getNumberOfCells() {
+        return weights.length;
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @param time The current time.
+     * @return The forecast demand of the cell.
+     */
+    public double getWeight(int cell, long time) {
+        decay(cell, time);
+        return weights[cell];
+    }
+
+    /**
+     * @param cell The index of a cell.
+     * @param time The current time.
+     * @return The centroid of the recent demand in the cell, or the center of
+     *         the cell if it has none.
+     */
+    public Point getCentroid(int cell, long time) {
+        decay(cell, time);
+        if (weights[cell] <= 0) {
+            return new Point(minX + (cell % columns + .5) * cellWidth,
+                    minY + (cell / columns + .5) * cellHeight);
+        }
+        return new Point(sumX[cell] / weights[cell], sumY[cell] / weights[cell]);
+    }
+
+    /**
+     * @param time The current time.
+     * @param k The maximum number of cells.
+     * @return The indices of (at most) the k cells with the highest forecast,
+     *         in descending order, cells without demand are omitted.
+     */
+    public int[] getHotspots(long time, int k) {
+        final int n = Math.min(k, weights.length);
+        final int[] top = new int[n];
+        int size = 0;
+        for (int c = 0; c < weights.length; c++) {
+            final double w = getWeight(c, time);
+            if (w <= 0 || size == n && w <= weights[top[n - 1]]) {
+                continue;
+            }
+            // insertion into the sorted top k
+            int i = size < n ? size++ : n - 1;
+            while (i > 0 && weights[top[i - 1]] < w) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = c;
+        }
+        if (size == n) {
+            return top;
+        }
+        final int[] result = new int[size];
+        System.arraycopy(top, 0, result, 0, size);
+        return result;
+    }
+
+    private int cell(Point p) {
+        final int col = clamp((int) ((p.x - minX) / cellWidth), columns);
+        final int row = clamp((int) ((p.y - minY) / cellHeight), rows);
+        return row * columns + col;
+    }
+
+    private void decay(int cell, long time) {
+        final long elapsed = time - updated[cell];
+        if (elapsed > 0) {
+            final double factor = Math.exp(-elapsed / tau);
+            weights[cell] *= factor;
+            sumX[cell] *= factor;
+            sumY[cell] *= factor;
+            updated[cell] = time;
+        }
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+}
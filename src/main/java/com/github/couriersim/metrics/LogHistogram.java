@@ -0,0 +1,118 @@
+package com.github.couriersim.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of non-negative long values in the style of
+ * HdrHistogram: values are grouped per power of two and every power of two is
+ * split in 2<sup>precision</sup> linear sub-buckets, which bounds the relative
+ * error of every reported value by 2<sup>-precision</sup>. The memory use only
+ * depends on the precision, not on the number of recorded values.
+ */
+public final class LogHistogram {
+
+    private final int precision;
+    private final int subBuckets;
+    private final long[] counts;
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    /**
+     * @param precision Number of bits of precision, between 1 and 16.
+     */
+    public LogHistogram(int precision) {
+        if (precision < 1 || precision > 16) {
+            throw new IllegalArgumentException("precision must be in [1, 16]");
+        }
+        this.precision = precision;
+        subBuckets = 1 << precision;
+        // exact values below subBuckets, then half of the sub-buckets for
+        // every remaining power of two
+        counts = new long[subBuckets + (63 - precision) * (subBuckets / 2)];
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @param percentile A percentile in [0, 100].
+     * @return The (upper bound of the bucket of the) value at the percentile.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100d * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    // values below subBuckets are stored exactly, above that the precision
+    // highest bits of the value select the bucket
+    private int index(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - precision;
+        final int top = (int) (value >>> shift);
+        return subBuckets + (shift - 1) * (subBuckets / 2) + top - subBuckets / 2;
+    }
+
+    private long highestValue(int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+        final int j = index - subBuckets;
+        final int shift = j / (subBuckets / 2) + 1;
+        final long top = j % (subBuckets / 2) + subBuckets / 2;
+        // wraps around to Long.MAX_VALUE for the very last bucket
+        return ((top + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                total, getMean(), getValueAtPercentile(50),
+                getValueAtPercentile(90), getValueAtPercentile(99), max);
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.couriersim.metrics;
+
+import java.io.IOException;
+
+/**
+ * Receives the metrics of simulation runs, e.g. a {@link ResultStore.Writer}.
+ * The values are those of the columns of {@link ResultStore.Table}.
+ */
+public interface ResultSink {
+
+    /**
+     * The outcome of a run.
+     * @param config A description of the options of the run.
+     * @param distance The distance all taxis drove, in km.
+     */
+    void run(String config, long seed, double profit, long deliveries, double distance,
+             long ticks, double tickMeanNanos, long tickP99Nanos, long wallMs)
+            throws IOException;
+
+    /**
+     * What happened in an interval of a run, the values are not cumulative.
+     * @param time The start of the interval in simulation time.
+     */
+    void interval(String config, long seed, long time, double profit, long deliveries,
+                  double distance, double tickMeanNanos) throws IOException;
+}
@@ -0,0 +1,474 @@
+package com.github.couriersim.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+/**
+ * Local store of experiment results: one row per run and one per interval of
+ * a run, kept in append-only compressed columnar segments in a directory.
+ * <p>
+ * Every {@link Writer} buffers its rows and writes them as a new segment file
+ * once {@link #SEGMENT_ROWS} rows are buffered or it is flushed. A segment is
+ * written under a temporary name and then renamed, so readers never see half
+ * written segments and writers, in the same or in other processes, never wait
+ * for each other: they don't share any file.
+ * <p>
+ * A {@link Query} reads one segment at a time and only the columns it uses,
+ * segments whose minimum and maximum exclude a range filter are skipped
+ * without reading them, so aggregating over many runs needs little memory.
+ */
+public final class ResultStore {
+
+    /** Number of rows a writer buffers per table before it writes them. */
+    public static final int SEGMENT_ROWS = 4096;
+
+    private static final String SUFFIX = ".seg";
+
+    /** The type of a column. */
+    public enum Type {
+        LONG, DOUBLE, STRING
+    }
+
+    /** A named column of a table. */
+    public static final class Column {
+        public final String name;
+        public final Type type;
+
+        Column(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /** The tables of the store, each in its own subdirectory. */
+    public enum Table {
+        /** The outcome of a run. */
+        RUNS(new Column("config", Type.STRING), new Column("seed", Type.LONG),
+                new Column("profit", Type.DOUBLE), new Column("deliveries", Type.LONG),
+                new Column("distance", Type.DOUBLE), new Column("ticks", Type.LONG),
+                new Column("tick_mean_ns", Type.DOUBLE), new Column("tick_p99_ns", Type.LONG),
+                new Column("wall_ms", Type.LONG)),
+        /** What happened in an interval of a run, the values are not cumulative. */
+        INTERVALS(new Column("config", Type.STRING), new Column("seed", Type.LONG),
+                new Column("time", Type.LONG), new Column("profit", Type.DOUBLE),
+                new Column("deliveries", Type.LONG), new Column("distance", Type.DOUBLE),
+                new Column("tick_mean_ns", Type.DOUBLE));
+
+        public final List<Column> columns;
+
+        Table(Column... columns) {
+            this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+        }
+
+        /**
+         * @return The index of the column with the name.
+         * @throws IllegalArgumentException If there is no such column.
+         */
+        public int column(String name) {
+            for (int i = 0; i < columns.size(); i++) {
+                if (columns.get(i).name.equals(name)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No column " + name + " in " + this);
+        }
+
+        String directory() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final File directory;
+
+    ResultStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a store, the directory is created if it doesn't exist.
+     * @param directory The directory of the store.
+     * @return The store.
+     * @throws IOException If the directory can not be created.
+     */
+    public static ResultStore open(File directory) throws IOException {
+        for (Table t : Table.values()) {
+            Files.createDirectories(new File(directory, t.directory()).toPath());
+        }
+        return new ResultStore(directory);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return A new writer, every thread or process that writes should use
+     *         its own.
+     */
+    public Writer writer() {
+        return new Writer();
+    }
+
+    public Query query(Table table) {
+        return new Query(table);
+    }
+
+    // the published segments of a table, oldest first
+    List<File> segments(Table table) {
+        final File[] files = new File(directory, table.directory()).listFiles(
+                (dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Appends rows to the store. The methods of a writer are synchronized, but
+     * writers don't share anything, so parallel workers each use their own.
+     */
+    public final class Writer implements ResultSink, Closeable {
+        private final String id = UUID.randomUUID().toString();
+        private final Buffer[] buffers = new Buffer[Table.values().length];
+        private final Deflater deflater = new Deflater();
+        private int written;
+
+        Writer() {
+            for (Table t : Table.values()) {
+                buffers[t.ordinal()] = new Buffer(t);
+            }
+        }
+
+        @Override
+        public synchronized void run(String config, long seed, double profit,
+                                     long deliveries, double distance, long ticks,
+                                     double tickMeanNanos, long tickP99Nanos, long wallMs)
+                throws IOException {
+            final Buffer b = buffers[Table.RUNS.ordinal()];
+            final int r = b.next();
+            b.strings[0][r] = config;
+            b.numbers[1][r] = seed;
+            b.numbers[2][r] = Double.doubleToLongBits(profit);
+            b.numbers[3][r] = deliveries;
+            b.numbers[4][r] = Double.doubleToLongBits(distance);
+            b.numbers[5][r] = ticks;
+            b.numbers[6][r] = Double.doubleToLongBits(tickMeanNanos);
+            b.numbers[7][r] = tickP99Nanos;
+            b.numbers[8][r] = wallMs;
+            flushIfFull(b);
+        }
+
+        @Override
+        public synchronized void interval(String config, long seed, long time,
+                                          double profit, long deliveries,
+                                          double distance, double tickMeanNanos)
+                throws IOException {
+            final Buffer b = buffers[Table.INTERVALS.ordinal()];
+            final int r = b.next();
+            b.strings[0][r] = config;
+            b.numbers[1][r] = seed;
+            b.numbers[2][r] = time;
+            b.numbers[3][r] = Double.doubleToLongBits(profit);
+            b.numbers[4][r] = deliveries;
+            b.numbers[5][r] = Double.doubleToLongBits(distance);
+            b.numbers[6][r] = Double.doubleToLongBits(tickMeanNanos);
+            flushIfFull(b);
+        }
+
+        /**
+         * Writes the buffered rows, they are visible to queries afterwards.
+         */
+        public synchronized void flush() throws IOException {
+            for (Buffer b : buffers) {
+                write(b);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+            deflater.end();
+        }
+
+        private void flushIfFull(Buffer b) throws IOException {
+            if (b.rows == SEGMENT_ROWS) {
+                write(b);
+            }
+        }
+
+        private void write(Buffer b) throws IOException {
+            if (b.rows == 0) {
+                return;
+            }
+            final File dir = new File(directory, b.table.directory());
+            // names sort by creation time
+            final String name = String.format(Locale.ROOT, "%013d-%s-%06d",
+                    System.currentTimeMillis(), id, written++);
+            final File tmp = new File(dir, "." + name + ".tmp");
+            Segment.write(tmp, b.table, b.rows, b.numbers, b.strings, deflater);
+            Files.move(tmp.toPath(), new File(dir, name + SUFFIX).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            b.rows = 0;
+        }
+    }
+
+    // rows of a table in columns, doubles as raw long bits
+    private static final class Buffer {
+        final Table table;
+        final long[][] numbers;
+        final String[][] strings;
+        int rows;
+
+        Buffer(Table table) {
+            this.table = table;
+            final int n = table.columns.size();
+            numbers = new long[n][];
+            strings = new String[n][];
+            for (int c = 0; c < n; c++) {
+                if (table.columns.get(c).type == Type.STRING) {
+                    strings[c] = new String[SEGMENT_ROWS];
+                } else {
+                    numbers[c] = new long[SEGMENT_ROWS];
+                }
+            }
+        }
+
+        int next() {
+            return rows++;
+        }
+    }
+
+    /**
+     * Filters the rows of a table and aggregates a column, segment by
+     * segment. Filters are combined with and.
+     */
+    public final class Query {
+        private final Table table;
+        private final List<Filter> filters = new ArrayList<>();
+
+        Query(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * Keeps the rows in which a column has the value, numbers are
+         * compared by their string form.
+         */
+        public Query whereEquals(String column, String value) {
+            filters.add(new Filter(table.column(column), value, 0, 0));
+            return this;
+        }
+
+        /**
+         * Keeps the rows in which a number column is between min and max,
+         * inclusive.
+         */
+        public Query whereBetween(String column, double min, double max) {
+            filters.add(new Filter(numberColumn(column), null, min, max));
+            return this;
+        }
+
+        /**
+         * @return The number of matching rows.
+         */
+        public long count() throws IOException {
+            return aggregate(table.columns.get(1).name).getCount();
+        }
+
+        /**
+         * @return The statistics of a number column over the matching rows.
+         */
+        public Stats aggregate(String column) throws IOException {
+            final Stats stats = new Stats();
+            scan(numberColumn(column), -1, (key, value) -> stats.add(value));
+            return stats;
+        }
+
+        /**
+         * @return The statistics of a number column over the matching rows,
+         *         per value of another column, sorted by that value.
+         */
+        public Map<String, Stats> aggregateBy(String group, String column) throws IOException {
+            final Map<String, Stats> result = new TreeMap<>();
+            scan(numberColumn(column), table.column(group), (key, value) -> {
+                Stats s = result.get(key);
+                if (s == null) {
+                    s = new Stats();
+                    result.put(key, s);
+                }
+                s.add(value);
+            });
+            return result;
+        }
+
+        private int numberColumn(String column) {
+            final int c = table.column(column);
+            if (table.columns.get(c).type == Type.STRING) {
+                throw new IllegalArgumentException(column + " is not a number column");
+            }
+            return c;
+        }
+
+        private void scan(int value, int group, Sink sink) throws IOException {
+            final Inflater inflater = new Inflater();
+            try {
+                for (File f : segments(table)) {
+                    final Segment s = Segment.open(f);
+                    if (!mayMatch(s)) {
+                        continue;
+                    }
+                    final boolean[] keep = new boolean[s.rows];
+                    Arrays.fill(keep, true);
+                    if (!applyFilters(s, keep, inflater)) {
+                        continue;
+                    }
+                    final Segment.Column values = s.read(value, inflater);
+                    final Segment.Column groups = group < 0 ? null : s.read(group, inflater);
+                    for (int r = 0; r < s.rows; r++) {
+                        if (keep[r]) {
+                            sink.accept(groups == null ? null : groups.string(r),
+                                    values.number(r));
+                        }
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // whether the header allows matches
+        private boolean mayMatch(Segment s) {
+            for (Filter f : filters) {
+                if (f.value != null) {
+                    continue;
+                }
+                final Type type = table.columns.get(f.column).type;
+                final double lo = type == Type.LONG ? s.min[f.column]
+                        : Double.longBitsToDouble(s.min[f.column]);
+                final double hi = type == Type.LONG ? s.max[f.column]
+                        : Double.longBitsToDouble(s.max[f.column]);
+                if (hi < f.min || lo > f.max) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // clears the rows that don't match, false if none matches
+        private boolean applyFilters(Segment s, boolean[] keep, Inflater inflater)
+                throws IOException {
+            for (Filter f : filters) {
+                final Segment.Column col = s.read(f.column, inflater);
+                if (f.value != null && col.type == Type.STRING) {
+                    final int code = col.code(f.value);
+                    if (code < 0) {
+                        return false;
+                    }
+                    for (int r = 0; r < s.rows; r++) {
+                        keep[r] &= col.codes[r] == code;
+                    }
+                } else if (f.value != null) {
+                    for (int r = 0; r < s.rows; r++) {
+                        keep[r] &= col.string(r).equals(f.value);
+                    }
+                } else {
+                    for (int r = 0; r < s.rows; r++) {
+                        final double v = col.number(r);
+                        keep[r] &= v >= f.min && v <= f.max;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private interface Sink {
+        void accept(@Nullable String group, double value);
+    }
+
+    private static final class Filter {
+        final int column;
+        @Nullable final String value;
+        final double min;
+        final double max;
+
+        Filter(int column, @Nullable String value, double min, double max) {
+            this.column = column;
+            this.value = value;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Count, sum, extremes and standard deviation of a column, the variance
+     * is accumulated with Welford's method.
+     */
+    public static final class Stats {
+        private long count;
+        private double sum;
+        private double mean;
+        private double m2;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        public void add(double v) {
+            count++;
+            sum += v;
+            final double delta = v - mean;
+            mean += delta / count;
+            m2 += delta * (v - mean);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : mean;
+        }
+
+        public double getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public double getMax() {
+            return count == 0 ? 0 : max;
+        }
+
+        /**
+         * @return The sample standard deviation, 0 for less than two values.
+         */
+        public double getStdDev() {
+            return count < 2 ? 0 : Math.sqrt(m2 / (count - 1));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "n=%d mean=%.2f sd=%.2f min=%.2f max=%.2f",
+                    count, getMean(), getStdDev(), getMin(), getMax());
+        }
+    }
+}
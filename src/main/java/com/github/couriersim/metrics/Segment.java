@@ -0,0 +1,347 @@
+package com.github.couriersim.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.couriersim.metrics.ResultStore.Table;
+import com.github.couriersim.metrics.ResultStore.Type;
+
+/**
+ * An immutable file with the rows of one table in columns. The header holds
+ * the number of rows and per column the minimum, the maximum and the size of
+ * its block, so a query can skip a segment or read only the columns it needs.
+ * Every block is deflated, before that longs are delta encoded as zigzag
+ * varints, doubles are XORed with the previous value and strings are
+ * dictionary encoded.
+ */
+final class Segment {
+
+    static final int MAGIC = 0x43535253;
+    static final byte VERSION = 1;
+
+    final File file;
+    final Table table;
+    final int rows;
+    final long[] min;
+    final long[] max;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private Segment(File file, Table table, int rows, long[] min, long[] max,
+                    long[] offsets, int[] lengths) {
+        this.file = file;
+        this.table = table;
+        this.rows = rows;
+        this.min = min;
+        this.max = max;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Writes the first rows of the columns, doubles are given as their raw
+     * long bits.
+     */
+    static void write(File file, Table table, int rows, long[][] numbers,
+                      String[][] strings, Deflater deflater) throws IOException {
+        final int n = table.columns.size();
+        final byte[][] blocks = new byte[n][];
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        final Encoder enc = new Encoder();
+        for (int c = 0; c < n; c++) {
+            enc.reset();
+            final Type type = table.columns.get(c).type;
+            if (type == Type.STRING) {
+                encodeStrings(enc, strings[c], rows);
+            } else {
+                encodeNumbers(enc, type, numbers[c], rows, c, min, max);
+            }
+            blocks[c] = deflate(enc, deflater);
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(table.ordinal());
+            out.writeInt(rows);
+            for (int c = 0; c < n; c++) {
+                out.writeLong(min[c]);
+                out.writeLong(max[c]);
+                out.writeInt(blocks[c].length);
+            }
+            for (byte[] block : blocks) {
+                out.write(block);
+            }
+        }
+    }
+
+    /**
+     * Reads the header of a segment.
+     */
+    static Segment open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Not a result segment: " + file);
+            }
+            final byte version = raf.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported segment version " + version + ": " + file);
+            }
+            final Table table = Table.values()[raf.readByte()];
+            final int rows = raf.readInt();
+            final int n = table.columns.size();
+            final long[] min = new long[n];
+            final long[] max = new long[n];
+            final int[] lengths = new int[n];
+            for (int c = 0; c < n; c++) {
+                min[c] = raf.readLong();
+                max[c] = raf.readLong();
+                lengths[c] = raf.readInt();
+            }
+            final long[] offsets = new long[n];
+            long offset = raf.getFilePointer();
+            for (int c = 0; c < n; c++) {
+                offsets[c] = offset;
+                offset += lengths[c];
+            }
+            return new Segment(file, table, rows, min, max, offsets, lengths);
+        }
+    }
+
+    /**
+     * Decodes a column.
+     */
+    Column read(int column, Inflater inflater) throws IOException {
+        final byte[] block = new byte[lengths[column]];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offsets[column]);
+            raf.readFully(block);
+        }
+        inflater.reset();
+        inflater.setInput(block);
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream(4 * block.length);
+        final byte[] chunk = new byte[1 << 12];
+        try {
+            while (!inflater.finished()) {
+                final int k = inflater.inflate(chunk);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated column in " + file);
+                }
+                raw.write(chunk, 0, k);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column in " + file, e);
+        }
+        final Decoder dec = new Decoder(raw.toByteArray());
+        final Type type = table.columns.get(column).type;
+        final Column col = new Column(type);
+        if (type == Type.STRING) {
+            col.dictionary = new String[(int) dec.varint()];
+            col.dictionaryCodes = new HashMap<>(2 * col.dictionary.length);
+            for (int i = 0; i < col.dictionary.length; i++) {
+                final int length = (int) dec.varint();
+                col.dictionary[i] = new String(dec.bytes, dec.pos, length,
+                        StandardCharsets.UTF_8);
+                col.dictionaryCodes.put(col.dictionary[i], i);
+                dec.pos += length;
+            }
+            col.codes = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                col.codes[r] = (int) dec.varint();
+            }
+        } else if (type == Type.LONG) {
+            col.longs = new long[rows];
+            long prev = 0;
+            for (int r = 0; r < rows; r++) {
+                final long z = dec.varint();
+                prev += (z >>> 1) ^ -(z & 1);
+                col.longs[r] = prev;
+            }
+        } else {
+            col.doubles = new double[rows];
+            long prev = 0;
+            for (int r = 0; r < rows; r++) {
+                prev ^= dec.long64();
+                col.doubles[r] = Double.longBitsToDouble(prev);
+            }
+        }
+        return col;
+    }
+
+    /** A decoded column, only the arrays of its type are set. */
+    static final class Column {
+        final Type type;
+        long[] longs;
+        double[] doubles;
+        int[] codes;
+        String[] dictionary;
+        Map<String, Integer> dictionaryCodes;
+
+        Column(Type type) {
+            this.type = type;
+        }
+
+        double number(int row) {
+            return type == Type.LONG ? longs[row] : doubles[row];
+        }
+
+        String string(int row) {
+            return type == Type.STRING ? dictionary[codes[row]]
+                    : type == Type.LONG ? Long.toString(longs[row])
+                    : Double.toString(doubles[row]);
+        }
+
+        // the dictionary code of a value, -1 if it doesn't occur
+        int code(String value) {
+            final Integer code = dictionaryCodes.get(value);
+            return code == null ? -1 : code;
+        }
+    }
+
+    private static void encodeNumbers(Encoder enc, Type type, long[] values, int rows,
+                                      int c, long[] min, long[] max) {
+        long prev = 0;
+        if (type == Type.LONG) {
+            min[c] = Long.MAX_VALUE;
+            max[c] = Long.MIN_VALUE;
+            for (int r = 0; r < rows; r++) {
+                final long d = values[r] - prev;
+                enc.varint((d << 1) ^ (d >> 63));
+                prev = values[r];
+                min[c] = Math.min(min[c], values[r]);
+                max[c] = Math.max(max[c], values[r]);
+            }
+        } else {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int r = 0; r < rows; r++) {
+                enc.long64(values[r] ^ prev);
+                prev = values[r];
+                final double v = Double.longBitsToDouble(values[r]);
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            min[c] = Double.doubleToLongBits(lo);
+            max[c] = Double.doubleToLongBits(hi);
+        }
+    }
+
+    private static void encodeStrings(Encoder enc, String[] values, int rows) {
+        final Map<String, Integer> codes = new HashMap<>();
+        final String[] dictionary = new String[rows];
+        final int[] row = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            Integer code = codes.get(values[r]);
+            if (code == null) {
+                code = codes.size();
+                codes.put(values[r], code);
+                dictionary[code] = values[r];
+            }
+            row[r] = code;
+        }
+        enc.varint(codes.size());
+        for (int i = 0; i < codes.size(); i++) {
+            final byte[] b = dictionary[i].getBytes(StandardCharsets.UTF_8);
+            enc.varint(b.length);
+            enc.write(b);
+        }
+        for (int r = 0; r < rows; r++) {
+            enc.varint(row[r]);
+        }
+    }
+
+    private static byte[] deflate(Encoder enc, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(enc.buf, 0, enc.size);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(enc.size / 2 + 16);
+        final byte[] chunk = new byte[1 << 12];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Encoder {
+        byte[] buf = new byte[1 << 12];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[size++] = (byte) (v & 0x7f | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void long64(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(2 * buf.length, size + n));
+            }
+        }
+    }
+
+    private static final class Decoder {
+        final byte[] bytes;
+        int pos;
+
+        Decoder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= bytes.length) {
+                    throw new IOException("Truncated varint");
+                }
+                final byte b = bytes[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long long64() throws IOException {
+            if (pos + 8 > bytes.length) {
+                throw new IOException("Truncated column");
+            }
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = v << 8 | bytes[pos++] & 0xff;
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.couriersim.metrics;
+
+/**
+ * Sum and count of the values recorded during the last
+ * <code>buckets * bucketLength</code> time units. Old buckets are recycled when
+ * time advances, so the memory use is fixed.
+ */
+public final class SlidingWindow {
+
+    private final long bucketLength;
+    private final double[] sums;
+    private final long[] counts;
+    // index of the bucket that contains the most recent time
+    private long currentBucket;
+
+    /**
+     * @param buckets The number of buckets.
+     * @param bucketLength The time span of a single bucket.
+     */
+    public SlidingWindow(int buckets, long bucketLength) {
+        if (buckets < 1 || bucketLength < 1) {
+            throw new IllegalArgumentException("buckets and bucketLength must be positive");
+        }
+        this.bucketLength = bucketLength;
+        sums = new double[buckets];
+        counts = new long[buckets];
+    }
+
+    public void record(long time, double value) {
+        advance(time);
+        final int i = (int) (currentBucket % sums.length);
+        sums[i] += value;
+        counts[i]++;
+    }
+
+    /**
+     * Moves the window such that it ends at the specified time, buckets that
+     * fall out of the window are cleared.
+     * @param time The current time.
+     */
+    public void advance(long time) {
+        final long bucket = time / bucketLength;
+        if (bucket <= currentBucket) {
+            return;
+        }
+        final long clear = Math.min(sums.length, bucket - currentBucket);
+        for (long b = bucket - clear + 1; b <= bucket; b++) {
+            final int i = (int) (b % sums.length);
+            sums[i] = 0;
+            counts[i] = 0;
+        }
+        currentBucket = bucket;
+    }
+
+    public double getSum() {
+        double sum = 0;
+        for (double s : sums) {
+            sum += s;
+        }
+        return sum;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        return count;
+    }
+
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : getSum() / count;
+    }
+
+    /** @return The time span covered by the window. */
+    public long getLength() {
+        return bucketLength * sums.length;
+    }
+}
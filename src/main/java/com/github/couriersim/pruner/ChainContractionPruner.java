@@ -0,0 +1,260 @@
+package com.github.couriersim.pruner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.github.rinde.rinsim.geom.Graph;
+import com.github.rinde.rinsim.geom.MultiAttributeData;
+import com.github.rinde.rinsim.geom.Point;
+import com.google.common.base.Optional;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+/**
+ * Contracts chains of degree-2 nodes (shape nodes of OSM ways) into single
+ * connections. The contracted connection has the summed length of the chain,
+ * its max speed is chosen such that the travel time over the connection equals
+ * the travel time over the original chain. One-way chains stay one-way.
+ * <p>
+ * The geometry of every contracted connection is kept in a side table, see
+ * {@link #getShape(Point, Point)} and {@link #resolve(Point, Point, double)}.
+ */
+public class ChainContractionPruner implements Pruner {
+
+    /** Attribute holding the travel time of a connection (length / speed). */
+    public static final String TRAVEL_TIME = "tt";
+
+    static final String SPEED = "ts";
+    static final String NAME = "n";
+
+    private final Table<Point, Point, ContractedConnection> shapes =
+            HashBasedTable.create();
+
+    /**
+     * Contracts all degree-2 chains of the graph. The supplied graph is modified
+     * (no copy is taken)
+     * @param g The graph to be pruned
+     * @return The modified graph
+     */
+    @Override
+    public Graph<MultiAttributeData> prune(Graph<MultiAttributeData> g) {
+        final int nodesBefore = g.getNumberOfNodes();
+        final Set<Point> inChain = new HashSet<>();
+        // connections the contractions of this pass will add
+        final Table<Point, Point, Boolean> planned = HashBasedTable.create();
+        final List<List<Point>> chains = new ArrayList<>();
+        final List<Boolean> twoWay = new ArrayList<>();
+
+        for (Point start : g.getNodes()) {
+            if (isContractible(g, start)) {
+                continue;
+            }
+            for (Point next : g.getOutgoingConnections(start)) {
+                if (inChain.contains(next) || !isContractible(g, next)) {
+                    continue;
+                }
+                final List<Point> chain = walk(g, start, next);
+                final Point end = chain.get(chain.size() - 1);
+                final boolean bidirectional = isTwoWay(g, next);
+                // contracting would create a self loop or a parallel connection,
+                // also with a chain contracted in this pass (dual carriageways)
+                if (end.equals(start) || g.hasConnection(start, end)
+                        || planned.contains(start, end)
+                        || bidirectional && (g.hasConnection(end, start)
+                        || planned.contains(end, start))) {
+                    continue;
+                }
+                planned.put(start, end, true);
+                if (bidirectional) {
+                    planned.put(end, start, true);
+                }
+                inChain.addAll(chain.subList(1, chain.size() - 1));
+                chains.add(chain);
+                twoWay.add(bidirectional);
+            }
+        }
+
+        final List<MultiAttributeData> forward = new ArrayList<>();
+        final List<MultiAttributeData> backward = new ArrayList<>();
+        for (int i = 0; i < chains.size(); i++) {
+            final List<Point> chain = chains.get(i);
+            forward.add(combine(g, chain, false));
+            backward.add(twoWay.get(i) ? combine(g, chain, true) : null);
+        }
+        for (Point p : inChain) {
+            g.removeNode(p);
+        }
+        for (int i = 0; i < chains.size(); i++) {
+            final List<Point> chain = chains.get(i);
+            final Point from = chain.get(0);
+            final Point to = chain.get(chain.size() - 1);
+            g.addConnection(from, to, forward.get(i));
+            shapes.put(from, to, new ContractedConnection(chain, false));
+            if (backward.get(i) != null) {
+                g.addConnection(to, from, backward.get(i));
+                shapes.put(to, from, new ContractedConnection(chain, true));
+            }
+        }
+
+        Logger.getGlobal().info("ChainContractionPruner contracted "
+                + chains.size() + " chains, nodes " + nodesBefore + " -> "
+                + g.getNumberOfNodes());
+        return g;
+    }
+
+    /**
+     * Returns the original nodes (including both end points) of a contracted
+     * connection.
+     * @param from The start of the connection.
+     * @param to The end of the connection.
+     * @return The shape, or absent if the connection was not contracted.
+     */
+    public Optional<List<Point>> getShape(Point from, Point to) {
+        final ContractedConnection c = shapes.get(from, to);
+        return c == null ? Optional.<List<Point>>absent()
+                : Optional.of(c.shape);
+    }
+
+    /**
+     * Resolves a position along a connection to a point on the original road
+     * geometry.
+     * @param from The start of the connection.
+     * @param to The end of the connection.
+     * @param offset The distance from <code>from</code> along the connection.
+     * @return The point on the original geometry, if the connection was not
+     *         contracted the point is interpolated on the straight line.
+     */
+    public Point resolve(Point from, Point to, double offset) {
+        final ContractedConnection c = shapes.get(from, to);
+        if (c == null) {
+            return interpolate(from, to, offset);
+        }
+        return c.resolve(offset);
+    }
+
+    // a node that is only passed through: one way a -> v -> b, or two way a <-> v <-> b
+    static boolean isContractible(Graph<MultiAttributeData> g, Point v) {
+        final Collection<Point> in = g.getIncomingConnections(v);
+        final Collection<Point> out = g.getOutgoingConnections(v);
+        if (in.size() == 1 && out.size() == 1) {
+            final Point a = in.iterator().next();
+            final Point b = out.iterator().next();
+            return !a.equals(b) && !a.equals(v) && !b.equals(v);
+        }
+        return in.size() == 2 && out.size() == 2 && in.containsAll(out)
+                && !in.contains(v);
+    }
+
+    static boolean isTwoWay(Graph<MultiAttributeData> g, Point v) {
+        return g.getOutgoingConnections(v).size() == 2;
+    }
+
+    // follows the chain starting with start -> next up to the first node that
+    // is not contractible
+    private static List<Point> walk(Graph<MultiAttributeData> g, Point start,
+                                    Point next) {
+        final List<Point> chain = new ArrayList<>();
+        chain.add(start);
+        Point prev = start;
+        Point cur = next;
+        while (isContractible(g, cur) && !cur.equals(start)) {
+            chain.add(cur);
+            Point following = null;
+            for (Point p : g.getOutgoingConnections(cur)) {
+                if (!p.equals(prev)) {
+                    following = p;
+                }
+            }
+            prev = cur;
+            cur = following;
+        }
+        chain.add(cur);
+        return chain;
+    }
+
+    private static MultiAttributeData combine(Graph<MultiAttributeData> g,
+                                              List<Point> chain, boolean reverse) {
+        double length = 0;
+        double time = 0;
+        Object name = null;
+        for (int i = 1; i < chain.size(); i++) {
+            final Point from = chain.get(reverse ? chain.size() - i : i - 1);
+            final Point to = chain.get(reverse ? chain.size() - i - 1 : i);
+            final Optional<MultiAttributeData> data = g.connectionData(from, to);
+            double l = Point.distance(from, to);
+            double speed = Double.NaN;
+            if (data.isPresent()) {
+                if (data.get().getLength().isPresent()) {
+                    l = data.get().getLength().get();
+                }
+                if (data.get().getMaxSpeed().isPresent()) {
+                    speed = data.get().getMaxSpeed().get();
+                }
+                if (name == null) {
+                    name = data.get().getAttributes().get(NAME);
+                }
+            }
+            length += l;
+            time += l / speed;
+        }
+        final MultiAttributeData.Builder b = MultiAttributeData.builder()
+                .setLength(length);
+        // a single connection without speed makes the speed of the chain unknown
+        if (!Double.isNaN(time) && time > 0) {
+            b.setMaxSpeed(length / time)
+                    .addAttribute(SPEED, length / time)
+                    .addAttribute(TRAVEL_TIME, time);
+        }
+        if (name != null) {
+            b.addAttribute(NAME, name);
+        }
+        return b.build();
+    }
+
+    static Point interpolate(Point from, Point to, double offset) {
+        final double length = Point.distance(from, to);
+        if (length == 0) {
+            return from;
+        }
+        final double r = Math.max(0, Math.min(1, offset / length));
+        return new Point(from.x + r * (to.x - from.x),
+                from.y + r * (to.y - from.y));
+    }
+
+    static final class ContractedConnection {
+        final List<Point> shape;
+        // distance from the start of the shape to every point of the shape
+        final double[] offsets;
+
+        ContractedConnection(List<Point> chain, boolean reverse) {
+            shape = new ArrayList<>(chain);
+            if (reverse) {
+                Collections.reverse(shape);
+            }
+            offsets = new double[shape.size()];
+            for (int i = 1; i < shape.size(); i++) {
+                offsets[i] = offsets[i - 1]
+                        + Point.distance(shape.get(i - 1), shape.get(i));
+            }
+        }
+
+        Point resolve(double offset) {
+            int i = Arrays.binarySearch(offsets, offset);
+            if (i >= 0) {
+                return shape.get(i);
+            }
+            i = -i - 1;
+            if (i >= shape.size()) {
+                return shape.get(shape.size() - 1);
+            }
+            return interpolate(shape.get(i - 1), shape.get(i),
+                    offset - offsets[i - 1]);
+        }
+    }
+}
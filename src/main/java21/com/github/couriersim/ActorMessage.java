@@ -0,0 +1,36 @@
+package com.github.couriersim;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * The messages in the mailbox of a {@link TaxiActor}, all sent by
+ * {@link TaxiActors} from the simulation thread.
+ */
+sealed interface ActorMessage {
+
+    /** An order waiting for a taxi, the actor may ask for it. */
+    record Offer(Parcel parcel, Point pickup, double neededCapacity)
+            implements ActorMessage {}
+
+    /**
+     * The order went to a taxi, or to nobody if <code>taxi</code> is -1
+     * because the parcel left the road.
+     */
+    record Claimed(Parcel parcel, int taxi) implements ActorMessage {}
+
+    /** The order doesn't fit in the plan of the actor that asked for it. */
+    record Rejected(Parcel parcel) implements ActorMessage {}
+
+    /**
+     * The actor decides on everything it received before and counts down the
+     * latch, the simulation waits for it before it moves on.
+     */
+    record Tick(long tick, Point position, int stops, CountDownLatch done)
+            implements ActorMessage {}
+
+    /** Ends the actor. */
+    record Stop() implements ActorMessage {}
+}
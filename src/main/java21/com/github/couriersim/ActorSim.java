@@ -0,0 +1,47 @@
+package com.github.couriersim;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.road.RoadUser;
+
+/**
+ * Runs a headless simulation in which every taxi is a {@link TaxiActor} on a
+ * virtual thread, see {@link TaxiActors}:
+ * <pre>
+ * ActorSim [taxis] [simulated hours] [graph] [order probability]
+ * </pre>
+ * Only built with the <code>jdk21</code> Maven profile.
+ */
+public final class ActorSim {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private ActorSim() {}
+
+    public static void main(String[] args) {
+        final int taxis = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final long hours = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        final String graph = args.length > 2 ? args[2] : CourierSim.MAP_FILE;
+        final double probability = args.length > 3 ? Double.parseDouble(args[3]) : .5;
+
+        final long start = System.nanoTime();
+        final Simulator sim = CourierSim.run(SimConfig.builder()
+                .headless(true)
+                .graphFile(graph)
+                .endTime(hours * HOUR)
+                .numTaxis(taxis)
+                .orderProbability(probability)
+                .strategy(Taxi.Strategy.ROUTE_PLAN)
+                .dispatchBy(TaxiActors::install)
+                .build(), null, null, null);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        double profit = 0;
+        final RoadModel rm = sim.getModelProvider().getModel(RoadModel.class);
+        for (RoadUser ru : rm.getObjects(CourierSim.Pred.TAXIS)) {
+            profit += ((Taxi) ru).getProfit();
+        }
+        System.out.println(String.format("taxis=%d hours=%d wall=%.1fs profit=%.2f",
+                taxis, hours, seconds, profit));
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.couriersim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nullable;
+
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * The decision making of one taxi, run on its own virtual thread. The actor
+ * only knows what arrives in its bounded mailbox: the orders offered to it
+ * and which of those were claimed. On every {@link ActorMessage.Tick} it asks
+ * for the nearest offer it can still carry, the {@link TaxiActors} decide who
+ * gets it. An actor never touches the road or PDP model, so any number of
+ * them can decide at the same time.
+ */
+final class TaxiActor implements Runnable {
+
+    static final int MAILBOX_CAPACITY = 256;
+    // an actor doesn't ask for more work once its plan has this many stops
+    static final int MAX_STOPS = 6;
+
+    /**
+     * The answer of an actor to a tick.
+     * @param request The parcel the actor asks for, if any.
+     * @param interested Whether the actor still knows unclaimed offers and
+     *          wants the next tick as well.
+     */
+    record Reply(int taxi, @Nullable Parcel request, boolean interested) {}
+
+    private final int id;
+    private final double capacity;
+    private final BlockingQueue<ActorMessage> mailbox =
+            new ArrayBlockingQueue<>(MAILBOX_CAPACITY);
+    private final Queue<Reply> replies;
+    // unclaimed offers in arrival order, only used by the actor thread
+    private final Map<Parcel, ActorMessage.Offer> offers = new LinkedHashMap<>();
+
+    TaxiActor(int id, double capacity, Queue<Reply> replies) {
+        this.id = id;
+        this.capacity = capacity;
+        this.replies = replies;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Delivers a message, waits while the mailbox is full.
+     */
+    void send(ActorMessage message) {
+        try {
+            mailbox.put(message);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sending to taxi " + id, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                switch (mailbox.take()) {
+                    case ActorMessage.Offer o -> offers.put(o.parcel(), o);
+                    case ActorMessage.Claimed c -> offers.remove(c.parcel());
+                    case ActorMessage.Rejected r -> offers.remove(r.parcel());
+                    case ActorMessage.Tick t -> {
+                        try {
+                            replies.add(decide(t));
+                        } finally {
+                            t.done().countDown();
+                        }
+                    }
+                    case ActorMessage.Stop s -> {
+                        return;
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Reply decide(ActorMessage.Tick tick) {
+        if (tick.stops() >= MAX_STOPS) {
+            return new Reply(id, null, !offers.isEmpty());
+        }
+        ActorMessage.Offer best = null;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (ActorMessage.Offer o : offers.values()) {
+            final double d = Point.distance(tick.position(), o.pickup());
+            if (o.neededCapacity() <= capacity && d < bestDistance) {
+                best = o;
+                bestDistance = d;
+            }
+        }
+        if (best == null) {
+            return new Reply(id, null, false);
+        }
+        // answered with a claim or a rejection before the next tick
+        offers.remove(best.parcel());
+        return new Reply(id, best.parcel(), !offers.isEmpty());
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.couriersim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.github.rinde.rinsim.core.Simulator;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel;
+import com.github.rinde.rinsim.core.model.pdp.PDPModel.PDPModelEventType;
+import com.github.rinde.rinsim.core.model.pdp.PDPModelEvent;
+import com.github.rinde.rinsim.core.model.pdp.Parcel;
+import com.github.rinde.rinsim.core.model.road.RoadModel;
+import com.github.rinde.rinsim.core.model.time.TickListener;
+import com.github.rinde.rinsim.core.model.time.TimeLapse;
+import com.github.rinde.rinsim.event.Event;
+import com.github.rinde.rinsim.event.Listener;
+import com.github.rinde.rinsim.geom.Point;
+
+/**
+ * Runs every taxi of a {@link Taxi.Strategy#ROUTE_PLAN} fleet as a
+ * {@link TaxiActor} on a virtual thread and is the only one that talks to
+ * them. New orders are offered to the {@link #FANOUT} nearest actors, and to
+ * twice as many every {@link #REOFFER_TICKS} ticks while nobody took them.
+ * <p>
+ * The simulator clock is the barrier: in every tick the actors that received
+ * messages decide concurrently, the simulation waits for all of them and then
+ * resolves their requests in the order of the taxis, so a run is
+ * deterministic. The first request for an order wins, it is inserted in the
+ * plan of that taxi and all actors it was offered to hear that it is claimed.
+ * Actors without messages don't run at all, a tick only costs a scan of the
+ * fleet per order that is (re)offered.
+ * <p>
+ * Whether an actor has room for another offer is decided by the messages sent
+ * to it since its last tick, which are all it can have unread, not by its
+ * mailbox, which it drains concurrently. So the recipients of an order don't
+ * depend on thread timing.
+ */
+final class TaxiActors implements Dispatcher, TickListener, Listener {
+
+    static final int FANOUT = 8;
+    static final long REOFFER_TICKS = 30;
+
+    private final RoadModel roadModel;
+    private final List<Taxi> taxis = new ArrayList<>();
+    private final List<TaxiActor> actors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Queue<TaxiActor.Reply> replies = new ConcurrentLinkedQueue<>();
+    private final Deque<Parcel> arrived = new ArrayDeque<>();
+    // orders that no taxi took yet, in arrival order
+    private final Map<Parcel, Order> open = new LinkedHashMap<>();
+    // actors that get a tick
+    private final BitSet active = new BitSet();
+    // messages sent to every actor since its last tick, an upper bound of
+    // its unread messages
+    private int[] unread = new int[0];
+
+    TaxiActors(RoadModel roadModel) {
+        this.roadModel = roadModel;
+    }
+
+    static TaxiActors install(Simulator simulator, RoadModel rm, PDPModel pm) {
+        final TaxiActors actors = new TaxiActors(rm);
+        pm.getEventAPI().addListener(actors, PDPModelEventType.NEW_PARCEL);
+        simulator.addTickListener(actors);
+        return actors;
+    }
+
+    @Override
+    public void addTaxi(Taxi taxi) {
+        final TaxiActor actor = new TaxiActor(actors.size(), taxi.getCapacity(), replies);
+        taxis.add(taxi);
+        actors.add(actor);
+        unread = Arrays.copyOf(unread, actors.size());
+        threads.add(Thread.ofVirtual().name("taxi-actor-" + actor.getId()).start(actor));
+    }
+
+    @Override
+    public void handleEvent(Event e) {
+        final Parcel p = ((PDPModelEvent) e).parcel;
+        if (p != null) {
+            arrived.add(p);
+        }
+    }
+
+    @Override
+    public void tick(TimeLapse timeLapse) {
+        final long tick = timeLapse.getStartTime() / timeLapse.getTickLength();
+        while (!arrived.isEmpty()) {
+            final Parcel p = arrived.poll();
+            open.put(p, new Order(p));
+        }
+        for (Iterator<Order> it = open.values().iterator(); it.hasNext();) {
+            final Order order = it.next();
+            if (!roadModel.containsObject(order.parcel)) {
+                notifyClaimed(order, -1);
+                it.remove();
+            } else if (order.offeredAt < 0 || tick - order.offeredAt >= REOFFER_TICKS) {
+                offer(order, tick);
+            }
+        }
+        if (active.isEmpty()) {
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(active.cardinality());
+        for (int i = active.nextSetBit(0); i >= 0; i = active.nextSetBit(i + 1)) {
+            final RoutePlan plan = taxis.get(i).getPlan();
+            actors.get(i).send(new ActorMessage.Tick(tick,
+                    roadModel.getPosition(taxis.get(i)), plan.size(), done));
+            // read once the simulation is past the barrier below
+            unread[i] = 0;
+        }
+        active.clear();
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the taxis", e);
+        }
+
+        final List<TaxiActor.Reply> answers = new ArrayList<>(replies);
+        replies.clear();
+        answers.sort(Comparator.comparingInt(TaxiActor.Reply::taxi));
+        for (TaxiActor.Reply reply : answers) {
+            if (reply.interested()) {
+                active.set(reply.taxi());
+            }
+            final Order order = reply.request() == null ? null : open.get(reply.request());
+            // claimed or gone earlier, the actor already heard about it
+            if (order == null) {
+                continue;
+            }
+            final Taxi taxi = taxis.get(reply.taxi());
+            final RoutePlan.Insertion insertion = taxi.priceInsertion(order.parcel);
+            if (insertion == null) {
+                send(reply.taxi(), new ActorMessage.Rejected(order.parcel));
+                continue;
+            }
+            taxi.assign(insertion, tick);
+            open.remove(order.parcel);
+            notifyClaimed(order, reply.taxi());
+        }
+    }
+
+    @Override
+    public void afterTick(TimeLapse timeLapse) {}
+
+    @Override
+    public void close() {
+        for (TaxiActor actor : actors) {
+            actor.send(new ActorMessage.Stop());
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getOpen() {
+        return open.size();
+    }
+
+    // offers the order to the nearest actors that didn't get it yet
+    private void offer(Order order, long tick) {
+        final Point pickup = order.parcel.getPickupLocation();
+        final int k = Math.min(order.fanout, actors.size());
+        // farthest of the k nearest on top
+        final PriorityQueue<double[]> nearest = new PriorityQueue<>(k + 1,
+                (a, b) -> Double.compare(b[0], a[0]));
+        for (int i = 0; i < taxis.size(); i++) {
+            if (order.recipients.get(i)) {
+                continue;
+            }
+            final double d = Point.distance(pickup, roadModel.getPosition(taxis.get(i)));
+            if (nearest.size() < k || d < nearest.peek()[0]) {
+                nearest.add(new double[] {d, i});
+                if (nearest.size() > k) {
+                    nearest.poll();
+                }
+            }
+        }
+        final ActorMessage.Offer offer = new ActorMessage.Offer(order.parcel, pickup,
+                order.parcel.getNeededCapacity());
+        for (double[] n : nearest) {
+            final int i = (int) n[1];
+            // a full mailbox belongs to a busy actor, the order goes elsewhere,
+            // one place stays free for the tick
+            if (unread[i] < TaxiActor.MAILBOX_CAPACITY - 1) {
+                send(i, offer);
+                order.recipients.set(i);
+            }
+        }
+        order.offeredAt = tick;
+        order.fanout = Math.min(order.fanout * 2, actors.size());
+    }
+
+    private void notifyClaimed(Order order, int taxi) {
+        final ActorMessage.Claimed claimed = new ActorMessage.Claimed(order.parcel, taxi);
+        for (int i = order.recipients.nextSetBit(0); i >= 0;
+             i = order.recipients.nextSetBit(i + 1)) {
+            send(i, claimed);
+        }
+    }
+
+    private void send(int actor, ActorMessage message) {
+        actors.get(actor).send(message);
+        unread[actor]++;
+        active.set(actor);
+    }
+
+    private static final class Order {
+        final Parcel parcel;
+        final BitSet recipients = new BitSet();
+        long offeredAt = -1;
+        int fanout = FANOUT;
+
+        Order(Parcel parcel) {
+            this.parcel = parcel;
+        }
+    }
+}